@@ -0,0 +1,279 @@
+package place;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A hash tree over the chunks of a board.  The board is cut into square
+ * chunks of {@link #CHUNK} tiles on a side; each chunk is hashed, and the
+ * chunk hashes are the leaves of a binary tree stored in an array (the
+ * children of node i are 2i and 2i+1, and the root is node 1).
+ *
+ * Two trees can be compared from the root down, only descending into the
+ * parts that differ, to find the chunks that have to be sent to bring one
+ * board up to date with the other.
+ *
+ * Only the dimension and the chunk hashes are serialized (the rest of the tree
+ * is rebuilt from them), so a client can send its tree to the server cheaply.
+ */
+public class BoardHashTree implements Serializable {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tiles on each side of a chunk */
+    public static final int CHUNK = 64;
+
+    /** The square dimension of the board */
+    public final int DIM;
+
+    /** The number of chunks on each side of the board */
+    private final int chunksPerSide;
+
+    /** The number of leaves; the first leaf is node leaves */
+    private final int leaves;
+
+    /** The tree of hashes */
+    private transient long[] tree;
+
+    /** The board being hashed; only set on the side that owns the board */
+    private transient PlaceBoard board;
+
+    /** The chunks that have changed since their hashes were last computed */
+    private transient BitSet dirty;
+
+    /**
+     * Build the hash tree of a board.
+     *
+     * @param board the board
+     */
+    public BoardHashTree(PlaceBoard board) {
+        this(board.DIM);
+        this.board = board;
+        this.dirty = new BitSet();
+        dirty.set(0, chunkCount());
+        update();
+    }
+
+    /**
+     * Build a tree for a board from chunk hashes that were computed earlier.
+     *
+     * @param board the board
+     * @param chunkHashes the hash of every chunk, in chunk order
+     */
+    public BoardHashTree(PlaceBoard board, long[] chunkHashes) {
+        this(board.DIM);
+        this.board = board;
+        this.dirty = new BitSet();
+        System.arraycopy(chunkHashes, 0, tree, leaves, chunkHashes.length);
+        rebuild();
+    }
+
+    /**
+     * Create an empty tree.
+     *
+     * @param DIM the square dimension of the board
+     */
+    private BoardHashTree(int DIM) {
+        this.DIM = DIM;
+        this.chunksPerSide = (DIM + CHUNK - 1) / CHUNK;
+        int leaves = 1;
+        while (leaves < chunksPerSide * chunksPerSide)
+            leaves *= 2;
+        this.leaves = leaves;
+        this.tree = new long[2 * leaves];
+    }
+
+    /**
+     * Recompute every node above the leaves.
+     */
+    private void rebuild() {
+        for (int node = leaves - 1; node > 0; --node)
+            tree[node] = combine(tree[2 * node], tree[2 * node + 1]);
+    }
+
+    /**
+     * Write the dimension and the chunk hashes.
+     *
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        update();
+        out.defaultWriteObject();
+        for (int chunk = 0; chunk < chunkCount(); ++chunk)
+            out.writeLong(tree[leaves + chunk]);
+    }
+
+    /**
+     * Read the dimension and the chunk hashes and rebuild the tree.
+     *
+     * @param in where to read
+     * @throws IOException if reading fails
+     * @throws ClassNotFoundException never
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        tree = new long[2 * leaves];
+        for (int chunk = 0; chunk < chunkCount(); ++chunk)
+            tree[leaves + chunk] = in.readLong();
+        rebuild();
+    }
+
+    /**
+     * Get the board being hashed.
+     *
+     * @return the board, or null if this tree was received from elsewhere
+     */
+    public PlaceBoard getBoard() {
+        return board;
+    }
+
+    /**
+     * Get the number of chunks in the board.
+     *
+     * @return the number of chunks
+     */
+    public int chunkCount() {
+        return chunksPerSide * chunksPerSide;
+    }
+
+    /**
+     * Get the chunk a tile is in.
+     *
+     * @param row the row
+     * @param col the column
+     * @return the chunk number
+     */
+    public int chunkOf(int row, int col) {
+        return (row / CHUNK) * chunksPerSide + col / CHUNK;
+    }
+
+    /**
+     * Note that a tile has changed.  Its chunk will be hashed again the next
+     * time the tree is used.
+     *
+     * @param row the row
+     * @param col the column
+     */
+    public void markDirty(int row, int col) {
+        dirty.set(chunkOf(row, col));
+    }
+
+    /**
+     * Get the hash of a chunk, rehashing it first if it changed.
+     *
+     * @param chunk the chunk number
+     * @return the hash
+     */
+    public long chunkHash(int chunk) {
+        update();
+        return tree[leaves + chunk];
+    }
+
+    /**
+     * Rehash the dirty chunks and the nodes above them.
+     */
+    private void update() {
+        if (dirty == null || dirty.isEmpty())
+            return;
+        for (int chunk = dirty.nextSetBit(0); chunk >= 0; chunk = dirty.nextSetBit(chunk + 1)) {
+            tree[leaves + chunk] = hashChunk(chunk);
+            for (int node = (leaves + chunk) / 2; node > 0; node /= 2)
+                tree[node] = combine(tree[2 * node], tree[2 * node + 1]);
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Hash the tiles of a chunk: their color, time and owner.
+     *
+     * @param chunk the chunk number
+     * @return the hash
+     */
+    private long hashChunk(int chunk) {
+        long hash = 0xcbf29ce484222325L;
+        int firstRow = (chunk / chunksPerSide) * CHUNK;
+        int firstCol = (chunk % chunksPerSide) * CHUNK;
+        for (int row = firstRow; row < Math.min(DIM, firstRow + CHUNK); ++row) {
+            for (int col = firstCol; col < Math.min(DIM, firstCol + CHUNK); ++col) {
+                PlaceTile tile = board.getTile(row, col);
+                hash = (hash ^ tile.getColor().getNumber()) * 0x100000001b3L;
+                hash = (hash ^ tile.getTime()) * 0x100000001b3L;
+                // a missing owner hashes like a blank one, which is what it is read back as
+                hash = (hash ^ Objects.hashCode(tile.getOwner())) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Combine the hashes of two children into the hash of their parent.
+     *
+     * @param left the left child's hash
+     * @param right the right child's hash
+     * @return the parent's hash
+     */
+    private static long combine(long left, long right) {
+        long hash = left * 0x9E3779B97F4A7C15L + right;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Compare this tree with another from the root down and find the chunks
+     * whose hashes differ.  If the boards aren't the same size, every chunk
+     * differs.
+     *
+     * @param other the other tree
+     * @return the numbers of the chunks that differ
+     */
+    public List<Integer> differingChunks(BoardHashTree other) {
+        update();
+        other.update();
+        List<Integer> chunks = new ArrayList<>();
+        if (other.DIM != DIM || other.tree.length != tree.length) {
+            for (int chunk = 0; chunk < chunkCount(); ++chunk)
+                chunks.add(chunk);
+            return chunks;
+        }
+        Deque<Integer> nodes = new ArrayDeque<>();
+        nodes.push(1);
+        while (!nodes.isEmpty()) {
+            int node = nodes.pop();
+            if (tree[node] == other.tree[node])
+                continue;
+            if (node >= leaves) {
+                if (node - leaves < chunkCount())
+                    chunks.add(node - leaves);
+            } else {
+                nodes.push(2 * node + 1);
+                nodes.push(2 * node);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Get the tiles of a chunk, row by row.
+     *
+     * @param chunk the chunk number
+     * @return the tiles
+     */
+    public List<PlaceTile> chunkTiles(int chunk) {
+        List<PlaceTile> tiles = new ArrayList<>(CHUNK * CHUNK);
+        int firstRow = (chunk / chunksPerSide) * CHUNK;
+        int firstCol = (chunk % chunksPerSide) * CHUNK;
+        for (int row = firstRow; row < Math.min(DIM, firstRow + CHUNK); ++row) {
+            for (int col = firstCol; col < Math.min(DIM, firstCol + CHUNK); ++col)
+                tiles.add(board.getTile(row, col));
+        }
+        return tiles;
+    }
+}
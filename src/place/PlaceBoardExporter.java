@@ -0,0 +1,402 @@
+package place;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a snapshot of a board as an image.  The board is cut into strips of
+ * rows; each strip is converted and compressed on its own thread, and the
+ * strips are written to the output in order as soon as they are ready, so the
+ * whole image never has to be held in memory at once.
+ *
+ * PNG output uses a 4 bit indexed palette built from the 16 PlaceColors.  The
+ * strips are deflated independently (ending on a full flush) and joined into
+ * the single zlib stream that PNG requires.
+ */
+public class PlaceBoardExporter {
+    /** The output formats that are supported */
+    public enum Format {
+        /** 4 bit indexed PNG image */
+        PNG,
+        /** raw RGB, 3 bytes per tile, row major */
+        RGB,
+        /** raw palette index, 1 byte per tile (the color number), row major */
+        INDEXED
+    }
+
+    /** The number of rows converted and compressed by one task */
+    private static final int ROWS_PER_STRIP = 64;
+
+    /** The largest number of bytes in one PNG IDAT chunk */
+    private static final int MAX_CHUNK = 1 << 16;
+
+    /** The PNG file signature */
+    private static final byte[] PNG_SIGNATURE =
+            {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    /** The modulus used by the Adler-32 checksum */
+    private static final int ADLER_BASE = 65521;
+
+    /** The board being exported */
+    private final PlaceBoard board;
+
+    /**
+     * Create an exporter for a board.  The board should not be changed while
+     * an export is running, or the image may mix old and new tiles.
+     *
+     * @param board the board to export
+     */
+    public PlaceBoardExporter(PlaceBoard board) {
+        this.board = board;
+    }
+
+    /**
+     * Pick the format based on the extension of a file name: .png, .rgb or
+     * anything else for indexed.
+     *
+     * @param fileName the name of the output file
+     * @return the format
+     */
+    public static Format formatFor(String fileName) {
+        String lower = fileName.toLowerCase();
+        if (lower.endsWith(".png"))
+            return Format.PNG;
+        else if (lower.endsWith(".rgb"))
+            return Format.RGB;
+        return Format.INDEXED;
+    }
+
+    /**
+     * Export the board to a file.
+     *
+     * @param fileName the file to write
+     * @param format the output format
+     * @throws IOException if the file can't be written
+     */
+    public void export(String fileName, Format format) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), MAX_CHUNK)) {
+            export(out, format);
+        }
+    }
+
+    /**
+     * Export the board to a stream.  The stream is not closed.
+     *
+     * @param out where the image is written
+     * @param format the output format
+     * @throws IOException if writing fails
+     */
+    public void export(OutputStream out, Format format) throws IOException {
+        switch (format) {
+            case PNG:
+                writePng(out);
+                break;
+            case RGB:
+                for (CompletableFuture<byte[]> strip : startStrips(this::rgbRows))
+                    out.write(strip.join());
+                break;
+            case INDEXED:
+                for (CompletableFuture<byte[]> strip : startStrips(this::indexedRows))
+                    out.write(strip.join());
+                break;
+        }
+        out.flush();
+    }
+
+    /**
+     * Start converting every strip of the board in parallel.
+     *
+     * @param converter turns a range of rows into bytes
+     * @return the pending strips, in row order
+     */
+    private List<CompletableFuture<byte[]>> startStrips(StripConverter converter) {
+        List<CompletableFuture<byte[]>> strips = new ArrayList<>();
+        for (int first = 0; first < board.DIM; first += ROWS_PER_STRIP) {
+            int start = first;
+            int end = Math.min(board.DIM, first + ROWS_PER_STRIP);
+            strips.add(CompletableFuture.supplyAsync(() -> converter.convert(start, end)));
+        }
+        return strips;
+    }
+
+    /**
+     * Converts the rows [start, end) of the board into bytes.
+     */
+    private interface StripConverter {
+        byte[] convert(int start, int end);
+    }
+
+    /**
+     * Convert rows to raw RGB.
+     *
+     * @param start first row
+     * @param end one past the last row
+     * @return 3 bytes per tile
+     */
+    private byte[] rgbRows(int start, int end) {
+        byte[] bytes = new byte[(end - start) * board.DIM * 3];
+        int i = 0;
+        for (int row = start; row < end; ++row) {
+            for (int col = 0; col < board.DIM; ++col) {
+                PlaceColor color = board.getTile(row, col).getColor();
+                bytes[i++] = (byte) color.getRed();
+                bytes[i++] = (byte) color.getGreen();
+                bytes[i++] = (byte) color.getBlue();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Convert rows to raw color numbers.
+     *
+     * @param start first row
+     * @param end one past the last row
+     * @return 1 byte per tile
+     */
+    private byte[] indexedRows(int start, int end) {
+        byte[] bytes = new byte[(end - start) * board.DIM];
+        int i = 0;
+        for (int row = start; row < end; ++row) {
+            for (int col = 0; col < board.DIM; ++col) {
+                bytes[i++] = (byte) board.getTile(row, col).getColor().getNumber();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * A deflated strip of PNG scanlines.
+     */
+    private static class CompressedStrip {
+        /** raw deflate data, ending on a byte boundary */
+        byte[] data;
+        /** Adler-32 of the uncompressed scanlines */
+        long adler;
+        /** number of uncompressed bytes */
+        long length;
+    }
+
+    /**
+     * Filter and deflate the PNG scanlines for rows [start, end).  Every
+     * scanline is a filter byte of 0 followed by two tiles per byte.
+     *
+     * @param start first row
+     * @param end one past the last row
+     * @param last whether this is the final strip of the image
+     * @return the compressed strip
+     */
+    private CompressedStrip pngStrip(int start, int end, boolean last) {
+        int lineLength = 1 + (board.DIM + 1) / 2;
+        byte[] raw = new byte[(end - start) * lineLength];
+        int i = 0;
+        for (int row = start; row < end; ++row) {
+            raw[i++] = 0;
+            for (int col = 0; col < board.DIM; col += 2) {
+                int high = board.getTile(row, col).getColor().getNumber();
+                int low = col + 1 < board.DIM ? board.getTile(row, col + 1).getColor().getNumber() : 0;
+                raw[i++] = (byte) (high << 4 | low);
+            }
+        }
+
+        CompressedStrip strip = new CompressedStrip();
+        Adler32 adler = new Adler32();
+        adler.update(raw, 0, raw.length);
+        strip.adler = adler.getValue();
+        strip.length = raw.length;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(raw);
+        if (last)
+            deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+        byte[] buffer = new byte[MAX_CHUNK];
+        int flush = last ? Deflater.NO_FLUSH : Deflater.FULL_FLUSH;
+        while (true) {
+            int n = deflater.deflate(buffer, 0, buffer.length, flush);
+            compressed.write(buffer, 0, n);
+            if (last ? deflater.finished() : n < buffer.length && deflater.needsInput())
+                break;
+        }
+        deflater.end();
+        strip.data = compressed.toByteArray();
+        return strip;
+    }
+
+    /**
+     * Write the board as an indexed PNG.
+     *
+     * @param out where the image is written
+     * @throws IOException if writing fails
+     */
+    private void writePng(OutputStream out) throws IOException {
+        List<CompletableFuture<CompressedStrip>> strips = new ArrayList<>();
+        for (int first = 0; first < board.DIM; first += ROWS_PER_STRIP) {
+            int start = first;
+            int end = Math.min(board.DIM, first + ROWS_PER_STRIP);
+            strips.add(CompletableFuture.supplyAsync(() -> pngStrip(start, end, end == board.DIM)));
+        }
+
+        out.write(PNG_SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(board.DIM);
+        headerData.writeInt(board.DIM);
+        headerData.writeByte(4);    // bit depth
+        headerData.writeByte(3);    // indexed color
+        headerData.writeByte(0);    // deflate
+        headerData.writeByte(0);    // adaptive filtering
+        headerData.writeByte(0);    // no interlace
+        writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+
+        byte[] palette = new byte[PlaceColor.TOTAL_COLORS * 3];
+        for (PlaceColor color : PlaceColor.values()) {
+            palette[color.getNumber() * 3] = (byte) color.getRed();
+            palette[color.getNumber() * 3 + 1] = (byte) color.getGreen();
+            palette[color.getNumber() * 3 + 2] = (byte) color.getBlue();
+        }
+        writeChunk(out, "PLTE", palette, 0, palette.length);
+
+        // zlib header: deflate with a 32K window, fastest compression
+        writeChunk(out, "IDAT", new byte[]{0x78, 0x01}, 0, 2);
+        long adler = 1;
+        for (CompletableFuture<CompressedStrip> pending : strips) {
+            CompressedStrip strip = pending.join();
+            for (int off = 0; off < strip.data.length; off += MAX_CHUNK)
+                writeChunk(out, "IDAT", strip.data, off, Math.min(MAX_CHUNK, strip.data.length - off));
+            adler = combineAdler(adler, strip.adler, strip.length);
+        }
+        byte[] trailer = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+        writeChunk(out, "IDAT", trailer, 0, trailer.length);
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    /**
+     * Write one PNG chunk.
+     *
+     * @param out where the chunk is written
+     * @param type the four letter chunk type
+     * @param data the chunk contents
+     * @param off where the contents start in data
+     * @param len the length of the contents
+     * @throws IOException if writing fails
+     */
+    private static void writeChunk(OutputStream out, String type, byte[] data, int off, int len)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, off, len);
+        writeInt(out, len);
+        out.write(typeBytes);
+        out.write(data, off, len);
+        writeInt(out, (int) crc.getValue());
+    }
+
+    /**
+     * Write a big endian int.
+     *
+     * @param out where to write
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Combine the Adler-32 checksums of two blocks of data into the checksum
+     * of the two blocks joined together.
+     *
+     * @param first checksum of the first block
+     * @param second checksum of the second block
+     * @param secondLength length of the second block
+     * @return checksum of both blocks
+     */
+    static long combineAdler(long first, long second, long secondLength) {
+        long rem = secondLength % ADLER_BASE;
+        long sum1 = first & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (second & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= ((long) ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum2 << 16 | sum1;
+    }
+
+    /**
+     * Read a board from the text form printed by {@link PlaceBoard#toString()}
+     * (one line of hex color digits per row).  Blank lines are skipped.
+     *
+     * @param fileName the text file
+     * @return the board
+     * @throws IOException if the file can't be read
+     * @throws PlaceException if the text is not a square board
+     */
+    public static PlaceBoard readBoardText(String fileName) throws IOException, PlaceException {
+        List<String> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty())
+                    rows.add(line);
+            }
+        }
+        PlaceColor[] colors = PlaceColor.values();
+        PlaceBoard board = new PlaceBoard(rows.size());
+        for (int row = 0; row < rows.size(); ++row) {
+            String line = rows.get(row);
+            if (line.length() != rows.size())
+                throw new PlaceException("Row " + row + " has " + line.length() +
+                        " tiles, expected " + rows.size());
+            for (int col = 0; col < line.length(); ++col) {
+                int number = Character.digit(line.charAt(col), 16);
+                if (number < 0)
+                    throw new PlaceException("Bad color '" + line.charAt(col) + "' at " + row + ", " + col);
+                board.getTile(row, col).setColor(colors[number]);
+            }
+        }
+        return board;
+    }
+
+    /**
+     * Export a board dump offline.
+     *
+     * @param args the board text file and the output file
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java PlaceBoardExporter <board text file> <output .png|.rgb|.idx>");
+            System.exit(1);
+        }
+        try {
+            PlaceBoard board = readBoardText(args[0]);
+            long start = System.currentTimeMillis();
+            new PlaceBoardExporter(board).export(args[1], formatFor(args[1]));
+            System.out.println("Exported " + board.DIM + "x" + board.DIM + " board to " + args[1] +
+                    " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | PlaceException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -1,19 +1,20 @@
 package place.client.gui;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
-import javafx.event.ActionEvent;
-import javafx.event.EventHandler;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.control.Tooltip;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
-import javafx.scene.paint.Color;
-import javafx.scene.shape.Rectangle;
-import javafx.scene.shape.StrokeType;
 import javafx.stage.Stage;
 import place.PlaceBoard;
 import place.PlaceColor;
@@ -24,11 +25,15 @@ import place.client.network.NetworkClient;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PlaceGUI extends Application implements Observer {
     /**
@@ -47,19 +52,106 @@ public class PlaceGUI extends Application implements Observer {
     private ToggleButton[] buttons = new ToggleButton[PlaceColor.TOTAL_COLORS];
 
     /**
-     * The clickable rectangles that store the PlaceTiles
+     * The board drawn at decreasing resolutions: level 0 has one pixel per tile and each level
+     * after it has one pixel for every 2x2 pixels of the level before, down to a single pixel
      */
-    private Rectangle[][] colorCells;
+    private WritableImage[] levels;
 
     /**
-     * The model that the board is based off of
+     * The pixels of each level, row by row, so a level's pixel can be worked out from the
+     * level before without reading the image back
      */
-    private ClientModel model;
+    private int[][] levelPixels;
+
+    /**
+     * The width and height of each level
+     */
+    private int[] levelSize;
+
+    /**
+     * The size of the view of the board, in screen pixels
+     */
+    private static final int VIEW = 500;
+
+    /**
+     * The most screen pixels a tile is zoomed to
+     */
+    private static final double MAX_ZOOM = 64;
+
+    /**
+     * The screen pixels per tile; at the least the whole board fits in the view
+     */
+    private double zoom;
+
+    /**
+     * The column and row of the board at the top left of the view
+     */
+    private double originX, originY;
+
+    /**
+     * Where a drag started, in screen pixels, and the origin at the time
+     */
+    private double dragX, dragY, dragOriginX, dragOriginY;
+
+    /**
+     * Shows the part of a level in view, scaled to the window without blurring the tiles
+     */
+    private ImageView view;
+
+    /**
+     * The one tooltip of the board, which shows the tile under the mouse
+     */
+    private Tooltip tooltip;
+
+    /**
+     * The row and column of the tile under the mouse, or -1 when the mouse is off the board
+     */
+    private int hoverRow = -1, hoverCol = -1;
 
     /**
-     * The GridPane that contains all the rectangles
+     * Formats the date of a tile in the tooltip; only used on the FX thread
      */
-    private GridPane center;
+    private final DateFormat dateFormat = DateFormat.getDateInstance();
+
+    /**
+     * Formats the time of a tile in the tooltip; only used on the FX thread
+     */
+    private final DateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+
+    /**
+     * The color of each PlaceColor as a premultiplied ARGB pixel, by number
+     */
+    private static final int[] ARGB = new int[PlaceColor.TOTAL_COLORS];
+
+    /**
+     * The time each frame may spend drawing changes, in nanoseconds; the rest wait for the next frame
+     */
+    private static final long FRAME_BUDGET = TimeUnit.MILLISECONDS.toNanos(8);
+
+    /**
+     * The changes waiting to be drawn, added by the network thread and drained by the FX thread
+     */
+    private final ConcurrentLinkedQueue<PlaceTile> changes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of changes waiting, kept alongside the queue since counting it is slow
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Whether the whole board has to be redrawn at the next frame
+     */
+    private final AtomicBoolean redrawAll = new AtomicBoolean();
+
+    static {
+        for (PlaceColor color : PlaceColor.values())
+            ARGB[color.getNumber()] = 0xff000000 | color.getRed() << 16 | color.getGreen() << 8 | color.getBlue();
+    }
+
+    /**
+     * The model that the board is based off of
+     */
+    private ClientModel model;
 
     /**
      * The array of PlaceColors used to color the rectangles
@@ -103,9 +195,10 @@ public class PlaceGUI extends Application implements Observer {
             String host = args.get( 0 );
             int port = Integer.parseInt( args.get( 1 ) );
             username = args.get(2);
+            String canvas = args.size() > 3 ? args.get(3) : "";
 
             // Create the network connection.
-            this.serverConn = new NetworkClient( host, port, username );
+            this.serverConn = new NetworkClient( host, port, username, canvas );
 
             model = serverConn.getModel();
             board = model.getBoard();
@@ -135,9 +228,6 @@ public class PlaceGUI extends Application implements Observer {
         BorderPane mainPane = new BorderPane();
         mainPane.setPrefSize(500, 540);
 
-        center = new GridPane();
-        center.setPrefSize(500, 50);
-
         GridPane bottomPane = new GridPane();
         ToggleGroup tg = new ToggleGroup();
 
@@ -175,31 +265,71 @@ public class PlaceGUI extends Application implements Observer {
             buttons[i] = button;
             button.setToggleGroup(tg);
         }
-        colorCells = new Rectangle[DIM][DIM];
-        for(int r = 0; r < DIM; r++){
-            for(int c = 0; c < DIM; c++){
-                Rectangle tileDis = new Rectangle();
-                tileDis.setWidth(500/DIM);
-                tileDis.setHeight(500/DIM);
-                colorCells[r][c] = tileDis;
-                PlaceTile tile = board.getTile(c, r);
-                updateColor(tile, tileDis);
-                center.add(tileDis, r, c);
-                Tooltip t = new Tooltip(tooltipCreator(tile));
-                Tooltip.install(tileDis, t);
-                tileDis.setOnMouseClicked(new EventHandler<MouseEvent>()
-                {
-                    @Override
-                    public void handle(MouseEvent t) {
-                        centerClick(tileDis);
-                    }
-                });
-            }
+        int count = 1;
+        for (int size = DIM; size > 1; size = (size + 1) / 2)
+            ++count;
+        levels = new WritableImage[count];
+        levelPixels = new int[count][];
+        levelSize = new int[count];
+        for (int level = 0, size = DIM; level < count; ++level, size = (size + 1) / 2) {
+            levels[level] = new WritableImage(size, size);
+            levelPixels[level] = new int[size * size];
+            levelSize[level] = size;
         }
-
+        refresh();
+        view = new ImageView();
+        view.setSmooth(false);
+        view.setPreserveRatio(false);
+        view.setFitWidth(VIEW);
+        view.setFitHeight(VIEW);
+        zoom = (double) VIEW / DIM;
+        showViewport();
+        view.setOnScroll(this::zoomAt);
+        view.setOnMousePressed(e -> {
+            dragX = e.getX();
+            dragY = e.getY();
+            dragOriginX = originX;
+            dragOriginY = originY;
+        });
+        view.setOnMouseDragged(e -> {
+            originX = dragOriginX - (e.getX() - dragX) / zoom;
+            originY = dragOriginY - (e.getY() - dragY) / zoom;
+            showViewport();
+        });
+        timeFormat.setTimeZone(TimeZone.getTimeZone("EST"));
+        tooltip = new Tooltip();
+        Tooltip.install(view, tooltip);
+        // the text is only made when the tooltip is about to show, or the mouse moves to
+        // another tile while it shows
+        tooltip.setOnShowing(e -> inspect());
+        view.setOnMouseMoved(e -> {
+            PlaceTile tile = tileAt(e);
+            int row = tile == null ? -1 : tile.getRow();
+            int col = tile == null ? -1 : tile.getCol();
+            if (row != hoverRow || col != hoverCol) {
+                hoverRow = row;
+                hoverCol = col;
+                if (tooltip.isShowing())
+                    inspect();
+            }
+        });
+        view.setOnMouseExited(e -> hoverRow = hoverCol = -1);
+        view.setOnMouseClicked(e -> {
+            if (!e.isStillSincePress())
+                return;
+            PlaceTile tile = tileAt(e);
+            if (tile != null)
+                centerClick(tile.getRow(), tile.getCol());
+        });
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drawFrame();
+            }
+        }.start();
 
         mainPane.setBottom(bottomPane);
-        mainPane.setCenter(center);
+        mainPane.setCenter(view);
 
         Scene scene = new Scene(mainPane);
         primaryStage.setTitle("Place");
@@ -209,72 +339,62 @@ public class PlaceGUI extends Application implements Observer {
 
 
     /**
-     * A helper method that will select which color will fill some rectangle, b.
-     * @param color
-     * @param b
+     * Zoom in or out by a step, keeping the tile under the mouse where it is.
+     * @param e the scroll event on the board
      */
-    public void determineColor (PlaceColor color, Rectangle b) {
-        switch (color) {
-            case BLACK:
-                b.setFill(Color.BLACK);
-                break;
-            case GRAY:
-                b.setFill(Color.GRAY);
-                break;
-            case SILVER:
-                b.setFill(Color.SILVER);
-                break;
-            case WHITE:
-                b.setFill(Color.WHITE);
-                break;
-            case MAROON:
-                b.setFill(Color.MAROON);
-                break;
-            case RED:
-                b.setFill(Color.RED);
-                break;
-            case OLIVE:
-                b.setFill(Color.OLIVE);
-                break;
-            case YELLOW:
-                b.setFill(Color.YELLOW);
-                break;
-            case GREEN:
-                b.setFill(Color.GREEN);
-                break;
-            case LIME:
-                b.setFill(Color.LIME);
-                break;
-            case TEAL:
-                b.setFill(Color.TEAL);
-                break;
-            case AQUA:
-                b.setFill(Color.AQUA);
-                break;
-            case NAVY:
-                b.setFill(Color.NAVY);
-                break;
-            case BLUE:
-                b.setFill(Color.BLUE);
-                break;
-            case PURPLE:
-                b.setFill(Color.PURPLE);
-                break;
-            case FUCHSIA:
-                b.setFill(Color.FUCHSIA);
-                break;
-        }
+    private void zoomAt(ScrollEvent e) {
+        double x = originX + e.getX() / zoom;
+        double y = originY + e.getY() / zoom;
+        double step = e.getDeltaY() > 0 ? 1.25 : e.getDeltaY() < 0 ? 0.8 : 1;
+        zoom = Math.max((double) VIEW / DIM, Math.min(MAX_ZOOM, zoom * step));
+        originX = x - e.getX() / zoom;
+        originY = y - e.getY() / zoom;
+        showViewport();
+    }
+
+    /**
+     * Show the part of the board in view.  The view is drawn from the coarsest level that still
+     * has at least one pixel per screen pixel, so drawing a frame costs about the same however
+     * big the board is.
+     */
+    private void showViewport() {
+        double span = VIEW / zoom;
+        originX = Math.max(0, Math.min(DIM - span, originX));
+        originY = Math.max(0, Math.min(DIM - span, originY));
+        int level = 0;
+        while (level + 1 < levels.length && zoom * (1 << (level + 1)) <= 1)
+            ++level;
+        // a pixel of a level covers 2^level tiles each way; the rounded-up size of an odd level
+        // would drift from that
+        double scale = 1.0 / (1 << level);
+        view.setImage(levels[level]);
+        view.setViewport(new Rectangle2D(originX * scale, originY * scale, span * scale, span * scale));
     }
 
     /**
-     * The method used to click on the rectangles, and send the request to the server.
-     * @param b
+     * Find the tile under the mouse.  The view is scaled evenly, so the tile
+     * is worked out from the position instead of looked up in the scene.
+     * @param e the mouse event on the board
+     * @return the tile, or null if the mouse is outside the board
      */
-    public void centerClick(Rectangle b){
+    private PlaceTile tileAt(MouseEvent e) {
+        int row = (int) (originY + e.getY() / zoom);
+        int col = (int) (originX + e.getX() / zoom);
+        if (row < 0 || row >= DIM || col < 0 || col >= DIM)
+            return null;
+        return model.getTile(row, col);
+    }
+
+    /**
+     * The method used to click on the board, and send the request to the server.
+     * @param row the row of the tile clicked
+     * @param col the column of the tile clicked
+     */
+    public void centerClick(int row, int col){
         if(!disable){
 
             String s = "" + colorPlace;
-            serverConn.changeTile(center.getRowIndex(b), center.getColumnIndex(b), username,
+            serverConn.changeTile(row, col, username,
                     s);
             disableGUI();
         }
@@ -282,7 +402,17 @@ public class PlaceGUI extends Application implements Observer {
 
 
     /**
-     * A helper method that creates the tooltips for each rectangle
+     * Shows the tile under the mouse in the tooltip, looked up in the model as it is now.
+     */
+    private void inspect() {
+        if (hoverRow < 0)
+            tooltip.setText("");
+        else
+            tooltip.setText(tooltipCreator(model.getTile(hoverRow, hoverCol)));
+    }
+
+    /**
+     * A helper method that creates the text of the tooltip
      * @param tile
      * @return the string to be used in the tooltip containing the coordinate, the time, and the creator
      */
@@ -292,10 +422,8 @@ public class PlaceGUI extends Application implements Observer {
         int col = tile.getCol();
         s += row + ", " + col + ") \n";
         s += tile.getOwner() + "\n";
-        s += DateFormat.getDateInstance().format(tile.getTime()) + "\n";
-        DateFormat formatter = new SimpleDateFormat("HH:mm:ss.SSS");
-        formatter.setTimeZone(TimeZone.getTimeZone("EST"));
-        s += formatter.format(tile.getTime());
+        s += dateFormat.format(tile.getTime()) + "\n";
+        s += timeFormat.format(tile.getTime());
         return s;
     }
 
@@ -427,41 +555,127 @@ public class PlaceGUI extends Application implements Observer {
     }
 
     /**
-     * Updates the colors of the rectangles based on the model, given the tile sent in from the server
-     * @param tile
-     * @param b
-     */
-    private void updateColor(PlaceTile tile, Rectangle b ){
-       PlaceColor color = tile.getColor();
-       determineColor(color, b);
-        Tooltip t = new Tooltip(tooltipCreator(tile));
-        Tooltip.install(b, t);
-       b.setStrokeType(StrokeType.INSIDE);
+     * Redraws every level of the board image to reflect the model
+     */
+    private void refresh() {
+        int[] pixels = levelPixels[0];
+        int i = 0;
+        for (int row = 0; row < DIM; row++) {
+            for (int col = 0; col < DIM; col++)
+                pixels[i++] = ARGB[board.getTile(row, col).getColor().getNumber()];
+        }
+        // placements the server hasn't answered yet are shown over the board
+        for (PlaceTile tile : model.getPending())
+            pixels[tile.getRow() * DIM + tile.getCol()] = ARGB[tile.getColor().getNumber()];
+        for (int level = 1; level < levels.length; ++level) {
+            int size = levelSize[level];
+            for (int y = 0; y < size; ++y) {
+                for (int x = 0; x < size; ++x)
+                    levelPixels[level][y * size + x] = average(level, x, y);
+            }
+        }
+        for (int level = 0; level < levels.length; ++level) {
+            int size = levelSize[level];
+            levels[level].getPixelWriter().setPixels(0, 0, size, size, PixelFormat.getIntArgbPreInstance(),
+                    levelPixels[level], 0, size);
+        }
     }
 
     /**
-     * Refreshes each tile to reflect the model
+     * Set a tile's pixel and the pixels covering it in every coarser level.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @param argb the color of the tile
      */
-    private void refresh() {
-        for (int x =0 ; x < DIM; x++) {
-            for (int y =0 ; y < DIM; y++) {
-                PlaceTile tile = board.getTile(x, y);
-                updateColor(tile, colorCells[y][x]);
+    private void drawTile(int row, int col, int argb) {
+        levelPixels[0][row * DIM + col] = argb;
+        levels[0].getPixelWriter().setArgb(col, row, argb);
+        for (int level = 1; level < levels.length; ++level) {
+            row >>= 1;
+            col >>= 1;
+            argb = average(level, col, row);
+            levelPixels[level][row * levelSize[level] + col] = argb;
+            levels[level].getPixelWriter().setArgb(col, row, argb);
+        }
+    }
+
+    /**
+     * Work out a pixel of a level as the average of the pixels it covers in the level before.
+     * @param level the level, at least 1
+     * @param x the column of the pixel
+     * @param y the row of the pixel
+     * @return the color
+     */
+    private int average(int level, int x, int y) {
+        int[] finer = levelPixels[level - 1];
+        int size = levelSize[level - 1];
+        int red = 0, green = 0, blue = 0, count = 0;
+        for (int row = y * 2; row < Math.min(size, y * 2 + 2); ++row) {
+            for (int col = x * 2; col < Math.min(size, x * 2 + 2); ++col) {
+                int argb = finer[row * size + col];
+                red += argb >> 16 & 0xff;
+                green += argb >> 8 & 0xff;
+                blue += argb & 0xff;
+                ++count;
             }
         }
+        return 0xff000000 | red / count << 16 | green / count << 8 | blue / count;
+    }
+
+    /**
+     * Draws the changes that have come in since the last frame, for as long as the frame's
+     * budget allows.  When more changes are waiting than the board has tiles it is cheaper to
+     * redraw the whole board once, so the queue is dropped instead.
+     */
+    private void drawFrame() {
+        if (redrawAll.getAndSet(false) || waiting.get() > DIM * DIM) {
+            waiting.addAndGet(-drain());
+            refresh();
+            return;
+        }
+        long deadline = System.nanoTime() + FRAME_BUDGET;
+        int drawn = 0;
+        PlaceTile change;
+        while ((change = changes.poll()) != null) {
+            // the color is taken from the board, so a tile changed again since is drawn as it is now
+            PlaceTile tile = model.getTile(change.getRow(), change.getCol());
+            drawTile(tile.getRow(), tile.getCol(), ARGB[tile.getColor().getNumber()]);
+            if (++drawn % 256 == 0 && System.nanoTime() > deadline)
+                break;
+        }
+        waiting.addAndGet(-drawn);
+    }
 
+    /**
+     * Empties the queue of changes.
+     * @return the number of changes dropped
+     */
+    private int drain() {
+        int dropped = 0;
+        while (changes.poll() != null)
+            ++dropped;
+        return dropped;
     }
 
     /**
-     * An update method to be called whenever the model is updated
+     * An update method to be called whenever the model is updated.  It runs on the network
+     * thread, so it only queues the changed tiles; they are drawn at the next frame.
      * @param o
      * @param arg
      */
     @Override
     public void update(Observable o, Object arg) {
         assert o.equals(this.model);
-        javafx.application.Platform.runLater(this::refresh);
-
+        if (arg instanceof PlaceTile) {
+            changes.add((PlaceTile) arg);
+            waiting.incrementAndGet();
+        } else if (arg instanceof Collection) {
+            for (Object tile : (Collection<?>) arg)
+                changes.add((PlaceTile) tile);
+            waiting.addAndGet(((Collection<?>) arg).size());
+        } else {
+            redrawAll.set(true);
+        }
     }
 
     /**
@@ -469,8 +683,8 @@ public class PlaceGUI extends Application implements Observer {
      * @param args
      */
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Usage: java PlaceGUI host port username");
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: java PlaceGUI host port username [canvas]");
             System.exit(-1);
         } else {
             Application.launch(args);
@@ -3,8 +3,25 @@ package place.client.model;
 import place.PlaceBoard;
 import place.PlaceTile;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Observable;
 
+/**
+ * The board as a client sees it.  Observers are told which tiles changed:
+ * the argument of update is the PlaceTile for a single change, or an
+ * unmodifiable List of the PlaceTiles for a batch, so an observer only has
+ * to redraw those tiles.
+ *
+ * A placement the user makes is shown at once, as a pending tile laid over
+ * the board, until the server answers it.  The board itself only ever holds
+ * what the server sent, so the client can't drift away from the server; the
+ * pending tile goes away when the server confirms the placement, by which
+ * time the board has it, or rejects it.
+ */
 public class ClientModel extends Observable {
     /**
      * A board that contains the current server board
@@ -16,6 +33,16 @@ public class ClientModel extends Observable {
      */
     private boolean running;
 
+    /**
+     * The placements waiting for the server, by id
+     */
+    private final HashMap<Long, PlaceTile> pending = new HashMap<>();
+
+    /**
+     * The id of the newest placement waiting for the server on each cell, by row * DIM + col
+     */
+    private final HashMap<Integer, Long> pendingCells = new HashMap<>();
+
     public ClientModel(PlaceBoard board) {
         this.board = board;
         running = true;
@@ -56,11 +83,86 @@ public class ClientModel extends Observable {
      * @return the tile
      */
     public PlaceTile getTile(int row, int col){
+        synchronized (pending) {
+            Long id = pendingCells.get(row * board.DIM + col);
+            if (id != null)
+                return pending.get(id);
+        }
         return board.getTile(row, col);
     }
 
     /**
-     * Change a tile in the board.
+     * Get the placements waiting for the server, to draw over the board.
+     *
+     * @return the newest pending tile of each cell that has one
+     */
+    public List<PlaceTile> getPending() {
+        synchronized (pending) {
+            List<PlaceTile> tiles = new ArrayList<>(pendingCells.size());
+            for (Long id : pendingCells.values())
+                tiles.add(pending.get(id));
+            return tiles;
+        }
+    }
+
+    /**
+     * Show a placement the user made before the server has answered it.
+     *
+     * @param tile the tile placed
+     * @param id the id the placement is sent to the server with
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void place(PlaceTile tile, long id) {
+        synchronized (pending) {
+            pending.put(id, tile);
+            pendingCells.put(tile.getRow() * board.DIM + tile.getCol(), id);
+        }
+        super.setChanged();
+        super.notifyObservers(tile);
+    }
+
+    /**
+     * The server has placed the tile; the board already holds it, or a
+     * later change, so the pending tile is dropped.
+     *
+     * @param id the id of the placement
+     */
+    public void confirm(long id) {
+        settle(id);
+    }
+
+    /**
+     * The server has refused the placement, so the cell goes back to what
+     * the board holds.
+     *
+     * @param id the id of the placement
+     */
+    public void rollback(long id) {
+        settle(id);
+    }
+
+    /**
+     * Drop a pending placement and redraw its cell from the board.
+     *
+     * @param id the id of the placement
+     */
+    private void settle(long id) {
+        PlaceTile tile;
+        synchronized (pending) {
+            tile = pending.remove(id);
+            if (tile == null)
+                return;
+            int cell = tile.getRow() * board.DIM + tile.getCol();
+            // a newer placement on the same cell stays
+            if (Long.valueOf(id).equals(pendingCells.get(cell)))
+                pendingCells.remove(cell);
+        }
+        super.setChanged();
+        super.notifyObservers(board.getTile(tile.getRow(), tile.getCol()));
+    }
+
+    /**
+     * Change a tile in the board, notifying the observers with the tile.
      *
      * @param tile the new tile
      * @rit.pre row and column constitute a valid board coordinate
@@ -68,7 +170,22 @@ public class ClientModel extends Observable {
     public void setTile(PlaceTile tile) {
         board.setTile(tile);
         super.setChanged();
-        super.notifyObservers();
+        super.notifyObservers(tile);
+    }
+
+    /**
+     * Change a batch of tiles in the board, notifying the observers only once
+     * with the list of tiles changed.
+     *
+     * @param tiles the new tiles
+     * @rit.pre rows and columns constitute valid board coordinates
+     */
+    public void setTiles(Collection<PlaceTile> tiles) {
+        for (PlaceTile tile : tiles)
+            board.setTile(tile);
+        super.setChanged();
+        // a copy, since the caller may reuse the collection before an observer gets to it
+        super.notifyObservers(Collections.unmodifiableList(new ArrayList<>(tiles)));
     }
 
     /**
@@ -0,0 +1,419 @@
+package place.client.network;
+
+import place.PlaceBoard;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.BoardDiff;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+import place.network.SwitchableInputStream;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client for programs rather than people: bots, load generators and
+ * integrations.  Nothing blocks the caller.  Connecting and placing return
+ * futures, changes are delivered to listeners, and placements are pipelined:
+ * many can be in flight at once, and the writer flushes them together.  Each
+ * client has its own socket and threads and nothing is shared between them,
+ * so a program can run as many clients as it likes.  Nothing is printed and
+ * nothing exits; failures complete the futures exceptionally.
+ *
+ * A placement's future completes when the server answers its id with PLACED,
+ * by which time the client's board holds the change, or fails with a
+ * PlaceException when the server refuses it or the connection is lost.
+ */
+public class AsyncPlaceClient implements AutoCloseable {
+    /**
+     * Told about the changes to the board.  Listeners are called on the
+     * client's reading thread, in the order the changes arrive, so they
+     * should hand any slow work to a thread of their own.
+     */
+    public interface Listener {
+        /**
+         * Tiles have changed.
+         *
+         * @param tiles the new tiles
+         */
+        void tilesChanged(List<PlaceTile> tiles);
+
+        /**
+         * The connection has ended.
+         *
+         * @param cause why, or null if the client was closed
+         */
+        default void disconnected(Throwable cause) {
+        }
+    }
+
+    /** Put in the outgoing queue to stop the writing thread */
+    private static final PlaceRequest<?> END = new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "end");
+
+    /** The number of requests written between resets of the output stream */
+    private static final int RESET_EVERY = 1024;
+
+    /** The socket to the server */
+    private final Socket socket;
+
+    /** The username the client logged in with */
+    private final String username;
+
+    /** The board, kept up to date by the reading thread */
+    private PlaceBoard board;
+
+    /** Reads from the server */
+    private ObjectInputStream in;
+
+    /** Writes to the server; only used by the writing thread once logged in */
+    private ObjectOutputStream out;
+
+    /** The requests waiting to be written */
+    private final LinkedBlockingQueue<PlaceRequest<?>> outgoing = new LinkedBlockingQueue<>();
+
+    /** The placements waiting for an answer, by id; completed with the data of the PLACED */
+    private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+
+    /** The id of the last placement sent */
+    private final AtomicLong lastId = new AtomicLong();
+
+    /** The listeners */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Whether the client has been closed or lost its connection */
+    private volatile boolean closed = false;
+
+    /**
+     * Wrap a socket that is not connected yet; the reading thread connects it and logs in.
+     *
+     * @param socket the unconnected socket
+     * @param username the name to log in with
+     */
+    private AsyncPlaceClient(Socket socket, String username) {
+        this.socket = socket;
+        this.username = username;
+    }
+
+    /**
+     * Connect to a server's default canvas and log in.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @param username the name to log in with
+     * @return the client, once it has the board
+     */
+    public static CompletableFuture<AsyncPlaceClient> connect(String host, int port, String username) {
+        return connect(host, port, username, "");
+    }
+
+    /**
+     * Connect to a canvas of a server and log in.  The connection is made
+     * on the client's own reading thread, so this returns at once.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @param username the name to log in with
+     * @param canvas the canvas to join, or "" for the default canvas
+     * @return the client, once it has the board; fails with a PlaceException
+     *         if the server can't be reached or refuses the login
+     */
+    public static CompletableFuture<AsyncPlaceClient> connect(String host, int port, String username,
+                                                              String canvas) {
+        CompletableFuture<AsyncPlaceClient> connected = new CompletableFuture<>();
+        AsyncPlaceClient client = new AsyncPlaceClient(new Socket(), username);
+        Thread reader = new Thread(() -> client.run(host, port, canvas, connected), "ASYNCPLACECLIENT");
+        reader.setDaemon(true);
+        reader.start();
+        return connected;
+    }
+
+    /**
+     * Get the username the client logged in with.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Get the board.  It is the client's live board, changed by the reading
+     * thread as changes arrive.
+     *
+     * @return the board
+     */
+    public PlaceBoard getBoard() {
+        return board;
+    }
+
+    /**
+     * Start telling a listener about changes.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stop telling a listener about changes.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the number of placements sent and not yet answered.
+     *
+     * @return the number in flight
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Place a tile.  This only queues it, so any number of placements can be
+     * sent without waiting for the answers.
+     *
+     * @param tile the tile
+     * @return the tile, once the server has placed it
+     */
+    public CompletableFuture<PlaceTile> place(PlaceTile tile) {
+        return send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile, lastId.incrementAndGet()))
+                .thenApply(placed -> (PlaceTile) placed);
+    }
+
+    /**
+     * Place many tiles in one request.  The server places all of them, or
+     * none if any is off the board, and tells the other clients about them
+     * together.
+     *
+     * @param tiles the tiles
+     * @return the tiles, once the server has placed them
+     */
+    public CompletableFuture<List<PlaceTile>> placeAll(List<PlaceTile> tiles) {
+        return send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, new ArrayList<>(tiles),
+                lastId.incrementAndGet()))
+                .thenApply(placed -> {
+                    List<PlaceTile> list = new ArrayList<>();
+                    for (Object tile : (List<?>) placed)
+                        list.add((PlaceTile) tile);
+                    return list;
+                });
+    }
+
+    /**
+     * Queue a request that the server answers by its id.
+     *
+     * @param req the request
+     * @return the data of the server's PLACED answer
+     */
+    private CompletableFuture<Object> send(PlaceRequest<?> req) {
+        CompletableFuture<Object> placed = new CompletableFuture<>();
+        if (closed) {
+            placed.completeExceptionally(new PlaceException("Not connected"));
+            return placed;
+        }
+        pending.put(req.getId(), placed);
+        outgoing.add(req);
+        // closed while it was queued: make sure it doesn't wait forever
+        if (closed)
+            fail(new PlaceException("Not connected"));
+        return placed;
+    }
+
+    /**
+     * Close the connection.  Placements still waiting fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        outgoing.add(END);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * Connect, log in, and then read from the server until the connection
+     * ends.  Runs on the reading thread.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @param canvas the canvas to join
+     * @param connected completed once the client has the board
+     */
+    private void run(String host, int port, String canvas, CompletableFuture<AsyncPlaceClient> connected) {
+        Throwable cause = null;
+        try {
+            login(host, port, canvas);
+            Thread writer = new Thread(this::writeLoop, "ASYNCPLACECLIENTWRITER");
+            writer.setDaemon(true);
+            writer.start();
+            connected.complete(this);
+            while (!closed)
+                received((PlaceRequest<?>) in.readUnshared());
+        } catch (PlaceException e) {
+            cause = e;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            cause = closed ? null : new PlaceException("Lost connection to server", e);
+        }
+        closed = true;
+        outgoing.add(END);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // squash
+        }
+        if (!connected.isDone()) {
+            connected.completeExceptionally(cause != null ? cause : new PlaceException("Not connected"));
+            return;
+        }
+        fail(cause != null ? cause : new PlaceException("Connection closed"));
+        for (Listener listener : listeners)
+            listener.disconnected(cause);
+    }
+
+    /**
+     * Connect and log in, asking for compression, and read the board.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @param canvas the canvas to join
+     * @throws PlaceException if the server refuses the login
+     * @throws IOException if the connection fails
+     * @throws ClassNotFoundException if the server sends something unknown
+     */
+    private void login(String host, int port, String canvas)
+            throws PlaceException, IOException, ClassNotFoundException {
+        try {
+            socket.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            throw new PlaceException("Can't connect to " + host + ":" + port, e);
+        }
+        out = new ObjectOutputStream(socket.getOutputStream());
+        out.flush();
+        SwitchableInputStream rawIn = new SwitchableInputStream(socket.getInputStream());
+        in = new ObjectInputStream(rawIn);
+        out.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                new PlaceLogin(username, canvas, PlaceLogin.DEFLATE)));
+        out.flush();
+        PlaceRequest<?> reply = (PlaceRequest<?>) in.readUnshared();
+        if (reply.getType() == PlaceRequest.RequestType.ERROR)
+            throw new PlaceException(String.valueOf(reply.getData()));
+        if (reply.getType() != PlaceRequest.RequestType.LOGIN_SUCCESS)
+            throw new PlaceException("Unexpected reply to login: " + reply.getType());
+        if (reply.getData() instanceof PlaceLogin && ((PlaceLogin) reply.getData()).has(PlaceLogin.DEFLATE))
+            rawIn.startInflating();
+        PlaceRequest<?> boardReq = (PlaceRequest<?>) in.readUnshared();
+        if (boardReq.getType() != PlaceRequest.RequestType.BOARD)
+            throw new PlaceException("Expected the board, got " + boardReq.getType());
+        board = (PlaceBoard) boardReq.getData();
+    }
+
+    /**
+     * Handle one request from the server.
+     *
+     * @param req the request
+     */
+    private void received(PlaceRequest<?> req) {
+        switch (req.getType()) {
+            case TILE_CHANGED:
+                changed(Collections.singletonList((PlaceTile) req.getData()));
+                break;
+            case TILES_CHANGED:
+                List<PlaceTile> tiles = new ArrayList<>();
+                for (Object tile : (List<?>) req.getData())
+                    tiles.add((PlaceTile) tile);
+                changed(tiles);
+                break;
+            case CHUNK_DIFF:
+                changed(((BoardDiff) req.getData()).getTiles());
+                break;
+            case PLACED:
+                CompletableFuture<Object> placed = pending.remove(req.getId());
+                if (placed != null)
+                    placed.complete(req.getData());
+                break;
+            case ERROR:
+                CompletableFuture<Object> refused = pending.remove(req.getId());
+                if (refused != null)
+                    refused.completeExceptionally(new PlaceException(String.valueOf(req.getData())));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Apply changes to the board and tell the listeners.
+     *
+     * @param tiles the new tiles
+     */
+    private void changed(List<PlaceTile> tiles) {
+        for (PlaceTile tile : tiles)
+            board.setTile(tile);
+        List<PlaceTile> view = Collections.unmodifiableList(tiles);
+        for (Listener listener : listeners)
+            listener.tilesChanged(view);
+    }
+
+    /**
+     * Fail every placement still waiting.
+     *
+     * @param cause why
+     */
+    private void fail(Throwable cause) {
+        for (Long id : new ArrayList<>(pending.keySet())) {
+            CompletableFuture<Object> placed = pending.remove(id);
+            if (placed != null)
+                placed.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Write the queued requests until the client closes, flushing only when
+     * the queue is empty so that pipelined placements go out together.
+     * Runs on the writing thread.
+     */
+    private void writeLoop() {
+        int sinceReset = 0;
+        try {
+            while (true) {
+                PlaceRequest<?> req = outgoing.take();
+                while (req != null) {
+                    if (req == END)
+                        return;
+                    out.writeUnshared(req);
+                    if (++sinceReset >= RESET_EVERY) {
+                        out.reset();
+                        sinceReset = 0;
+                    }
+                    req = outgoing.poll();
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the reading thread sees the connection fail too
+            close();
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package place.client.network;
+
+import place.BoardHashTree;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The copy of a server's board that a client keeps on disk between runs, so
+ * that when it logs in again only the chunks that changed in the meantime have
+ * to be downloaded.
+ *
+ * The cache file is stored chunk by chunk: each chunk's hash is followed by
+ * its tiles.  The hashes are loaded straight into a {@link BoardHashTree}
+ * rather than computed again.
+ */
+public class BoardCache {
+    /** Marks the start of a cache file */
+    private static final int MAGIC = 0x504c4343;
+
+    /** The cache file */
+    private final File file;
+
+    /**
+     * Create the cache for a server's default canvas.  Caches live in
+     * ~/.place, one file per host, port and canvas.
+     *
+     * @param hostname the server's host
+     * @param port the server's port
+     */
+    public BoardCache(String hostname, int port) {
+        this(hostname, port, "");
+    }
+
+    /**
+     * Create the cache for one canvas of a server.
+     *
+     * @param hostname the server's host
+     * @param port the server's port
+     * @param canvas the canvas, or "" for the default canvas
+     */
+    public BoardCache(String hostname, int port, String canvas) {
+        File dir = new File(System.getProperty("user.home"), ".place");
+        String name = hostname + "_" + port + (canvas.isEmpty() ? "" : "_" + canvas);
+        this.file = new File(dir, name.replaceAll("[^A-Za-z0-9._-]", "_") + ".cache");
+    }
+
+    /**
+     * Load the cached board.
+     *
+     * @return the hash tree of the cached board (with the board attached), or
+     *         null if there is no usable cache
+     */
+    public BoardHashTree load() {
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), 1 << 16)))) {
+            if (in.readInt() != MAGIC || in.readInt() != BoardHashTree.CHUNK)
+                return null;
+            int DIM = in.readInt();
+            PlaceBoard board = new PlaceBoard(DIM);
+            int chunksPerSide = (DIM + BoardHashTree.CHUNK - 1) / BoardHashTree.CHUNK;
+            long[] hashes = new long[chunksPerSide * chunksPerSide];
+            PlaceColor[] colors = PlaceColor.values();
+            for (int chunk = 0; chunk < hashes.length; ++chunk) {
+                hashes[chunk] = in.readLong();
+                int firstRow = (chunk / chunksPerSide) * BoardHashTree.CHUNK;
+                int firstCol = (chunk % chunksPerSide) * BoardHashTree.CHUNK;
+                for (int row = firstRow; row < Math.min(DIM, firstRow + BoardHashTree.CHUNK); ++row) {
+                    for (int col = firstCol; col < Math.min(DIM, firstCol + BoardHashTree.CHUNK); ++col) {
+                        PlaceColor color = colors[in.readUnsignedByte()];
+                        long time = in.readLong();
+                        String owner = in.readUTF();
+                        board.setTile(new PlaceTile(row, col, owner, color, time));
+                    }
+                }
+            }
+            return new BoardHashTree(board, hashes);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable board cache " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save a board to the cache.  The file is written to the side and then
+     * moved into place, so a failed save never leaves a broken cache.
+     *
+     * @param board the board
+     */
+    public void save(PlaceBoard board) {
+        BoardHashTree tree = new BoardHashTree(board);
+        File temp = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(temp), 1 << 16)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(BoardHashTree.CHUNK);
+                out.writeInt(board.DIM);
+                for (int chunk = 0; chunk < tree.chunkCount(); ++chunk) {
+                    out.writeLong(tree.chunkHash(chunk));
+                    for (PlaceTile tile : tree.chunkTiles(chunk)) {
+                        out.writeByte(tile.getColor().getNumber());
+                        out.writeLong(tile.getTime());
+                        out.writeUTF(tile.getOwner() == null ? "" : tile.getOwner());
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not save board cache " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package place.client.network;
+
+import place.PlaceBoard;
+import place.PlaceException;
+import place.PlaceTile;
+import place.client.model.ClientModel;
+import place.network.MulticastProtocol;
+import place.network.TileCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Follows a board through a server's multicast feed, for displays that
+ * only watch.  The receiver starts from a snapshot fetched over the repair
+ * channel, then applies the multicast changes in sequence order.  Datagrams
+ * that arrive after a gap are held back while the missing changes are fetched
+ * over the repair channel; when they are too old for the server's history the
+ * receiver starts over from a fresh snapshot.
+ */
+public class MulticastReceiver {
+    /** The model the changes are applied to */
+    private ClientModel model;
+
+    /** The socket joined to the multicast group */
+    private final MulticastSocket socket;
+
+    /** The server's repair channel host */
+    private final String repairHost;
+
+    /** The server's repair channel port */
+    private final int repairPort;
+
+    /** The repair connection, or null until it is needed */
+    private Socket repair;
+
+    /** Reads repair answers */
+    private DataInputStream repairIn;
+
+    /** Writes repair requests */
+    private DataOutputStream repairOut;
+
+    /** The sequence number of the next change to apply */
+    private long next;
+
+    /** Changes that arrived after a gap, by the sequence number of their first change */
+    private final TreeMap<Long, List<PlaceTile>> held = new TreeMap<>();
+
+    /** The fraction of datagrams to throw away, to try out the repairs */
+    private final double drop;
+
+    /** Picks the datagrams to throw away */
+    private final Random random = new Random();
+
+    /** The number of changes applied, repaired, and the number of snapshots loaded */
+    private long applied, repaired, snapshots;
+
+    /**
+     * Join a feed and load the current board.
+     *
+     * @param group the multicast group
+     * @param port the multicast port
+     * @param networkInterface the interface to receive on, or null for the default
+     * @param repairHost the host of the server's repair channel
+     * @param repairPort the port of the server's repair channel
+     * @param drop the fraction of datagrams to throw away, normally 0
+     * @throws PlaceException if the feed can't be joined or the board can't be loaded
+     */
+    public MulticastReceiver(InetAddress group, int port, NetworkInterface networkInterface,
+                             String repairHost, int repairPort, double drop) throws PlaceException {
+        this.repairHost = repairHost;
+        this.repairPort = repairPort;
+        this.drop = drop;
+        try {
+            socket = new MulticastSocket(port);
+            socket.joinGroup(new InetSocketAddress(group, port), networkInterface);
+            // join first so that nothing published after the snapshot is missed
+            requestRepair(-1, -1);
+        } catch (IOException e) {
+            throw new PlaceException(e);
+        }
+    }
+
+    /**
+     * Get the model the changes are applied to.
+     *
+     * @return the model
+     */
+    public ClientModel getModel() {
+        return model;
+    }
+
+    /**
+     * Receive and apply datagrams until the socket fails.  Runs on the calling thread.
+     */
+    public void run() {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (drop > 0 && random.nextDouble() < drop)
+                    continue;
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+                if (in.readInt() != MulticastProtocol.MAGIC)
+                    continue;
+                long first = in.readLong();
+                int count = in.readUnsignedShort();
+                List<PlaceTile> tiles = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i)
+                    tiles.add(TileCodec.read(in));
+                received(first, tiles);
+            } catch (IOException e) {
+                System.err.println("Multicast feed failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply a run of changes, holding it back if changes before it are missing.
+     *
+     * @param first the sequence number of the first change
+     * @param tiles the changes; empty for a heartbeat
+     * @throws IOException if the repair channel fails
+     */
+    private void received(long first, List<PlaceTile> tiles) throws IOException {
+        if (first > next) {
+            if (!tiles.isEmpty())
+                held.put(first, tiles);
+            requestRepair(next, first - 1);
+        } else {
+            apply(first, tiles);
+        }
+        // anything held back that now follows on can be applied
+        Map.Entry<Long, List<PlaceTile>> entry;
+        while ((entry = held.firstEntry()) != null && entry.getKey() <= next) {
+            held.remove(entry.getKey());
+            apply(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Apply the part of a run of changes that hasn't been applied yet.
+     *
+     * @param first the sequence number of the first change, at most next
+     * @param tiles the changes
+     */
+    private void apply(long first, List<PlaceTile> tiles) {
+        long end = first + tiles.size();
+        if (end <= next)
+            return;
+        List<PlaceTile> fresh = tiles.subList((int) (next - first), tiles.size());
+        model.setTiles(fresh);
+        applied += fresh.size();
+        next = end;
+    }
+
+    /**
+     * Fetch missing changes over the repair channel and apply them, or load a
+     * snapshot if the server no longer has them.
+     *
+     * @param from the first missing change, or -1 for a snapshot
+     * @param to the last missing change
+     * @throws IOException if the repair channel fails
+     */
+    private void requestRepair(long from, long to) throws IOException {
+        if (repair == null) {
+            repair = new Socket(repairHost, repairPort);
+            repairIn = new DataInputStream(new BufferedInputStream(repair.getInputStream()));
+            repairOut = new DataOutputStream(new BufferedOutputStream(repair.getOutputStream()));
+        }
+        repairOut.writeLong(from);
+        repairOut.writeLong(to);
+        repairOut.flush();
+        if (repairIn.readByte() == MulticastProtocol.REPAIR_CHANGES) {
+            long first = repairIn.readLong();
+            int count = repairIn.readInt();
+            List<PlaceTile> tiles = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+                tiles.add(TileCodec.read(repairIn));
+            repaired += count;
+            apply(first, tiles);
+        } else {
+            long first = repairIn.readLong();
+            int DIM = repairIn.readInt();
+            PlaceBoard board = new PlaceBoard(DIM);
+            for (int i = 0; i < DIM * DIM; ++i)
+                board.setTile(TileCodec.read(repairIn));
+            if (model == null || model.getBoard().DIM != DIM)
+                model = new ClientModel(board);
+            else
+                model.setTiles(tilesOf(board));
+            ++snapshots;
+            next = first;
+            held.headMap(first).clear();
+        }
+    }
+
+    /**
+     * List every tile of a board.
+     *
+     * @param board the board
+     * @return the tiles, row by row
+     */
+    private static List<PlaceTile> tilesOf(PlaceBoard board) {
+        List<PlaceTile> tiles = new ArrayList<>(board.DIM * board.DIM);
+        for (PlaceTile[] row : board.getBoard()) {
+            for (PlaceTile tile : row)
+                tiles.add(tile);
+        }
+        return tiles;
+    }
+
+    @Override
+    public String toString() {
+        return "next change " + next + ", " + applied + " applied, " + repaired + " repaired, " +
+                snapshots + " snapshots";
+    }
+
+    /**
+     * Follow a feed and print how far the receiver has got every few seconds.
+     *
+     * @param args the group, port, repair host and repair port, and optionally
+     *             the interface and the fraction of datagrams to drop
+     */
+    public static void main(String[] args) {
+        if (args.length < 4 || args.length > 6) {
+            System.err.println("Usage: java MulticastReceiver group port repairhost repairport [interface] [drop]");
+            System.exit(1);
+        }
+        try {
+            NetworkInterface networkInterface = args.length > 4 ? NetworkInterface.getByName(args[4]) : null;
+            double drop = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+            MulticastReceiver receiver = new MulticastReceiver(InetAddress.getByName(args[0]),
+                    Integer.parseInt(args[1]), networkInterface, args[2], Integer.parseInt(args[3]), drop);
+            Thread status = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.out.println(receiver);
+                }
+            }, "MULTICASTSTATUS");
+            status.setDaemon(true);
+            status.start();
+            receiver.run();
+        } catch (PlaceException | IOException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
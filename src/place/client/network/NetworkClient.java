@@ -1,21 +1,30 @@
 package place.client.network;
 
+import place.BoardHashTree;
 import place.PlaceBoard;
 import place.PlaceColor;
 import place.PlaceException;
 import place.PlaceTile;
 import place.client.model.ClientModel;
+import place.network.BoardDiff;
+import place.network.PlaceLogin;
 import place.network.PlaceRequest;
+import place.network.SwitchableInputStream;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
@@ -47,6 +56,11 @@ public class NetworkClient {
      */
     private ObjectInputStream in;
 
+    /**
+     * The stream under in, which starts decompressing once the server says it compresses
+     */
+    private SwitchableInputStream rawIn;
+
     /**
      * The ObjectInputStream that will convert the serialized objects from the server
      */
@@ -77,6 +91,38 @@ public class NetworkClient {
      */
     private String username;
 
+    /**
+     * The canvas to join, or "" for the server's default canvas
+     */
+    private String canvas;
+
+    /**
+     * The on-disk copy of this server's board from the last session
+     */
+    private BoardCache cache;
+
+    /**
+     * The changes and answers read from the server and not yet applied to the model, in the
+     * order they arrived.  The reading thread only decodes messages into it, so drawing the
+     * changes never slows down reading them.  Changes are queued as TILES_CHANGED.
+     */
+    private final LinkedBlockingQueue<PlaceRequest<?>> received = new LinkedBlockingQueue<>();
+
+    /**
+     * Put in the queue when the connection ends, to stop the applying thread
+     */
+    private static final PlaceRequest<?> END = new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "end");
+
+    /**
+     * The id of the last placement sent
+     */
+    private final AtomicLong lastId = new AtomicLong();
+
+    /**
+     * The most queued messages applied to the model as one batch
+     */
+    private static final int MAX_BATCH = 1024;
+
     /**
      * Accessor that takes multithreaded access into account
      *
@@ -110,22 +156,44 @@ public class NetworkClient {
      */
     public NetworkClient( String hostname, int port, String username)
             throws PlaceException {
+        this(hostname, port, username, "");
+    }
+
+    /**
+     * Hook up with one canvas of a server that hosts several.
+     *
+     * @param hostname the name of the host running the server program
+     * @param port     the port of the server socket on which the server is
+     *                 listening
+     * @param username the username of the user trying to connect
+     * @param canvas   the canvas to join, or "" for the default canvas
+     * @throws PlaceException If there is a problem opening the connection
+     */
+    public NetworkClient( String hostname, int port, String username, String canvas)
+            throws PlaceException {
         try {
             this.sock = new Socket(hostname, port);
             this.username = username;
+            this.canvas = canvas;
+            this.cache = new BoardCache(hostname, port, canvas);
             out = new ObjectOutputStream(sock.getOutputStream());
             out.flush();
-            in = new ObjectInputStream(sock.getInputStream());
+            rawIn = new SwitchableInputStream(sock.getInputStream());
+            in = new ObjectInputStream(rawIn);
 
 
             connect();
 
-            // Run rest of client in separate thread.
-            // This threads stops on its own at the end of the game and
-            // does not need to rendez-vous with other software components.
+            // Run rest of client in separate threads: one reads from the
+            // server, the other applies what it read to the model.
+            // These threads stop on their own at the end of the game and
+            // do not need to rendez-vous with other software components.
+            this.go = true;
+            Thread applier = new Thread( () -> this.apply(), "NETWORKCLIENTAPPLIER" );
+            applier.setDaemon(true);
+            applier.start();
             Thread netThread = new Thread( () -> this.run() );
             netThread.start();
-            this.go = true;
         }
         catch( IOException e ) {
             throw new PlaceException( e );
@@ -136,14 +204,21 @@ public class NetworkClient {
     /**
      * Called by the constructor to set up the game board for this player now
      * that the server has sent the board with the
-     * PlaceRequest.BOARD request.
+     * PlaceRequest.BOARD request.  If a board from an earlier session is
+     * cached, its hash tree is sent first and the server answers with only
+     * the chunks that changed (PlaceRequest.CHUNKS).
      *
      * @throws PlaceRequest if the dimensions are invalid
      */
     public void connect() throws PlaceException {
         PlaceBoard board;
         try {
-            PlaceRequest<String> loginReq = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, username);
+            BoardHashTree cached = cache.load();
+            if (cached != null) {
+                out.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.SYNC, cached));
+            }
+            PlaceRequest<PlaceLogin> loginReq = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                    new PlaceLogin(username, canvas, PlaceLogin.DEFLATE));
             out.writeUnshared(loginReq);
             out.flush();
             PlaceRequest<?> req = (PlaceRequest<?>) in.readUnshared();
@@ -152,12 +227,29 @@ public class NetworkClient {
                 }
 
                 if (req.getType() == PlaceRequest.RequestType.LOGIN_SUCCESS) {
-                    System.out.println(req.getData());
+                    if (req.getData() instanceof PlaceLogin) {
+                        PlaceLogin accepted = (PlaceLogin) req.getData();
+                        if (accepted.has(PlaceLogin.DEFLATE))
+                            rawIn.startInflating();
+                        System.out.println("Connection Successful." +
+                                (accepted.has(PlaceLogin.DEFLATE) ? " (compressed)" : ""));
+                    } else {
+                        System.out.println(req.getData());
+                    }
                     PlaceRequest<?> boardReq = (PlaceRequest<?>) in.readUnshared();
                     if (boardReq.getType() == PlaceRequest.RequestType.BOARD) {
                          board = (PlaceBoard) boardReq.getData();
                          model = new ClientModel(board);
                     }
+                    else if (boardReq.getType() == PlaceRequest.RequestType.CHUNKS && cached != null) {
+                        board = cached.getBoard();
+                        @SuppressWarnings("unchecked")
+                        ArrayList<PlaceTile> tiles = (ArrayList<PlaceTile>) boardReq.getData();
+                        for (PlaceTile tile : tiles)
+                            board.setTile(tile);
+                        System.out.println("Updated " + tiles.size() + " tiles of the cached board");
+                        model = new ClientModel(board);
+                    }
                 }
                 else {
                     if (req.getType() == PlaceRequest.RequestType.ERROR) {
@@ -181,7 +273,6 @@ public class NetworkClient {
      */
     public void moveMade(PlaceTile tile) {
         model.setTile(tile);
-        System.out.println(model);
     }
 
     /**
@@ -207,6 +298,8 @@ public class NetworkClient {
      * close the client connection.
      */
     public void close() {
+        if (model != null)
+            cache.save(model.getBoard());
         try {
             this.sock.close();
         }
@@ -262,21 +355,79 @@ public class NetworkClient {
                        break;
         }
 
+        // shown at once, and settled when the server answers the id
         PlaceTile tile = new PlaceTile(row, col, username, tileColor, System.currentTimeMillis());
+        long id = lastId.incrementAndGet();
+        if (model.isValid(tile))
+            model.place(tile, id);
         PlaceRequest<PlaceTile> newTileReq = new PlaceRequest<>
-                (PlaceRequest.RequestType.CHANGE_TILE, tile);
+                (PlaceRequest.RequestType.CHANGE_TILE, tile, id);
         try {
-            out.writeUnshared(newTileReq);
-            out.flush();
+            synchronized (out) {
+                out.writeUnshared(newTileReq);
+                out.flush();
+            }
         } catch (IOException e) {
+            model.rollback(id);
             e.printStackTrace();
         }
     }
 
+    /**
+     * Apply the changes the reading thread queues to the model.  Whatever has
+     * piled up since the last batch is applied at once, with one notification
+     * to the model's observers.  An answer to a placement is applied after
+     * the changes queued before it, so the board has the change by then.
+     * Runs on its own thread until the connection ends.
+     */
+    private void apply() {
+        List<PlaceRequest<?>> messages = new ArrayList<>();
+        List<PlaceTile> batch = new ArrayList<>();
+        try {
+            while (true) {
+                messages.clear();
+                messages.add(received.take());
+                received.drainTo(messages, MAX_BATCH - 1);
+                batch.clear();
+                for (PlaceRequest<?> req : messages) {
+                    if (req.getType() == PlaceRequest.RequestType.TILES_CHANGED) {
+                        for (Object tile : (List<?>) req.getData())
+                            batch.add((PlaceTile) tile);
+                        continue;
+                    }
+                    applyBatch(batch);
+                    if (req == END)
+                        return;
+                    if (req.getType() == PlaceRequest.RequestType.PLACED)
+                        model.confirm(req.getId());
+                    else
+                        model.rollback(req.getId());
+                }
+                applyBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            // the client is shutting down
+        }
+    }
+
+    /**
+     * Apply a batch of changes to the model and empty it.
+     *
+     * @param batch the changes
+     */
+    private void applyBatch(List<PlaceTile> batch) {
+        if (batch.size() == 1)
+            moveMade(batch.get(0));
+        else if (!batch.isEmpty())
+            model.setTiles(batch);
+        batch.clear();
+    }
+
     /**
      * Run the main client loop. Intended to be started as a separate
      * thread internally. This method is made private so that no one
-     * outside will call it or try to start a thread on it.
+     * outside will call it or try to start a thread on it.  It only reads
+     * and decodes messages; the changes go to the applying thread.
      */
     private void run() {
 
@@ -285,10 +436,24 @@ public class NetworkClient {
                 PlaceRequest<?> newReq = (PlaceRequest<?>) in.readUnshared();
                 switch ( newReq.getType() ) {
                     case ERROR:
+                        // a refused placement
+                        if (newReq.getId() != 0)
+                            received.add(newReq);
+                        break;
+                    case PLACED:
+                        received.add(newReq);
                         break;
                     case TILE_CHANGED:
                         PlaceTile tile = (PlaceTile) newReq.getData();
-                        moveMade(tile);
+                        received.add(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED,
+                                new ArrayList<>(Collections.singletonList(tile))));
+                        break;
+                    case TILES_CHANGED:
+                        received.add(newReq);
+                        break;
+                    case CHUNK_DIFF:
+                        received.add(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED,
+                                new ArrayList<>(((BoardDiff) newReq.getData()).getTiles())));
                         break;
                     default:
                         System.err
@@ -307,6 +472,7 @@ public class NetworkClient {
                 this.stop();
             }
         }
+        received.add(END);
         this.close();
     }
 
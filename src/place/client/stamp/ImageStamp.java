@@ -0,0 +1,109 @@
+package place.client.stamp;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+import place.client.network.AsyncPlaceClient;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Places an image on the board.  The image is converted to the board's colors
+ * by a {@link PaletteQuantizer} and every pixel of it that lands on the board
+ * is sent in a single CHANGE_TILES request, so the server places the whole
+ * image at once and the other clients see it arrive together.
+ */
+public class ImageStamp {
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /**
+     * Turn an image into tiles, with its top left corner at a cell of the
+     * board.  Transparent pixels and pixels off the board are left out.
+     *
+     * @param image the image
+     * @param row the row of the image's top left corner
+     * @param col the column of the image's top left corner
+     * @param DIM the side of the board
+     * @param username the owner of the tiles
+     * @param dither whether to dither the image
+     * @return the tiles
+     */
+    public static List<PlaceTile> stamp(BufferedImage image, int row, int col, int DIM, String username,
+                                        boolean dither) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] colors = PaletteQuantizer.quantize(argb, width, height, dither);
+        List<PlaceTile> tiles = new ArrayList<>();
+        long time = System.currentTimeMillis();
+        for (int y = Math.max(0, -row); y < height && row + y < DIM; ++y) {
+            for (int x = Math.max(0, -col); x < width && col + x < DIM; ++x) {
+                int color = colors[y * width + x];
+                if (color != PaletteQuantizer.TRANSPARENT)
+                    tiles.add(new PlaceTile(row + y, col + x, username, COLORS[color], time));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Stamp an image on a server's board.
+     *
+     * @param args host port username image row col [-dither] [-canvas name]
+     */
+    public static void main(String[] args) {
+        if (args.length < 6) {
+            System.err.println("Usage: java ImageStamp host port username image row col [-dither] [-canvas name]");
+            System.exit(1);
+        }
+        boolean dither = false;
+        String canvas = "";
+        for (int i = 6; i < args.length; ++i) {
+            if (args[i].equals("-dither")) {
+                dither = true;
+            } else if (args[i].equals("-canvas") && i + 1 < args.length) {
+                canvas = args[++i];
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        try {
+            BufferedImage image = ImageIO.read(new File(args[3]));
+            if (image == null) {
+                System.err.println("Can't read " + args[3] + " as an image");
+                System.exit(1);
+            }
+            AsyncPlaceClient client = AsyncPlaceClient.connect(args[0], Integer.parseInt(args[1]), args[2],
+                    canvas).join();
+            PlaceBoard board = client.getBoard();
+            long start = System.nanoTime();
+            List<PlaceTile> tiles = stamp(image, Integer.parseInt(args[4]), Integer.parseInt(args[5]), board.DIM,
+                    client.getUsername(), dither);
+            System.out.println("Converted " + image.getWidth() + "x" + image.getHeight() + " in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+            if (tiles.isEmpty()) {
+                System.out.println("Nothing to place");
+            } else {
+                List<PlaceTile> placed = client.placeAll(tiles).join();
+                System.out.println("Placed " + placed.size() + " tiles");
+            }
+            client.close();
+        } catch (IOException e) {
+            System.err.println("Can't read " + args[3] + ": " + e.getMessage());
+            System.exit(1);
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            System.err.println(cause instanceof PlaceException ? cause.getMessage() : cause.toString());
+            System.exit(1);
+        }
+    }
+}
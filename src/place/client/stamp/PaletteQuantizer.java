@@ -0,0 +1,178 @@
+package place.client.stamp;
+
+import place.PlaceColor;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Turns RGB pixels into the 16 colors of the board.  The nearest color of
+ * every RGB value, cut to 5 bits a channel, is worked out once into a lookup
+ * table of 32x32x32 entries, so converting a pixel is a single array read
+ * instead of a search of the palette.
+ *
+ * With dithering the error of each pixel is spread to its neighbors
+ * (Floyd-Steinberg) so that gradients come out as mixes of the palette.  The
+ * image is cut into strips of rows that are dithered in parallel; the error
+ * doesn't cross from one strip to the next, which leaves faint seams but
+ * keeps the strips independent.
+ */
+public class PaletteQuantizer {
+    /** The bits kept of each channel for the lookup */
+    private static final int BITS = 5;
+
+    /** The entries of the lookup for each channel */
+    private static final int SIDE = 1 << BITS;
+
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** The number of the nearest color, by (r >> 3) << 10 | (g >> 3) << 5 | b >> 3 */
+    private static final byte[] NEAREST = new byte[SIDE * SIDE * SIDE];
+
+    /** The rows of the image in a strip dithered on its own */
+    private static final int STRIP = 64;
+
+    /** The color number of pixels that aren't placed */
+    public static final int TRANSPARENT = -1;
+
+    static {
+        for (int r = 0; r < SIDE; ++r) {
+            for (int g = 0; g < SIDE; ++g) {
+                for (int b = 0; b < SIDE; ++b) {
+                    // the middle of the cell of RGB values
+                    int red = r << (8 - BITS) | 1 << (7 - BITS);
+                    int green = g << (8 - BITS) | 1 << (7 - BITS);
+                    int blue = b << (8 - BITS) | 1 << (7 - BITS);
+                    NEAREST[r << (2 * BITS) | g << BITS | b] = (byte) search(red, green, blue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the nearest color by searching the palette.
+     *
+     * @param red the red, 0 to 255
+     * @param green the green, 0 to 255
+     * @param blue the blue, 0 to 255
+     * @return the number of the color
+     */
+    private static int search(int red, int green, int blue) {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (PlaceColor color : COLORS) {
+            int dr = red - color.getRed();
+            int dg = green - color.getGreen();
+            int db = blue - color.getBlue();
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = color.getNumber();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the nearest color in the lookup table.
+     *
+     * @param red the red, clamped to 0 to 255
+     * @param green the green, clamped to 0 to 255
+     * @param blue the blue, clamped to 0 to 255
+     * @return the number of the color
+     */
+    public static int nearest(int red, int green, int blue) {
+        red = Math.max(0, Math.min(255, red));
+        green = Math.max(0, Math.min(255, green));
+        blue = Math.max(0, Math.min(255, blue));
+        return NEAREST[(red >> (8 - BITS)) << (2 * BITS) | (green >> (8 - BITS)) << BITS | blue >> (8 - BITS)];
+    }
+
+    /**
+     * Convert an image to color numbers.  Pixels that are mostly transparent
+     * become TRANSPARENT.
+     *
+     * @param argb the pixels, row by row, as ARGB
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param dither whether to spread each pixel's error to its neighbors
+     * @return the color number of each pixel, row by row
+     */
+    public static int[] quantize(int[] argb, int width, int height, boolean dither) {
+        int[] colors = new int[width * height];
+        int strips = (height + STRIP - 1) / STRIP;
+        IntStream.range(0, strips).parallel().forEach(strip -> {
+            int top = strip * STRIP;
+            int bottom = Math.min(height, top + STRIP);
+            if (dither)
+                dither(argb, colors, width, top, bottom);
+            else
+                map(argb, colors, width, top, bottom);
+        });
+        return colors;
+    }
+
+    /**
+     * Convert a strip of rows, each pixel to its nearest color.
+     *
+     * @param argb the pixels
+     * @param colors where the color numbers go
+     * @param width the width of the image
+     * @param top the first row of the strip
+     * @param bottom the row after the strip
+     */
+    private static void map(int[] argb, int[] colors, int width, int top, int bottom) {
+        for (int i = top * width; i < bottom * width; ++i) {
+            int pixel = argb[i];
+            colors[i] = pixel >>> 24 < 128 ? TRANSPARENT
+                    : nearest(pixel >> 16 & 0xff, pixel >> 8 & 0xff, pixel & 0xff);
+        }
+    }
+
+    /**
+     * Convert a strip of rows with Floyd-Steinberg dithering.  The error is
+     * kept for the row being converted and the row after it, in 16ths.
+     *
+     * @param argb the pixels
+     * @param colors where the color numbers go
+     * @param width the width of the image
+     * @param top the first row of the strip
+     * @param bottom the row after the strip
+     */
+    private static void dither(int[] argb, int[] colors, int width, int top, int bottom) {
+        // three channels for each column, with a spare column at each end
+        int[] current = new int[(width + 2) * 3];
+        int[] next = new int[(width + 2) * 3];
+        for (int row = top; row < bottom; ++row) {
+            for (int col = 0; col < width; ++col) {
+                int i = row * width + col;
+                int pixel = argb[i];
+                if (pixel >>> 24 < 128) {
+                    colors[i] = TRANSPARENT;
+                    continue;
+                }
+                int e = (col + 1) * 3;
+                int red = (pixel >> 16 & 0xff) + current[e] / 16;
+                int green = (pixel >> 8 & 0xff) + current[e + 1] / 16;
+                int blue = (pixel & 0xff) + current[e + 2] / 16;
+                int color = nearest(red, green, blue);
+                colors[i] = color;
+                int[] errors = {
+                        Math.max(0, Math.min(255, red)) - COLORS[color].getRed(),
+                        Math.max(0, Math.min(255, green)) - COLORS[color].getGreen(),
+                        Math.max(0, Math.min(255, blue)) - COLORS[color].getBlue()};
+                for (int c = 0; c < 3; ++c) {
+                    current[e + 3 + c] += errors[c] * 7;
+                    next[e - 3 + c] += errors[c] * 3;
+                    next[e + c] += errors[c] * 5;
+                    next[e + 3 + c] += errors[c];
+                }
+            }
+            int[] swap = current;
+            current = next;
+            next = swap;
+            Arrays.fill(next, 0);
+        }
+    }
+}
@@ -2,16 +2,37 @@ package place.client.text;
 
 import place.PlaceBoard;
 import place.PlaceException;
+import place.PlaceTile;
 import place.client.model.ClientModel;
 import place.client.network.NetworkClient;
 
 import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Scanner;
 
+/**
+ * A plain text client.  The board is drawn once and then only the cells that
+ * change are redrawn in place, using ANSI escape codes to move the cursor, at
+ * most every REDRAW milliseconds.  The user's moves are read on a thread of
+ * their own, so changes keep appearing while the user types.
+ */
 public class PlacePTUI extends ConsoleApplication implements Observer {
+    /**
+     * The least time between redraws, in milliseconds; changes that come in sooner wait and
+     * are drawn together
+     */
+    private static final long REDRAW = 100;
+
+    /**
+     * The ANSI escape that starts a control sequence
+     */
+    private static final String CSI = "\033[";
+
     /**
      * local board for the place program
      */
@@ -39,6 +60,21 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
 
     private String username;
 
+    /**
+     * The cells changed since the last redraw, as row * DIM + col; guarded by this
+     */
+    private final BitSet dirty = new BitSet();
+
+    /**
+     * Whether the whole board has to be redrawn; guarded by this
+     */
+    private boolean redrawAll = false;
+
+    /**
+     * Whether the client is still going; guarded by this
+     */
+    private boolean running = true;
+
     /**
      * Create the board model, create the network connection based on
      * command line parameters, and use the first message received to
@@ -53,9 +89,10 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
             String host = args.get( 0 );
             int port = Integer.parseInt( args.get( 1 ) );
             username = args.get(2);
+            String canvas = args.size() > 3 ? args.get(3) : "";
 
             // Create the network connection.
-            this.serverConn = new NetworkClient( host, port, username );
+            this.serverConn = new NetworkClient( host, port, username, canvas );
 
             model = serverConn.getModel();
             board = model.getBoard();
@@ -70,16 +107,14 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
 
 
     /**
-     * This method continues running until the game is over.
-     * That method returns as soon as the setup is done.
-     * This method waits for a notification from {@link #endGame()},
-     * called indirectly from a model update from {@link NetworkClient}.
+     * This method continues running until the user quits, redrawing the
+     * board as it changes.  The user's moves are read on another thread.
      *
      * @param userIn what to read to see what user types
      * @param userOut where to send messages so user can see them
      */
     @Override
-    public synchronized void go( Scanner userIn, PrintWriter userOut ) {
+    public void go( Scanner userIn, PrintWriter userOut ) {
 
         this.userIn = userIn;
         this.userOut = userOut;
@@ -88,16 +123,38 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
         this.model.addObserver(this);
         // Manually force a display of all board state, since it's too late
         // to trigger update().
+        this.drawAll();
+
+        Thread input = new Thread(this::readMoves, "PLACEPTUIINPUT");
+        input.setDaemon(true);
+        input.start();
 
-        this.refresh();
-        Boolean running = true;
-        while (running) {
+        while (true) {
+            BitSet cells;
+            boolean all;
+            synchronized (this) {
+                while (running && !redrawAll && dirty.isEmpty()) {
+                    try {
+                        this.wait();
+                    }
+                    catch( InterruptedException ie ) {}
+                }
+                if (!running)
+                    return;
+                all = redrawAll;
+                cells = (BitSet) dirty.clone();
+                redrawAll = false;
+                dirty.clear();
+            }
+            if (all)
+                drawAll();
+            else
+                drawCells(cells);
             try {
-                this.wait();
+                Thread.sleep(REDRAW);
             }
             catch( InterruptedException ie ) {}
         }
-
     }
 
     /**
@@ -112,48 +169,132 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
     }
 
     private synchronized void endGame() {
+        running = false;
         this.notify();
     }
 
     /**
-     * Update all GUI Nodes to match the state of the model.
-     */
-    private void refresh() {
-            this.userOut.println(model.getBoard());
-            userOut.println("Change tile? (row col color): ");
-            this.userOut.flush();
-            int row = this.userIn.nextInt();
-            //System.out.print(row + " ");
-            int col = this.userIn.nextInt();
-            //System.out.print(col + " ");
-            String color = this.userIn.next();
-            userIn.nextLine();
-            //System.out.print(color + " ");
-            if (this.model.isValid(row, col, color)) {
-                //this.userOut.println(this.userIn.nextLine());
-                this.serverConn.changeTile(row, col, username, color);
+     * Read the user's moves and send them to the server, until the input
+     * ends.  Runs on its own thread.
+     */
+    private void readMoves() {
+        try {
+            while (true) {
+                String[] move = this.userIn.nextLine().trim().split("\\s+");
+                int row, col;
+                try {
+                    row = Integer.parseInt(move[0]);
+                    col = Integer.parseInt(move[1]);
+                }
+                catch( NumberFormatException | ArrayIndexOutOfBoundsException e ) {
+                    prompt("Expected: row col color");
+                    continue;
+                }
+                String color = move.length > 2 ? move[2] : "";
+                if (row >= 0 && col >= 0 && this.model.isValid(row, col, color)) {
+                    this.serverConn.changeTile(row, col, username, color);
+                    prompt("");
+                }
+                else {
+                    prompt("Invalid move: " + row + " " + col + " " + color);
+                }
             }
+        }
+        catch( NoSuchElementException | IllegalStateException e ) {
+            endGame();
+        }
+    }
+
+    /**
+     * Clear the screen and draw the whole board, with the prompt under it.
+     */
+    private void drawAll() {
+        synchronized (userOut) {
+            userOut.print(CSI + "2J" + CSI + "H");
+            userOut.print(model.getBoard());
+            prompt("");
+        }
+        // placements the server hasn't answered yet are shown over the board
+        BitSet cells = new BitSet();
+        for (PlaceTile tile : model.getPending())
+            cells.set(tile.getRow() * board.DIM + tile.getCol());
+        if (!cells.isEmpty())
+            drawCells(cells);
     }
+
     /**
-     * Update the UI when the model calls notify.
-     * Currently no information is passed as to what changed,
-     * so everything is redone.
+     * Redraw the cells that changed in place, leaving the cursor where the
+     * user is typing.
+     *
+     * @param cells the cells, as row * DIM + col
+     */
+    private void drawCells(BitSet cells) {
+        StringBuilder builder = new StringBuilder("\0337");
+        int DIM = board.DIM;
+        for (int cell = cells.nextSetBit(0); cell >= 0; cell = cells.nextSetBit(cell + 1)) {
+            int row = cell / DIM;
+            int col = cell % DIM;
+            // the board is drawn from the second line, as it starts with a newline
+            builder.append(CSI).append(row + 2).append(';').append(col + 1).append('H')
+                    .append(model.getTile(row, col).getColor());
+        }
+        builder.append("\0338");
+        synchronized (userOut) {
+            userOut.print(builder);
+            userOut.flush();
+        }
+    }
+
+    /**
+     * Show a message and the prompt on the lines under the board.
+     *
+     * @param message the message, or "" for none
+     */
+    private void prompt(String message) {
+        synchronized (userOut) {
+            userOut.print(CSI + (board.DIM + 3) + ";1H" + CSI + "2K" + message);
+            userOut.print(CSI + (board.DIM + 2) + ";1H" + CSI + "2K" + "Change tile? (row col color): ");
+            userOut.flush();
+        }
+    }
+
+    /**
+     * Note the cells that changed so the drawing thread redraws them.  It
+     * runs on the network thread and never waits for the user.
      *
      * @param t An Observable -- assumed to be the model.
-     * @param o An Object -- not used.
+     * @param o The changed PlaceTile, or a collection of them.
      */
     @Override
-    public void update( Observable t, Object o ) {
+    public synchronized void update( Observable t, Object o ) {
         assert t == this.model: "Update from non-model Observable";
 
-        this.refresh();
+        if (o instanceof PlaceTile) {
+            mark((PlaceTile) o);
+        }
+        else if (o instanceof Collection) {
+            for (Object tile : (Collection<?>) o)
+                mark((PlaceTile) tile);
+        }
+        else {
+            redrawAll = true;
+        }
+        this.notify();
+    }
 
+    /**
+     * Note a changed cell.
+     *
+     * @param tile the changed tile
+     */
+    private void mark(PlaceTile tile) {
+        dirty.set(tile.getRow() * board.DIM + tile.getCol());
     }
 
 
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Usage: java PlaceClient host port username");
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: java PlaceClient host port username [canvas]");
         }
         else {
             ConsoleApplication.launch(PlacePTUI.class, args);
@@ -0,0 +1,186 @@
+package place.network;
+
+import place.BoardHashTree;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One frame of changes sent while a server is too busy to send every change
+ * on its own.  The frame holds the current state of every tile that changed
+ * since the last frame, grouped by the chunks of the board they are in.  For
+ * each dirty chunk there is a bitmap of the changed cells and, in the order of
+ * the bitmap, their colors packed two to a byte, and their owners, as indexes
+ * into a dictionary shared by the whole frame, and times, as offsets from the
+ * frame's earliest time, written as varints with {@link TileCodec}.  Neither
+ * has a limit, so a frame of a whole board, blank tiles from time 0 and all,
+ * keeps every owner and time.
+ *
+ * A tile that changes many times between frames is only sent once, so the
+ * size of a frame is bounded by the area of the board, not by the rate of
+ * changes.
+ */
+public class BoardDiff implements Serializable {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** The side of a chunk, the same as the hash tree's */
+    public static final int CHUNK = BoardHashTree.CHUNK;
+
+    /**
+     * The changed cells of one chunk.
+     */
+    private static class Chunk implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** The first row of the chunk */
+        int top;
+        /** The first column of the chunk */
+        int left;
+        /** Bit (row - top) * CHUNK + (col - left) is set for every changed cell */
+        long[] changed;
+        /** The colors of the changed cells, two to a byte, the first in the low nibble */
+        byte[] colors;
+        /**
+         * For each changed cell, its owner as an index into the frame's owners and its time in
+         * milliseconds after the frame's base time, both as varints
+         */
+        byte[] details;
+    }
+
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** The owners of the changed tiles */
+    private final String[] owners;
+
+    /** The earliest time of the changed tiles */
+    private final long baseTime;
+
+    /** The dirty chunks */
+    private final ArrayList<Chunk> chunks = new ArrayList<>();
+
+    /** The number of changed tiles */
+    private final int size;
+
+    /**
+     * Build a frame from the current state of the changed cells of a board.
+     *
+     * @param board the board
+     * @param dirty the changed cells, as row * DIM + col
+     */
+    public BoardDiff(PlaceBoard board, BitSet dirty) {
+        int DIM = board.DIM;
+        int perSide = (DIM + CHUNK - 1) / CHUNK;
+        TreeMap<Integer, long[]> bitmaps = new TreeMap<>();
+        HashMap<String, Integer> dictionary = new HashMap<>();
+        long earliest = Long.MAX_VALUE;
+        for (int key = dirty.nextSetBit(0); key >= 0; key = dirty.nextSetBit(key + 1)) {
+            int row = key / DIM;
+            int col = key % DIM;
+            long[] bitmap = bitmaps.computeIfAbsent((row / CHUNK) * perSide + col / CHUNK,
+                    c -> new long[CHUNK * CHUNK / 64]);
+            int bit = (row % CHUNK) * CHUNK + col % CHUNK;
+            bitmap[bit >> 6] |= 1L << bit;
+            PlaceTile tile = board.getTile(row, col);
+            dictionary.putIfAbsent(tile.getOwner(), dictionary.size());
+            earliest = Math.min(earliest, tile.getTime());
+        }
+        this.baseTime = earliest == Long.MAX_VALUE ? 0 : earliest;
+        this.owners = new String[dictionary.size()];
+        for (Map.Entry<String, Integer> entry : dictionary.entrySet())
+            owners[entry.getValue()] = entry.getKey();
+
+        int total = 0;
+        for (Map.Entry<Integer, long[]> entry : bitmaps.entrySet()) {
+            Chunk chunk = new Chunk();
+            chunk.top = entry.getKey() / perSide * CHUNK;
+            chunk.left = entry.getKey() % perSide * CHUNK;
+            chunk.changed = entry.getValue();
+            int count = 0;
+            for (long word : chunk.changed)
+                count += Long.bitCount(word);
+            chunk.colors = new byte[(count + 1) / 2];
+            ByteArrayOutputStream details = new ByteArrayOutputStream(count * 3);
+            DataOutputStream out = new DataOutputStream(details);
+            int i = 0;
+            try {
+                for (int word = 0; word < chunk.changed.length; ++word) {
+                    for (long bits = chunk.changed[word]; bits != 0; bits &= bits - 1) {
+                        int bit = word * 64 + Long.numberOfTrailingZeros(bits);
+                        PlaceTile tile = board.getTile(chunk.top + bit / CHUNK, chunk.left + bit % CHUNK);
+                        chunk.colors[i / 2] |= tile.getColor().getNumber() << (i % 2 * 4);
+                        TileCodec.writeVarLong(out, dictionary.get(tile.getOwner()));
+                        TileCodec.writeVarLong(out, tile.getTime() - baseTime);
+                        ++i;
+                    }
+                }
+            } catch (IOException e) {
+                // byte array streams don't fail
+                throw new UncheckedIOException(e);
+            }
+            chunk.details = details.toByteArray();
+            total += count;
+            chunks.add(chunk);
+        }
+        this.size = total;
+    }
+
+    /**
+     * Get the number of changed tiles in the frame.
+     *
+     * @return the number of tiles
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Unpack the changed tiles.
+     *
+     * @return the tiles, chunk by chunk
+     */
+    public List<PlaceTile> getTiles() {
+        List<PlaceTile> tiles = new ArrayList<>(size);
+        try {
+            for (Chunk chunk : chunks) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk.details));
+                int i = 0;
+                for (int word = 0; word < chunk.changed.length; ++word) {
+                    for (long bits = chunk.changed[word]; bits != 0; bits &= bits - 1) {
+                        int bit = word * 64 + Long.numberOfTrailingZeros(bits);
+                        int color = chunk.colors[i / 2] >> (i % 2 * 4) & 0xf;
+                        int owner = (int) TileCodec.readVarLong(in);
+                        long time = baseTime + TileCodec.readVarLong(in);
+                        tiles.add(new PlaceTile(chunk.top + bit / CHUNK, chunk.left + bit % CHUNK,
+                                owners[owner], COLORS[color], time));
+                        ++i;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the details were written by this class for exactly these cells
+            throw new UncheckedIOException(e);
+        }
+        return tiles;
+    }
+
+    @Override
+    public String toString() {
+        return "BoardDiff{" + size + " tiles in " + chunks.size() + " chunks}";
+    }
+}
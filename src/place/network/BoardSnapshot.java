@@ -0,0 +1,158 @@
+package place.network;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A board encoded once so that it can be sent to many clients.  Serializing a
+ * PlaceBoard walks every tile object for every client; a snapshot is a single
+ * byte array, so sending it again only copies the bytes.  When a client reads
+ * a snapshot it turns back into a PlaceBoard, so the client can't tell it from
+ * the board itself.
+ *
+ * The bytes are DIM, the owners' names, and then for every tile row by row
+ * its color, the index of its owner, and the difference between its time and
+ * the previous tile's, zigzag encoded, as variable length numbers.  The bytes
+ * are then compressed, once for every client, so a compressed connection
+ * sends them as they are.
+ */
+public class BoardSnapshot implements Serializable, Precompressed {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** The encoded, compressed board */
+    private final byte[] data;
+
+    /**
+     * Wrap an encoded board.
+     *
+     * @param data the bytes
+     */
+    private BoardSnapshot(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Encode the tiles of a board.  The tiles are taken as given, so the
+     * caller can copy them while the board is locked and encode them after.
+     *
+     * @param DIM the size of the board
+     * @param tiles the tiles, row by row
+     * @return the snapshot
+     */
+    public static BoardSnapshot encode(int DIM, PlaceTile[] tiles) {
+        HashMap<String, Integer> owners = new HashMap<>();
+        ByteArrayOutputStream ownerBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream tileBytes = new ByteArrayOutputStream(tiles.length * 4);
+        try {
+            DataOutputStream ownerOut = new DataOutputStream(ownerBytes);
+            DataOutputStream tileOut = new DataOutputStream(tileBytes);
+            long time = 0;
+            for (PlaceTile tile : tiles) {
+                String name = tile.getOwner() == null ? "" : tile.getOwner();
+                Integer owner = owners.get(name);
+                if (owner == null) {
+                    owner = owners.size();
+                    owners.put(name, owner);
+                    ownerOut.writeUTF(name);
+                }
+                tileOut.writeByte(tile.getColor().getNumber());
+                TileCodec.writeVarLong(tileOut, owner);
+                long delta = tile.getTime() - time;
+                TileCodec.writeVarLong(tileOut, (delta << 1) ^ (delta >> 63));
+                time = tile.getTime();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(tileBytes.size() / 2);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 8192))) {
+                out.writeInt(DIM);
+                out.writeInt(owners.size());
+                ownerBytes.writeTo(out);
+                tileBytes.writeTo(out);
+            } finally {
+                deflater.end();
+            }
+            return new BoardSnapshot(bytes.toByteArray());
+        } catch (IOException e) {
+            // byte array streams don't fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get the size of the encoded, compressed board.
+     *
+     * @return the number of bytes
+     */
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Decode the board.
+     *
+     * @return the board
+     * @throws IOException if the bytes are corrupt
+     */
+    public PlaceBoard decode() throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(data), inflater, 8192), 8192));
+            int DIM = in.readInt();
+            String[] owners = new String[in.readInt()];
+            for (int i = 0; i < owners.length; ++i)
+                owners[i] = in.readUTF();
+            PlaceBoard board = new PlaceBoard(DIM);
+            long time = 0;
+            for (int row = 0; row < DIM; ++row) {
+                for (int col = 0; col < DIM; ++col) {
+                    int color = in.readUnsignedByte();
+                    int owner = (int) TileCodec.readVarLong(in);
+                    long zigzag = TileCodec.readVarLong(in);
+                    time += (zigzag >>> 1) ^ -(zigzag & 1);
+                    if (color >= COLORS.length || owner >= owners.length)
+                        throw new IOException("Corrupt board snapshot");
+                    board.setTile(new PlaceTile(row, col, owners[owner], COLORS[color], time));
+                }
+            }
+            return board;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Turn the snapshot back into a board as it is read from a stream.
+     *
+     * @return the board
+     * @throws ObjectStreamException if the bytes are corrupt
+     */
+    private Object readResolve() throws ObjectStreamException {
+        try {
+            return decode();
+        } catch (IOException e) {
+            throw new InvalidObjectException(e.getMessage());
+        }
+    }
+}
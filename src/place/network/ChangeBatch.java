@@ -0,0 +1,67 @@
+package place.network;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A run of consecutive changes from a server's change log, sent to replica
+ * servers.  Every change has a sequence number; the changes in a batch are
+ * numbered from {@link #getFirst()} up.  A batch may also carry a snapshot of
+ * the whole board, taken just before its first change, when a replica is too
+ * far behind to catch up from the log.
+ */
+public class ChangeBatch implements Serializable {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+    /** The sequence number of the first change */
+    private final long first;
+    /** The changes, in order */
+    private final ArrayList<PlaceTile> tiles;
+    /** The board before the first change, or null if this is not a snapshot */
+    private final PlaceBoard board;
+
+    /**
+     * Create a batch.
+     *
+     * @param first the sequence number of the first change
+     * @param tiles the changes, in order
+     * @param board the board before the first change, or null
+     */
+    public ChangeBatch(long first, ArrayList<PlaceTile> tiles, PlaceBoard board) {
+        this.first = first;
+        this.tiles = tiles;
+        this.board = board;
+    }
+
+    /**
+     * Get the sequence number of the first change.
+     *
+     * @return the sequence number
+     */
+    public long getFirst() { return first; }
+
+    /**
+     * Get the sequence number of the last change.  For an empty batch this is
+     * one less than the first.
+     *
+     * @return the sequence number
+     */
+    public long getLast() { return first + tiles.size() - 1; }
+
+    /**
+     * Get the changes.
+     *
+     * @return the tiles, in order
+     */
+    public ArrayList<PlaceTile> getTiles() { return tiles; }
+
+    /**
+     * Get the snapshot.
+     *
+     * @return the board before the first change, or null if this is not a snapshot
+     */
+    public PlaceBoard getBoard() { return board; }
+}
@@ -0,0 +1,89 @@
+package place.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An object serialized and compressed once so that it can be sent to many
+ * clients.  Compressing a large broadcast on every client's connection costs
+ * CPU for every client; a Deflated value is compressed by the server once and
+ * then only copied.  When a client reads it, it turns back into the object it
+ * holds, so the client can't tell it from the object itself.
+ */
+public class Deflated implements Serializable, Precompressed {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** The compressed, serialized object */
+    private final byte[] data;
+
+    /** The object, kept by the sender */
+    private final transient Serializable value;
+
+    /**
+     * Serialize and compress an object.
+     *
+     * @param value the object
+     */
+    public Deflated(Serializable value) {
+        this.value = value;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes, deflater, 8192))) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            // byte array streams don't fail
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        this.data = bytes.toByteArray();
+    }
+
+    /**
+     * Get the object on the sender's side.
+     *
+     * @return the object, or null once it has been sent and read back
+     */
+    public Serializable get() {
+        return value;
+    }
+
+    /**
+     * Get the size of the compressed object.
+     *
+     * @return the number of bytes
+     */
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Turn back into the object as it is read from a stream.
+     *
+     * @return the object
+     * @throws ObjectStreamException if the bytes are corrupt
+     */
+    private Object readResolve() throws ObjectStreamException {
+        Inflater inflater = new Inflater();
+        try (ObjectInputStream in = new ObjectInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(data), inflater, 8192))) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new InvalidObjectException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
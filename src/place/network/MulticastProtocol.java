@@ -0,0 +1,36 @@
+package place.network;
+
+/**
+ * The wire format of the multicast feed, shared by the server that publishes
+ * it and the receivers that follow it.  Every datagram holds a run of changes
+ * numbered with the server's change log sequence numbers:
+ *
+ *     int MAGIC, long first, short count, count tiles (see TileCodec)
+ *
+ * A datagram with no tiles is a heartbeat, sent when nothing has changed for
+ * a while, whose first number is the next change to come.  It lets receivers
+ * notice that the last datagrams were lost.
+ *
+ * Receivers repair gaps over a small TCP channel.  A repair request is two
+ * longs, the first and last missing change.  The answer is either the
+ * changes from the recent history (a REPAIR_CHANGES byte, the first number,
+ * the count and the tiles), or, when they are no longer in the history or the
+ * request's first number is -1, a snapshot of the board (a REPAIR_SNAPSHOT
+ * byte, the number of the next change, DIM, and every tile row by row).
+ */
+public class MulticastProtocol {
+    /** Marks the start of a feed datagram */
+    public static final int MAGIC = 0x504c4d46;
+
+    /** The bytes before the tiles in a datagram */
+    public static final int HEADER = 4 + 8 + 2;
+
+    /** The largest datagram sent, small enough not to be fragmented on Ethernet */
+    public static final int MAX_DATAGRAM = 1400;
+
+    /** A repair answer holding changes */
+    public static final int REPAIR_CHANGES = 0;
+
+    /** A repair answer holding a snapshot */
+    public static final int REPAIR_SNAPSHOT = 1;
+}
@@ -1,19 +1,65 @@
 package place.network;
 
+import place.BoardHashTree;
 import place.PlaceBoard;
+import place.PlaceBoardExporter;
 import place.PlaceColor;
+import place.PlaceException;
 import place.PlaceTile;
+import place.server.ChangeArchive;
 import place.server.PlaceServerClientThread;
 
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Calendar;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class NetworkServer {
 
+    /**
+     * Where requested changes go when this server does not own its board itself, for example a
+     * router in front of shard servers.  The change only reaches this server's board (and its
+     * clients) when the owner reports it back through {@link #applyChange(PlaceTile)}.  The
+     * owner's answer to a change sent with an id is passed back through
+     * {@link #placedUpstream(long)} or {@link #refusedUpstream(long, String)}, after the change
+     * itself.
+     */
+    public interface Upstream {
+        /**
+         * Pass a change requested by one of this server's clients on to the owner of its tiles.
+         * Several tiles are placed all or none, as for CHANGE_TILES.
+         * @param tiles the requested tiles
+         * @param id the id the owner's answer is passed back with, or 0 for no answer
+         * @throws PlaceException if the change can't be sent on, saying why
+         */
+        void forward(List<PlaceTile> tiles, long id) throws PlaceException;
+    }
+
+    /**
+     * Something that publishes every change this server makes, numbered the same way as the
+     * change log, for example the multicast feed.  It is called with the server locked, so it
+     * should hand the changes off rather than block.
+     */
+    public interface Feed {
+        /**
+         * Publish a run of changes.
+         * @param first the sequence number of the first change
+         * @param tiles the changes, in the order they were applied
+         */
+        void publish(long first, List<PlaceTile> tiles);
+    }
+
     PlaceBoard board;
 
     /**
@@ -45,8 +91,210 @@ public class NetworkServer {
 
     private HashMap<PlaceColor, Integer> ratios;
 
+    /**
+     * The archive every change is recorded in, or null if changes aren't archived.
+     */
+    private ChangeArchive archive;
+
+    /**
+     * Whether every change is logged to the console along with the board and statistics.
+     */
+    private boolean verbose = true;
+
+    /**
+     * For every user, the tiles (as row * DIM + col) they have changed and may still own.
+     */
+    private HashMap<String, HashSet<Integer>> userTiles = new HashMap<>();
+
+    /**
+     * The number of replaced tiles remembered for reverting, over the whole board.  Older ones
+     * are forgotten, and reverting a tile past them blanks it.
+     */
+    private static final int HISTORY = 1 << 16;
+
+    /**
+     * The tiles replaced when a tile changed owner, indexed by their number modulo HISTORY.
+     * Reverting the current owner of a tile puts back the latest one for that tile, and
+     * reverting the owner after that the one before it.  Like the change log it is only
+     * allocated once a tile first changes owner.
+     */
+    private PlaceTile[] previous = null;
+
+    /**
+     * For every entry in previous, the number of the entry before it for the same tile, or 0.
+     */
+    private int[] earlier;
+
+    /**
+     * For every tile (as row * DIM + col), the number of its latest entry in previous, or 0.
+     */
+    private int[] latest;
+
+    /**
+     * The number of the last entry in previous.  The first entry is number 1.
+     */
+    private int lastPrevious = 0;
+
+    /**
+     * The hash tree over the chunks of the board, used to send reconnecting clients only the
+     * chunks their cached board is missing.
+     */
+    private BoardHashTree hashTree;
+
+    /**
+     * Where requested changes are forwarded, or null if this server owns its board.
+     */
+    private volatile Upstream upstream;
+
+    /**
+     * The number of recent changes kept so that a replica can catch up after reconnecting.
+     */
+    private static final int LOG_SIZE = 1 << 16;
+
+    /**
+     * The most recent changes, indexed by sequence number modulo LOG_SIZE.  It is only
+     * allocated once the first replica follows this server, so that a process hosting many
+     * canvases doesn't pay for a log on every one of them.
+     */
+    private PlaceTile[] changeLog = null;
+
+    /**
+     * The sequence number of the last change made before the change log was allocated.
+     */
+    private long logStart = 0;
+
+    /**
+     * The sequence number of the most recent change.  The first change is number 1.
+     */
+    private long sequence = 0;
+
+    /**
+     * The replica servers following the change log.
+     */
+    private HashSet<PlaceServerClientThread> replicas = new HashSet<>();
+
+    /**
+     * The feeds every change is published to.
+     */
+    private ArrayList<Feed> feeds = new ArrayList<>();
+
+    /**
+     * How often, in milliseconds, the change rate is measured and a frame of changes is sent
+     * while the server is busy.
+     */
+    private static final int FRAME = 100;
+
+    /**
+     * The change rate, in changes per second, above which clients are sent frames of changed
+     * chunks instead of one TILE_CHANGED per change.
+     */
+    private static final int BURST_RATE = 200;
+
+    /**
+     * The change rate below which the server goes back to one TILE_CHANGED per change.  It is
+     * lower than BURST_RATE so a rate hovering around the threshold doesn't flip every frame.
+     */
+    private static final int CALM_RATE = 100;
+
+    /**
+     * The number of tiles in a frame at which it is compressed once for every client instead of
+     * by each compressed connection on its own.
+     */
+    private static final int SHARED_DEFLATE = 512;
+
+    /**
+     * Sends the frames of every server in the process.
+     */
+    private static final ScheduledExecutorService FRAMES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "PLACEFRAMES");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * This server's task on FRAMES, or null until the first client, replica or feed is added.
+     * A server with nobody to send frames to doesn't schedule one, so it isn't kept alive by
+     * FRAMES when it is dropped without being shut down.
+     */
+    private ScheduledFuture<?> frames = null;
+
+    /**
+     * Whether the server has been shut down, after which frames are never started again.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The number of changes made since the last frame.
+     */
+    private int changesThisFrame = 0;
+
+    /**
+     * The recent change rate, in changes per second, smoothed over a few frames.
+     */
+    private double rate = 0;
+
+    /**
+     * Whether changes are being sent in frames rather than one by one.
+     */
+    private boolean burst = false;
+
+    /**
+     * While the server is busy, the tiles (as row * DIM + col) changed since the last frame.
+     */
+    private BitSet pendingCells = new BitSet();
+
+    /**
+     * While the server is busy, the PLACED answers for the changes in the next frame, with the
+     * clients to send them to.  They go out after the frame.
+     */
+    private final List<Placed> pendingPlaced = new ArrayList<>();
+
+    /**
+     * A PLACED answer waiting for the frame that holds its change, or for the owner of a
+     * forwarded change to answer it.
+     */
+    private static class Placed {
+        /** The client whose change it was */
+        final PlaceServerClientThread origin;
+        /** The answer */
+        final PlaceRequest<?> answer;
+
+        Placed(PlaceServerClientThread origin, PlaceRequest<?> answer) {
+            this.origin = origin;
+            this.answer = answer;
+        }
+    }
+
+    /**
+     * The PLACED answers for the changes forwarded upstream and not yet answered there, with the
+     * clients to send them to, by the id they were forwarded with.
+     */
+    private final HashMap<Long, Placed> forwarded = new HashMap<>();
+
+    /**
+     * The id of the last change forwarded upstream with an answer to wait for.
+     */
+    private long lastForwarded = 0;
+
+    /**
+     * The board as last encoded for logging in clients, or null before the first login.
+     */
+    private BoardSnapshot snapshot;
+
+    /**
+     * The sequence number of the last change in the encoded board.
+     */
+    private long snapshotVersion = -1;
+
+    /**
+     * Held while the board is encoded, so that clients logging in at the same time wait for one
+     * encoding instead of each making their own.
+     */
+    private final Object snapshotLock = new Object();
+
     public NetworkServer(int dim) {
         board = new PlaceBoard(dim);
+        hashTree = new BoardHashTree(board);
         threads = new HashMap<> ();
         initRatios();
         numInts = new HashMap<>();
@@ -78,15 +326,439 @@ public class NetworkServer {
      * A method to be called from the network client to tell when a tile has been changed
      * @param tile
      */
-    public synchronized void changeTile(PlaceTile tile) {
-        board.setTile(tile);
+    public void changeTile(PlaceTile tile) {
+        changeTile(tile, null, 0);
+    }
+
+    /**
+     * A method to be called from the network client to tell when a tile has been changed, for a
+     * change that the client wants answered with a PLACED.  A change forwarded to the server
+     * this one follows is only answered once the owner of the tile has answered it, and so
+     * after the change has come back to this server's board, or with an ERROR if it can't be
+     * sent on.
+     * @param tile the new tile
+     * @param origin the client that sent the change, or null for no answer
+     * @param id the client's id of the change, or 0 for no answer
+     */
+    public void changeTile(PlaceTile tile, PlaceServerClientThread origin, long id) {
+        Upstream owner = upstream;
+        if (owner != null) {
+            ArrayList<PlaceTile> tiles = new ArrayList<>(1);
+            tiles.add(tile);
+            forward(owner, tiles, new PlaceRequest<>(PlaceRequest.RequestType.PLACED, tile, id), origin);
+        } else {
+            applyChange(tile, origin, id);
+        }
+    }
+
+    /**
+     * Change a tile on this server's board and tell every client about it.
+     * @param tile the new tile
+     */
+    public void applyChange(PlaceTile tile) {
+        applyChange(tile, null, 0);
+    }
+
+    /**
+     * Change a tile on this server's board and tell every client about it, then answer the
+     * client that sent it with a PLACED.  The answer goes after the broadcast of the change, or
+     * while the server is busy after the frame that holds it, so the client always has the
+     * change by the time it is answered.
+     * @param tile the new tile
+     * @param origin the client that sent the change, or null for no answer
+     * @param id the client's id of the change, or 0 for no answer
+     */
+    public synchronized void applyChange(PlaceTile tile, PlaceServerClientThread origin, long id) {
+        record(tile);
         tileChanged(tile);
-        System.out.println(board);
+        ArrayList<PlaceTile> logged = new ArrayList<>(1);
+        logged.add(tile);
+        // a replica that asked for the change gets it in the change log before the answer
+        replicate(logged);
+        answer(origin, new PlaceRequest<>(PlaceRequest.RequestType.PLACED, tile, id));
+        if (verbose) {
+            System.out.println(board);
+            statistics();
+        }
+
+    }
+
+    /**
+     * A method to be called from the network client when it asks for a batch of tiles to be
+     * changed at once, such as an image stamped onto the board.  Forwarded upstream, the batch
+     * is sent on whole, so it is still placed all or none, and answered like a single change.
+     * @param tiles the new tiles
+     * @param origin the client that sent the change, or null for no answer
+     * @param id the client's id of the change, or 0 for no answer
+     */
+    public void changeTiles(List<PlaceTile> tiles, PlaceServerClientThread origin, long id) {
+        Upstream owner = upstream;
+        if (owner != null) {
+            forward(owner, new ArrayList<>(tiles),
+                    new PlaceRequest<>(PlaceRequest.RequestType.PLACED, new ArrayList<>(tiles), id), origin);
+        } else {
+            applyChanges(tiles, origin, id);
+        }
+    }
+
+    /**
+     * Send a requested change upstream, keeping its answer until the owner has answered.
+     * @param owner where the change goes
+     * @param tiles the requested tiles
+     * @param placed the PLACED to answer the client with
+     * @param origin the client that sent the change, or null for no answer
+     */
+    private void forward(Upstream owner, List<PlaceTile> tiles, PlaceRequest<?> placed,
+                         PlaceServerClientThread origin) {
+        long forwardId = 0;
+        if (origin != null && placed.getId() != 0) {
+            synchronized (this) {
+                forwardId = ++lastForwarded;
+                forwarded.put(forwardId, new Placed(origin, placed));
+            }
+        }
+        try {
+            owner.forward(tiles, forwardId);
+        } catch (PlaceException e) {
+            if (forwardId == 0)
+                System.err.println("Dropping change: " + e.getMessage());
+            else
+                refusedUpstream(forwardId, e.getMessage());
+        }
+    }
+
+    /**
+     * Answer a forwarded change that the owner of its tiles has placed.  The owner sends its
+     * answer after the change, so the change is already on this server's board, and the client
+     * is answered the same way as for a change made here.
+     * @param forwardId the id the change was forwarded with
+     */
+    public synchronized void placedUpstream(long forwardId) {
+        Placed placed = forwarded.remove(forwardId);
+        if (placed != null)
+            answer(placed.origin, placed.answer);
+    }
+
+    /**
+     * Answer a forwarded change that could not be placed with an ERROR.
+     * @param forwardId the id the change was forwarded with
+     * @param reason why it wasn't placed
+     */
+    public synchronized void refusedUpstream(long forwardId, String reason) {
+        Placed placed = forwarded.remove(forwardId);
+        if (placed != null)
+            placed.origin.tileChanged(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, reason,
+                    placed.answer.getId()));
+    }
+
+    /**
+     * Change a batch of tiles on this server's board and tell every client about them in a
+     * single TILES_CHANGED.
+     * @param tiles the new tiles
+     */
+    public void applyChanges(List<PlaceTile> tiles) {
+        applyChanges(tiles, null, 0);
+    }
+
+    /**
+     * Change a batch of tiles on this server's board and tell every client about them in a
+     * single TILES_CHANGED, or for a large batch a CHUNK_DIFF compressed once for every client,
+     * then answer the client that sent it with a PLACED.  While the server is busy the tiles go
+     * out with the next frame instead, like single changes.
+     * @param tiles the new tiles
+     * @param origin the client that sent the change, or null for no answer
+     * @param id the client's id of the change, or 0 for no answer
+     */
+    public synchronized void applyChanges(List<PlaceTile> tiles, PlaceServerClientThread origin, long id) {
+        for (PlaceTile tile : tiles)
+            record(tile);
+        tilesChanged(tiles);
+        replicate(new ArrayList<>(tiles));
+        answer(origin, new PlaceRequest<>(PlaceRequest.RequestType.PLACED, new ArrayList<>(tiles), id));
+        if (verbose)
+            statistics();
+    }
+
+    /**
+     * Tell every client about a batch of tiles already changed on the board, in a single
+     * TILES_CHANGED, or for a large batch a CHUNK_DIFF compressed once for every client.  While
+     * the server is busy the tiles are only noted, and go out with the next frame.
+     * @param tiles the new tiles
+     */
+    private void tilesChanged(List<PlaceTile> tiles) {
+        if (burst) {
+            for (PlaceTile tile : tiles)
+                pendingCells.set(tile.getRow() * board.DIM + tile.getCol());
+        } else if (tiles.size() >= SHARED_DEFLATE) {
+            BitSet cells = new BitSet(board.DIM * board.DIM);
+            for (PlaceTile tile : tiles)
+                cells.set(tile.getRow() * board.DIM + tile.getCol());
+            broadcast(new PlaceRequest<>(PlaceRequest.RequestType.CHUNK_DIFF, new Deflated(new BoardDiff(board, cells))));
+        } else {
+            broadcast(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, new ArrayList<>(tiles)));
+        }
+    }
+
+    /**
+     * Copy tiles from the server this one follows, such as its whole board on connecting.  They
+     * are not changes made by users, so they aren't archived or counted in the statistics or the
+     * change rate.  Only the tiles that differ from this server's board are changed, and they go
+     * to the clients in one CHUNK_DIFF, or while the server is busy with the next frame, and
+     * into the change log.
+     * @param tiles the tiles
+     */
+    public synchronized void loadTiles(List<PlaceTile> tiles) {
+        BitSet cells = burst ? pendingCells : new BitSet(board.DIM * board.DIM);
+        ArrayList<PlaceTile> differing = new ArrayList<>();
+        for (PlaceTile tile : tiles) {
+            PlaceTile old = board.getTile(tile.getRow(), tile.getCol());
+            if (old.getColor() == tile.getColor() && old.getTime() == tile.getTime() &&
+                    Objects.equals(old.getOwner(), tile.getOwner()))
+                continue;
+            board.setTile(tile);
+            hashTree.markDirty(tile.getRow(), tile.getCol());
+            cells.set(tile.getRow() * board.DIM + tile.getCol());
+            differing.add(tile);
+        }
+        if (differing.isEmpty())
+            return;
+        if (!burst) {
+            BoardDiff diff = new BoardDiff(board, cells);
+            if (diff.size() >= SHARED_DEFLATE)
+                broadcast(new PlaceRequest<>(PlaceRequest.RequestType.CHUNK_DIFF, new Deflated(diff)));
+            else
+                broadcast(new PlaceRequest<>(PlaceRequest.RequestType.CHUNK_DIFF, diff));
+        }
+        replicate(differing);
+    }
+
+    /**
+     * Change a tile on the board and keep the indexes, the archive and the statistics up to
+     * date, for every way a change is made.
+     * @param tile the new tile
+     */
+    private void record(PlaceTile tile) {
+        recordOwner(tile);
+        board.setTile(tile);
+        hashTree.markDirty(tile.getRow(), tile.getCol());
+        archive(tile);
+        count(tile);
+        numInts.put(tile.getOwner(), numInts.getOrDefault(tile.getOwner(), 0) + 1);
+    }
+
+    /**
+     * Count a change in the color statistics and the change rate.
+     * @param tile the new tile
+     */
+    private void count(PlaceTile tile) {
         ratios.put(tile.getColor(), ratios.get(tile.getColor()) + 1);
         numInputs++;
-        numInts.put(tile.getOwner() ,numInts.get(tile.getOwner()) + 1);
-        statistics();
+        ++changesThisFrame;
+    }
 
+    /**
+     * Send a PLACED to the client whose change it answers, right away or, while the server is
+     * busy, after the frame that holds the change.
+     * @param origin the client that sent the change, or null for no answer
+     * @param placed the answer
+     */
+    private void answer(PlaceServerClientThread origin, PlaceRequest<?> placed) {
+        if (origin == null || placed.getId() == 0)
+            return;
+        if (burst)
+            pendingPlaced.add(new Placed(origin, placed));
+        else
+            origin.tileChanged(placed);
+    }
+
+    /**
+     * Update the per-user index and the previous tile for a tile that is about to change.
+     * @param tile the new tile
+     */
+    private void recordOwner(PlaceTile tile) {
+        int key = tile.getRow() * board.DIM + tile.getCol();
+        PlaceTile old = board.getTile(tile.getRow(), tile.getCol());
+        if (!Objects.equals(old.getOwner(), tile.getOwner())) {
+            if (previous == null) {
+                previous = new PlaceTile[HISTORY];
+                earlier = new int[HISTORY];
+                latest = new int[board.DIM * board.DIM];
+            }
+            int number = ++lastPrevious;
+            previous[number & (HISTORY - 1)] = old;
+            earlier[number & (HISTORY - 1)] = latest[key];
+            latest[key] = number;
+            HashSet<Integer> oldTiles = userTiles.get(old.getOwner());
+            if (oldTiles != null)
+                oldTiles.remove(key);
+        }
+        userTiles.computeIfAbsent(tile.getOwner(), u -> new HashSet<>()).add(key);
+    }
+
+    /**
+     * Take the latest tile a tile held before it changed owner out of the history.
+     * @param key the tile, as row * DIM + col
+     * @return the tile it held, or null if it has none or it has been forgotten
+     */
+    private PlaceTile popPrevious(int key) {
+        if (previous == null)
+            return null;
+        int number = latest[key];
+        // numbers wrap around, but only the last HISTORY entries are ever compared
+        if (number == 0 || lastPrevious - number >= HISTORY) {
+            latest[key] = 0;
+            return null;
+        }
+        latest[key] = earlier[number & (HISTORY - 1)];
+        return previous[number & (HISTORY - 1)];
+    }
+
+    /**
+     * Record a change in the archive, if there is one.
+     * @param tile the new tile
+     */
+    private void archive(PlaceTile tile) {
+        if (archive != null) {
+            try {
+                archive.append(tile);
+            } catch (IOException e) {
+                System.err.println("Could not archive change: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Number a run of changes in the change log and send them to the replicas.
+     * @param tiles the changes, in the order they were applied
+     */
+    private void replicate(ArrayList<PlaceTile> tiles) {
+        long first = sequence + 1;
+        for (Feed feed : feeds)
+            feed.publish(first, tiles);
+        if (changeLog == null) {
+            sequence += tiles.size();
+            return;
+        }
+        for (PlaceTile tile : tiles)
+            changeLog[(int) (++sequence % LOG_SIZE)] = tile;
+        if (replicas.isEmpty())
+            return;
+        PlaceRequest<ChangeBatch> batch = new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_LOG,
+                new ChangeBatch(first, tiles, null));
+        for (PlaceServerClientThread replica : replicas)
+            replica.tileChanged(batch);
+    }
+
+    /**
+     * Start streaming the change log to a replica server.  The replica first gets the changes
+     * it missed since the last one it saw, or a copy of the board if those are no longer in the
+     * log.  The board is copied here, with the server locked, since the batch is written out
+     * later by the replica's own thread.
+     * @param replica the replica's connection
+     * @param last the sequence number of the last change the replica has, or -1 if it has none
+     */
+    public synchronized void addReplica(PlaceServerClientThread replica, long last) {
+        if (changeLog == null) {
+            changeLog = new PlaceTile[LOG_SIZE];
+            logStart = sequence;
+        }
+        ChangeBatch catchUp;
+        if (last >= logStart && last <= sequence && sequence - last < LOG_SIZE) {
+            ArrayList<PlaceTile> missed = new ArrayList<>();
+            for (long number = last + 1; number <= sequence; ++number)
+                missed.add(changeLog[(int) (number % LOG_SIZE)]);
+            catchUp = new ChangeBatch(last + 1, missed, null);
+        } else {
+            catchUp = snapshot();
+        }
+        replica.tileChanged(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_LOG, catchUp));
+        startFrames();
+        replicas.add(replica);
+        System.out.println("Replica " + replica.getSocket() + " is following from change " + catchUp.getFirst());
+    }
+
+    /**
+     * Start publishing every change to a feed.
+     * @param feed the feed
+     */
+    public synchronized void addFeed(Feed feed) {
+        startFrames();
+        feeds.add(feed);
+    }
+
+    /**
+     * Copy the board along with the sequence number of the last change in it, for a feed
+     * subscriber that has to start over.
+     * @return a batch with no changes whose first number follows the snapshot
+     */
+    public synchronized ChangeBatch snapshot() {
+        return new ChangeBatch(sequence + 1, new ArrayList<>(), copyBoard());
+    }
+
+    /**
+     * Copy the board with the server locked.  The server replaces tiles instead of changing
+     * them, so copying the references is enough for the copy to stay as it is while it is used
+     * without the lock.
+     * @return the copy
+     */
+    private synchronized PlaceBoard copyBoard() {
+        PlaceBoard copy = new PlaceBoard(board.DIM);
+        for (PlaceTile[] row : board.getBoard()) {
+            for (PlaceTile tile : row)
+                copy.setTile(tile);
+        }
+        return copy;
+    }
+
+    /**
+     * Stop streaming the change log to a replica server.
+     * @param replica the replica's connection
+     */
+    public synchronized void removeReplica(PlaceServerClientThread replica) {
+        replicas.remove(replica);
+        System.out.println("Replica " + replica.getSocket() + " has disconnected.");
+    }
+
+    /**
+     * Put back every tile that a user currently owns to what it was before they changed it.
+     * The tiles are found through the per-user index rather than by scanning the board, and
+     * sent to the clients like a batch of changes.  They count towards the color statistics
+     * and the change rate, and are taken off the user's interactions.
+     * @param username the user whose changes are undone
+     * @return the number of tiles that were reverted
+     */
+    public synchronized int revert(String username) {
+        if (upstream != null) {
+            System.err.println("Tiles can only be reverted on the server that owns them");
+            return 0;
+        }
+        HashSet<Integer> keys = userTiles.remove(username);
+        if (keys == null)
+            return 0;
+        ArrayList<PlaceTile> restored = new ArrayList<>(keys.size());
+        for (int key : keys) {
+            int row = key / board.DIM;
+            int col = key % board.DIM;
+            if (!username.equals(board.getTile(row, col).getOwner()))
+                continue;
+            PlaceTile before = popPrevious(key);
+            if (before == null)
+                before = new PlaceTile(row, col, "", PlaceColor.WHITE);
+            board.setTile(before);
+            hashTree.markDirty(row, col);
+            userTiles.computeIfAbsent(before.getOwner(), u -> new HashSet<>()).add(key);
+            restored.add(before);
+            archive(before);
+            count(before);
+        }
+        if (!restored.isEmpty()) {
+            numInts.computeIfPresent(username, (u, n) -> Math.max(0, n - restored.size()));
+            tilesChanged(restored);
+            replicate(restored);
+            if (verbose)
+                statistics();
+        }
+        return restored.size();
     }
 
     public void statistics() {
@@ -125,26 +797,87 @@ public class NetworkServer {
      * @param thread
      */
     public synchronized void logout(PlaceServerClientThread thread){
-        threads.remove(thread.getUsername());
+        threads.remove(thread.getUsername(), thread);
         System.out.println(thread.getUsername() + " has logged out.");
     }
 
     /**
      * A method called from the server when a tile has been changed. this method will then notify all threads
-     * that a change has been made
+     * that a change has been made.  While the server is busy the change is only noted, and goes out
+     * with the next frame.
      * @param tile
      */
     public void tileChanged(PlaceTile tile) {
-        Collection<PlaceServerClientThread> users = threads.values();
-        SimpleDateFormat dateFormat = new SimpleDateFormat("hh:mm:ss");
-        Calendar calendar = Calendar.getInstance();
-        System.out.println(dateFormat.format(calendar.getTime()) + " The tile " + tile.getRow() + ", " +
-                            tile.getCol() + " has been changed to " + tile.getColor());
-        System.out.println();
+        if (verbose) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("hh:mm:ss");
+            Calendar calendar = Calendar.getInstance();
+            System.out.println(dateFormat.format(calendar.getTime()) + " The tile " + tile.getRow() + ", " +
+                    tile.getCol() + " has been changed to " + tile.getColor());
+            System.out.println();
+        }
+
+        if (burst)
+            pendingCells.set(tile.getRow() * board.DIM + tile.getCol());
+        else
+            broadcast(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+    }
+
+    /**
+     * Measure the change rate, send the changes noted since the last frame, and switch between
+     * frames and single changes when the rate crosses the thresholds.  Runs every FRAME ms.
+     */
+    private synchronized void frame() {
+        rate = rate / 2 + changesThisFrame * (1000.0 / FRAME) / 2;
+        changesThisFrame = 0;
+        if (!pendingCells.isEmpty()) {
+            BoardDiff diff = new BoardDiff(board, pendingCells);
+            if (diff.size() >= SHARED_DEFLATE)
+                broadcast(new PlaceRequest<>(PlaceRequest.RequestType.CHUNK_DIFF, new Deflated(diff)));
+            else
+                broadcast(new PlaceRequest<>(PlaceRequest.RequestType.CHUNK_DIFF, diff));
+            pendingCells.clear();
+        }
+        for (Placed placed : pendingPlaced)
+            placed.origin.tileChanged(placed.answer);
+        pendingPlaced.clear();
+        if (!burst && rate > BURST_RATE) {
+            burst = true;
+            System.out.println("Busy (" + (int) rate + " changes/s): sending changes in frames");
+        } else if (burst && rate < CALM_RATE) {
+            burst = false;
+            System.out.println("Calm (" + (int) rate + " changes/s): sending changes one by one");
+        }
+    }
+
+    /**
+     * Stop sending frames, after sending the changes still waiting for one.  The shared FRAMES
+     * thread keeps running for the other servers in the process.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            if (frames != null)
+                frames.cancel(false);
+        }
+        frame();
+    }
+
+    /**
+     * Start measuring the change rate and sending frames, if that hasn't started yet.  Called
+     * with the server locked.
+     */
+    private void startFrames() {
+        if (frames == null && !stopped)
+            frames = FRAMES.scheduleAtFixedRate(this::frame, FRAME, FRAME, TimeUnit.MILLISECONDS);
+    }
 
-        PlaceRequest<PlaceTile> changedReq = new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile);
-        for (PlaceServerClientThread user : users) {
-            user.tileChanged(changedReq);
+    /**
+     * Send a request to every logged in user.
+     * @param req the request
+     */
+    private void broadcast(PlaceRequest<?> req) {
+        for (PlaceServerClientThread user : threads.values()) {
+            user.tileChanged(req);
         }
     }
 
@@ -155,6 +888,7 @@ public class NetworkServer {
      */
     public synchronized boolean login(PlaceServerClientThread thread) {
         if (!threads.containsKey(thread.getUsername())) {
+            startFrames();
             threads.put(thread.getUsername(), thread);
             numInts.put(thread.getUsername(), 0);
             System.out.println(thread.getUsername() + " has connected. @ " + thread.getSocket());
@@ -165,11 +899,96 @@ public class NetworkServer {
 
     }
 
+    /**
+     * Returns the board's version: the sequence number of the last change made to it.
+     * @return the version
+     */
+    public synchronized long version() {
+        return sequence;
+    }
+
+    /**
+     * Get the board encoded for sending to a client that is logging in.  The encoding is shared
+     * by every login it is recent enough for, so a crowd of clients logging in at once costs
+     * one encoding instead of one serialization of the whole board each.  The tiles are copied
+     * with the server locked, but encoded after, so changes don't wait for the encoding.
+     * @param since the oldest version the client can use; the changes after it must be sent to
+     *              the client separately
+     * @return the encoded board
+     */
+    public BoardSnapshot encodedBoard(long since) {
+        synchronized (snapshotLock) {
+            if (snapshot != null && snapshotVersion >= since)
+                return snapshot;
+            int DIM = board.DIM;
+            PlaceTile[] tiles = new PlaceTile[DIM * DIM];
+            long version;
+            synchronized (this) {
+                version = sequence;
+                PlaceTile[][] rows = board.getBoard();
+                for (int row = 0; row < DIM; ++row)
+                    System.arraycopy(rows[row], 0, tiles, row * DIM, DIM);
+            }
+            snapshot = BoardSnapshot.encode(DIM, tiles);
+            snapshotVersion = version;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Find the tiles a client with a cached board needs to bring it up to date.  The client's
+     * hash tree is compared with the server's from the root down, and every tile in a chunk
+     * that differs is returned.
+     * @param cached the hash tree of the client's cached board
+     * @return the tiles of the chunks that differ
+     */
+    public synchronized ArrayList<PlaceTile> changedChunks(BoardHashTree cached) {
+        ArrayList<PlaceTile> tiles = new ArrayList<>();
+        for (int chunk : hashTree.differingChunks(cached))
+            tiles.addAll(hashTree.chunkTiles(chunk));
+        return tiles;
+    }
+
+    /**
+     * Turn the per-change console logging on or off.
+     * @param verbose whether to log every change
+     */
+    public void setVerbose(boolean verbose) {this.verbose = verbose;}
+
+    /**
+     * Forward every requested change to an upstream owner instead of applying it here.
+     * @param upstream the owner of the board
+     */
+    public void setUpstream(Upstream upstream) {this.upstream = upstream;}
+
+    /**
+     * Record every future change in an archive.
+     * @param archive the archive
+     */
+    public synchronized void setArchive(ChangeArchive archive) {this.archive = archive;}
+
+    /**
+     * Returns the archive changes are recorded in.
+     * @return the archive, or null if there isn't one
+     */
+    public ChangeArchive getArchive() {return this.archive;}
+
     /**
      * A method that returns the server's version of the current board.
      * @return
      */
     public PlaceBoard getBoard() {return this.board;}
 
+    /**
+     * Export the current board as an image.  The board is copied with the server locked, so the
+     * image is a consistent snapshot, but encoded and written after, so tile changes don't wait
+     * for the export.
+     * @param fileName the file to write; the extension picks the format
+     * @throws IOException if the file can't be written
+     */
+    public void export(String fileName) throws IOException {
+        new PlaceBoardExporter(copyBoard()).export(fileName, PlaceBoardExporter.formatFor(fileName));
+    }
+
 
 }
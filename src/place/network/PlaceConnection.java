@@ -0,0 +1,141 @@
+package place.network;
+
+import place.PlaceBoard;
+import place.PlaceException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.Socket;
+
+/**
+ * A plain connection to a place server, used by tools and by servers that
+ * talk to other servers.  Unlike the interactive NetworkClient it has no model
+ * and no thread of its own: the caller logs in, then sends and reads requests
+ * itself.
+ */
+public class PlaceConnection implements Closeable {
+    /** The socket connected to the server */
+    private final Socket socket;
+
+    /** Writes requests to the server */
+    private final ObjectOutputStream out;
+
+    /** Reads requests from the server */
+    private final ObjectInputStream in;
+
+    /**
+     * The number of requests sent between resets of the output stream, so
+     * the server's stream doesn't remember every object sent on a link that
+     * stays up for days
+     */
+    private static final int RESET_EVERY = 1024;
+
+    /** The number of requests sent since the last reset */
+    private int sinceReset = 0;
+
+    /**
+     * Connect to a server.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @throws IOException if the connection can't be made
+     */
+    public PlaceConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.out = new ObjectOutputStream(socket.getOutputStream());
+        out.flush();
+        this.in = new ObjectInputStream(socket.getInputStream());
+    }
+
+    /**
+     * Log in and wait for the board.
+     *
+     * @param username the name to log in with
+     * @return the server's board
+     * @throws PlaceException if the login is refused or the connection fails
+     */
+    public PlaceBoard login(String username) throws PlaceException {
+        return sendLogin(username, username);
+    }
+
+    /**
+     * Log in asking for optional features, and wait for the board.
+     *
+     * @param username the name to log in with
+     * @param capabilities the features, such as {@link PlaceLogin#FORWARD}
+     * @return the server's board
+     * @throws PlaceException if the login is refused or the connection fails
+     */
+    public PlaceBoard login(String username, String... capabilities) throws PlaceException {
+        return sendLogin(username, new PlaceLogin(username, "", capabilities));
+    }
+
+    /**
+     * Send a LOGIN and wait for the board.
+     *
+     * @param username the name to log in with
+     * @param login the data of the LOGIN
+     * @return the server's board
+     * @throws PlaceException if the login is refused or the connection fails
+     */
+    private PlaceBoard sendLogin(String username, Serializable login) throws PlaceException {
+        try {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, login));
+            PlaceRequest<?> reply = read();
+            if (reply.getType() != PlaceRequest.RequestType.LOGIN_SUCCESS)
+                throw new PlaceException("Login as " + username + " failed: " + reply.getData());
+            PlaceRequest<?> board = read();
+            if (board.getType() != PlaceRequest.RequestType.BOARD)
+                throw new PlaceException("Expected the board but got " + board.getType());
+            return (PlaceBoard) board.getData();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new PlaceException(e);
+        }
+    }
+
+    /**
+     * Send a request to the server.  Safe to call from several threads.
+     *
+     * @param req the request
+     * @throws IOException if the connection fails
+     */
+    public synchronized void send(PlaceRequest<?> req) throws IOException {
+        out.writeUnshared(req);
+        if (++sinceReset >= RESET_EVERY) {
+            out.reset();
+            sinceReset = 0;
+        }
+        out.flush();
+    }
+
+    /**
+     * Wait for the next request from the server.
+     *
+     * @return the request
+     * @throws IOException if the connection fails or closes
+     * @throws ClassNotFoundException if the server sent an unknown class
+     */
+    public PlaceRequest<?> read() throws IOException, ClassNotFoundException {
+        return (PlaceRequest<?>) in.readUnshared();
+    }
+
+    /**
+     * Close the connection.
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    @Override
+    public String toString() {
+        return socket.getInetAddress().getHostName() + ":" + socket.getPort();
+    }
+}
@@ -0,0 +1,95 @@
+package place.network;
+
+import java.io.Serializable;
+
+/**
+ * The data of a LOGIN request from a client that picks a canvas or asks for
+ * optional features.  A server can host several canvases in one process; a
+ * plain String login always goes to the default canvas and gets no features.
+ *
+ * The features a client asks for are its capabilities.  The server answers
+ * LOGIN_SUCCESS with a PlaceLogin holding the ones it turned on.
+ */
+public class PlaceLogin implements Serializable {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** The capability to compress everything the server sends after LOGIN_SUCCESS */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * The capability of a server, or a tool, that passes on changes asked for by its own
+     * clients, such as a relay or a shard router.  The changes it sends keep the owners they
+     * carry, instead of all being owned by the name it logged in with.
+     */
+    public static final String FORWARD = "forward";
+
+    /** The name to log in with */
+    private final String username;
+
+    /** The name of the canvas to join, or "" for the default canvas */
+    private final String canvas;
+
+    /** The optional features asked for, or turned on */
+    private final String[] capabilities;
+
+    /**
+     * Create a login.
+     *
+     * @param username the name to log in with
+     * @param canvas the canvas to join, or "" for the default canvas
+     */
+    public PlaceLogin(String username, String canvas) {
+        this(username, canvas, new String[0]);
+    }
+
+    /**
+     * Create a login that asks for optional features.
+     *
+     * @param username the name to log in with
+     * @param canvas the canvas to join, or "" for the default canvas
+     * @param capabilities the features, such as {@link #DEFLATE}
+     */
+    public PlaceLogin(String username, String canvas, String... capabilities) {
+        this.username = username;
+        this.canvas = canvas == null ? "" : canvas;
+        this.capabilities = capabilities == null ? new String[0] : capabilities.clone();
+    }
+
+    /**
+     * Get the name to log in with.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Get the canvas to join.
+     *
+     * @return the canvas name, or "" for the default canvas
+     */
+    public String getCanvas() {
+        return canvas;
+    }
+
+    /**
+     * Tell whether a feature was asked for, or turned on.
+     *
+     * @param capability the feature
+     * @return true if it is in the login
+     */
+    public boolean has(String capability) {
+        for (String c : capabilities) {
+            if (c.equals(capability))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return canvas.isEmpty() ? username : username + "@" + canvas;
+    }
+}
@@ -8,16 +8,31 @@ import java.io.Serializable;
  * PlaceExchange.
  *
  * @param <E> the data type (depends on the request type):<br>
- *      BOARD: PlaceBoard object<br>
+ *      BOARD: PlaceBoard object (or a BoardSnapshot, which is read as one)<br>
+ *      CHANGE_LOG: ChangeBatch object<br>
  *      CHANGE_TILE: PlaceTile object<br>
+ *      CHANGE_TILES: ArrayList of PlaceTile objects<br>
+ *      CHUNK_DIFF: BoardDiff object (or a Deflated one, which is read as one)<br>
+ *      CHUNKS: ArrayList of PlaceTile objects<br>
  *      ERROR: String<br>
- *      LOGIN: String<br>
- *      LOGIN_SUCCESS: String<br>
+ *      LOGIN: String or PlaceLogin<br>
+ *      LOGIN_SUCCESS: String or PlaceLogin object<br>
+ *      PLACED: PlaceTile object, or ArrayList of PlaceTile objects for CHANGE_TILES<br>
+ *      REPLICATE: Long<br>
+ *      SYNC: BoardHashTree object<br>
  *      TILE_CHANGED: PlaceTile object<br>
+ *      TILES_CHANGED: ArrayList of PlaceTile objects<br>
+ *
+ * A CHANGE_TILE or CHANGE_TILES may carry an id picked by the client.  The server answers it
+ * with a PLACED, or an ERROR, carrying the same id, so the client can settle
+ * the placement it showed before the server had it.
  *
  * @author Sean Strout @ RIT CS
  */
 public class PlaceRequest<E extends Serializable> implements Serializable {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
     public enum RequestType {
         /**
          * After a successful client login, the server will send the current
@@ -26,6 +41,13 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
          */
         BOARD,
 
+        /**
+         * Used by a primary server to stream its numbered change log to a
+         * replica server.  It will contain a ChangeBatch, which for the first
+         * message after REPLICATE may also hold a snapshot of the board.
+         */
+        CHANGE_LOG,
+
         /**
          * A client's request to the server to change a tile.  It will contain
          * a Tile object.  It is important to note that the client should not
@@ -34,6 +56,31 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
          */
         CHANGE_TILE,
 
+        /**
+         * Used by the client to request many tile changes at once, such as
+         * an image stamped onto the board.  It will contain a list of the
+         * desired Tile objects.  The server places all of them or, if any is
+         * off the board, none, and tells the clients about them together.
+         */
+        CHANGE_TILES,
+
+        /**
+         * Sent by the server, instead of TILE_CHANGED, while changes come in
+         * faster than it is worth sending them one by one.  Every frame it
+         * contains a BoardDiff with the current state of each tile changed
+         * since the last frame.  The clients update their board with all of
+         * them at once.
+         */
+        CHUNK_DIFF,
+
+        /**
+         * Sent by the server instead of BOARD to a client that sent a SYNC
+         * before logging in and whose cached board is the same size.  It
+         * contains every tile of the chunks that differ from the client's
+         * cache; the client copies them into its cached board.
+         */
+        CHUNKS,
+
         /**
          * Used for the server to tell the client there was an error.  It will
          * contain a message about the error. One place this is used is to tell
@@ -45,29 +92,71 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
 
         /**
          * Used by the client to login to the server.  It will contain a string
-         * that is the desired username for the client.
+         * that is the desired username for the client, or a PlaceLogin with the
+         * username and the canvas to join.
          */
         LOGIN,
 
         /**
          * Used by the server to indicate to the client the login succeeded.
-         * It will contain a string indicating this.
+         * It will contain a string indicating this, or, when the client
+         * logged in with a PlaceLogin, a PlaceLogin holding the capabilities
+         * the server turned on.  With PlaceLogin.DEFLATE everything the
+         * server sends after it is compressed.
          */
         LOGIN_SUCCESS,
 
+        /**
+         * Sent by the server only to the client whose CHANGE_TILE or
+         * CHANGE_TILES carried an id, once the change is on the board.  It
+         * will contain the tile, or the list of tiles, and carry the same
+         * id.  It is sent after the TILE_CHANGED or frame that holds the
+         * change, so by the time it arrives the client's board has the
+         * change, or a later one.  A server that passes the change on to
+         * another, such as a relay, waits for that server's answer first.
+         * A change that can't be placed is answered with an ERROR carrying
+         * its id instead.
+         */
+        PLACED,
+
+        /**
+         * Sent by a replica server, instead of LOGIN, to follow a primary
+         * server's change log.  It will contain the sequence number of the
+         * last change the replica has, or -1 if it has none.  The replica may
+         * then send CHANGE_TILE requests on behalf of its own clients.
+         */
+        REPLICATE,
+
+        /**
+         * Optionally sent by a client just before LOGIN when it has a board
+         * cached from an earlier session.  It will contain the hash tree of
+         * the cached board, so the server can answer with CHUNKS instead of
+         * the whole BOARD.
+         */
+        SYNC,
+
         /**
          * Used by the server to indicate to all clients that a tile has
          * officially been changed.  It will contain the new Tile object.
          * The clients should update their view of the board each time
          * a tile change arrives.
          */
-        TILE_CHANGED
+        TILE_CHANGED,
+
+        /**
+         * Used by the server to tell all clients that a batch of tiles has
+         * officially been changed at once, for example when an admin reverts
+         * a user's changes.  It will contain a list of the new Tile objects.
+         */
+        TILES_CHANGED
     }
 
     /** The request type */
     private RequestType type;
     /** The data associated with the request */
     private E data;
+    /** The client's id for a CHANGE_TILE and the answer to it, or 0 for none */
+    private long id;
 
     /**
      * Create a new request.
@@ -80,6 +169,19 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
         this.data = data;
     }
 
+    /**
+     * Create a new request that carries an id.
+     *
+     * @param type request type
+     * @param data the data
+     * @param id the client's id of the CHANGE_TILE, or 0 for none
+     */
+    public PlaceRequest(RequestType type, E data, long id) {
+        this.type = type;
+        this.data = data;
+        this.id = id;
+    }
+
     /**
      * Get the type of request.
      *
@@ -94,6 +196,13 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
      */
     public E getData() { return data; }
 
+    /**
+     * Get the client's id of the CHANGE_TILE this request is or answers.
+     *
+     * @return the id, or 0 for none
+     */
+    public long getId() { return id; }
+
     /**
      * Utility method for debugging only.
      *
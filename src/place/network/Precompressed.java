@@ -0,0 +1,10 @@
+package place.network;
+
+/**
+ * Marks request data that holds bytes which are already compressed, such as
+ * a {@link BoardSnapshot} or a {@link Deflated} frame.  The data is
+ * compressed once and shared by every client it is sent to; a compressed
+ * connection passes it through without compressing it again.
+ */
+public interface Precompressed {
+}
@@ -0,0 +1,51 @@
+package place.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sits between a socket and an ObjectInputStream so that the connection can
+ * start decompressing part way through, the reading side of a
+ * {@link SwitchableOutputStream}.  An ObjectInputStream doesn't read past the
+ * end of the object it returns, so switching right after reading the
+ * LOGIN_SUCCESS that turned compression on loses nothing.
+ */
+public class SwitchableInputStream extends FilterInputStream {
+    /** The buffer of the decompressor */
+    private static final int BUFFER = 8192;
+
+    /** The decompressor, or null while the stream is plain */
+    private Inflater inflater;
+
+    /**
+     * Wrap a plain stream.
+     *
+     * @param in the socket's stream
+     */
+    public SwitchableInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Decompress everything read from now on.
+     */
+    public void startInflating() {
+        if (inflater != null)
+            return;
+        inflater = new Inflater();
+        in = new InflaterInputStream(in, inflater, BUFFER);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+}
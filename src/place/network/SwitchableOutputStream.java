@@ -0,0 +1,87 @@
+package place.network;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Sits between a socket and an ObjectOutputStream so that the connection can
+ * start compressing part way through, once both ends have agreed to it in the
+ * LOGIN_SUCCESS handshake.  The compressor is kept for the whole connection,
+ * so its dictionary carries over from one message to the next, and every
+ * flush is a sync flush, so the other end can read everything written so far.
+ */
+public class SwitchableOutputStream extends FilterOutputStream {
+    /** The buffer of the compressor */
+    private static final int BUFFER = 8192;
+
+    /** The compressor, or null while the stream is plain */
+    private Deflater deflater;
+
+    /** The compression level used unless it is overridden for one message */
+    private int level;
+
+    /**
+     * Wrap a plain stream.
+     *
+     * @param out the socket's stream
+     */
+    public SwitchableOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Compress everything written from now on.  Everything written so far
+     * is flushed first, uncompressed.
+     *
+     * @param level the compression level
+     * @throws IOException if the flush fails
+     */
+    public void startDeflating(int level) throws IOException {
+        if (deflater != null)
+            return;
+        out.flush();
+        this.level = level;
+        deflater = new Deflater(level);
+        out = new DeflaterOutputStream(out, deflater, BUFFER, true);
+    }
+
+    /**
+     * Tell whether the stream is compressing.
+     *
+     * @return true once {@link #startDeflating} has been called
+     */
+    public boolean isDeflating() {
+        return deflater != null;
+    }
+
+    /**
+     * Store the next bytes without compressing them, for data that is
+     * already compressed, or go back to the normal level.  The stream must be
+     * flushed before each switch so the bytes written before it are
+     * compressed at the level they were written at.
+     *
+     * @param stored true to store, false to compress again
+     */
+    public void setStored(boolean stored) {
+        if (deflater != null)
+            deflater.setLevel(stored ? Deflater.NO_COMPRESSION : level);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+}
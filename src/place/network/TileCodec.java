@@ -0,0 +1,99 @@
+package place.network;
+
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compact binary form of a tile for the transports that don't use Java
+ * serialization, such as the multicast feed.  A tile is its row and column,
+ * its color number, its time and its owner, written with DataOutput.
+ */
+public class TileCodec {
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** The bytes an encoded tile takes besides its owner's name */
+    public static final int FIXED_SIZE = 4 + 4 + 1 + 8 + 2;
+
+    /**
+     * Write a tile.
+     *
+     * @param out where to write it
+     * @param tile the tile
+     * @throws IOException if the write fails
+     */
+    public static void write(DataOutput out, PlaceTile tile) throws IOException {
+        out.writeInt(tile.getRow());
+        out.writeInt(tile.getCol());
+        out.writeByte(tile.getColor().getNumber());
+        out.writeLong(tile.getTime());
+        out.writeUTF(tile.getOwner() == null ? "" : tile.getOwner());
+    }
+
+    /**
+     * Read a tile written by {@link #write}.
+     *
+     * @param in where to read it from
+     * @return the tile
+     * @throws IOException if the read fails or the color is unknown
+     */
+    public static PlaceTile read(DataInput in) throws IOException {
+        int row = in.readInt();
+        int col = in.readInt();
+        int color = in.readUnsignedByte();
+        if (color >= COLORS.length)
+            throw new IOException("Unknown color " + color);
+        long time = in.readLong();
+        String owner = in.readUTF();
+        return new PlaceTile(row, col, owner, COLORS[color], time);
+    }
+
+    /**
+     * Get the number of bytes {@link #write} produces for a tile, assuming the
+     * owner's name is plain ASCII.
+     *
+     * @param tile the tile
+     * @return the encoded size
+     */
+    public static int size(PlaceTile tile) {
+        return FIXED_SIZE + (tile.getOwner() == null ? 0 : tile.getOwner().length());
+    }
+
+    /**
+     * Write a non-negative number 7 bits at a time, low bits first.
+     *
+     * @param out where to write
+     * @param value the number
+     * @throws IOException if writing fails
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Read a number written by {@link #writeVarLong(DataOutput, long)}.
+     *
+     * @param in where to read
+     * @return the number
+     * @throws IOException if reading fails
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
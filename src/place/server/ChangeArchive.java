@@ -0,0 +1,758 @@
+package place.server;
+
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.TileCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An on-disk archive of every tile change, stored by column.  Changes are
+ * collected in memory and written out in blocks; each block holds separately
+ * compressed columns for the time, row, column, color and user id of its
+ * changes.
+ *
+ * Two indexes are kept so that queries only read the blocks they need: a
+ * posting list of blocks for every user, and a map from time buckets to the
+ * blocks holding a change in that bucket.  Queries that only need some of the
+ * columns (like counting contributors) only decompress those columns.
+ *
+ * The archive directory holds two files: columns.dat with the blocks, and
+ * index.dat, a journal with one record for every block: the users first seen
+ * in it, where it is, and which users and time buckets it holds.  Full blocks
+ * are compressed and written by a background thread, so the server never
+ * waits for the disk; until a block is on disk queries read it from memory.
+ * Queries only hold the lock while they pick the blocks to read, and read and
+ * decode them after, so a slow query doesn't hold up the changes being added.
+ */
+public class ChangeArchive {
+    /** The number of changes in a full block */
+    private static final int BLOCK_SIZE = 4096;
+
+    /** The width of a time bucket, in milliseconds */
+    private static final long BUCKET_MILLIS = 60 * 1000;
+
+    /** The column numbers, in the order they are stored in a block */
+    private static final int TIME = 0, ROW = 1, COL = 2, COLOR = 3, USER = 4, COLUMNS = 5;
+
+    /** Marks the start of the index file */
+    private static final int INDEX_MAGIC = 0x504c414a;
+
+    /**
+     * Where a block is in the column file.
+     */
+    private static class Block {
+        /** offset of the block in columns.dat */
+        long offset;
+        /** compressed length of each column */
+        int[] lengths = new int[COLUMNS];
+        /** number of changes in the block */
+        int count;
+        /**
+         * the changes, until the block has been written to disk; then null.  Queries read it
+         * without the archive locked, and once it is null the offset and lengths are set.
+         */
+        volatile Columns memory;
+    }
+
+    /**
+     * The decoded columns of a block.  Columns that were not asked for are null.
+     */
+    private static class Columns {
+        long[] time;
+        int[] row;
+        int[] col;
+        int[] color;
+        int[] user;
+    }
+
+    /** The file holding the blocks */
+    private final File columnFile;
+
+    /** The file holding the indexes */
+    private final File indexFile;
+
+    /** The blocks written so far */
+    private List<Block> blocks = new ArrayList<>();
+
+    /** The user names; a user's id is their position in this list */
+    private List<String> users = new ArrayList<>();
+
+    /** The ids of the users */
+    private HashMap<String, Integer> userIds = new HashMap<>();
+
+    /** For every user id, the blocks that hold changes by that user */
+    private List<TreeSet<Integer>> postings = new ArrayList<>();
+
+    /** For every time bucket, the blocks that hold changes in that bucket */
+    private TreeMap<Long, TreeSet<Integer>> buckets = new TreeMap<>();
+
+    /** The changes that have not been written to a block yet */
+    private Columns pending = newColumns(BLOCK_SIZE);
+
+    /** The number of changes in pending */
+    private int pendingCount = 0;
+
+    /** The number of users already named in a block handed to the writer */
+    private int usersSealed = 0;
+
+    /** Compresses and writes full blocks, one at a time and in order */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "PLACEARCHIVE");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The last block handed to the writer, to wait for on flush */
+    private Future<?> lastWrite;
+
+    /** Where the next block goes in columns.dat; only used by the writer after opening */
+    private long end;
+
+    /** Why the writer last failed, or null; reported by the next append or flush */
+    private volatile IOException failure;
+
+    /**
+     * Open an archive, creating it if the directory is empty.
+     *
+     * @param dir the archive directory
+     * @throws PlaceException if an existing archive can't be read
+     */
+    public ChangeArchive(String dir) throws PlaceException {
+        File directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new PlaceException("Can't create archive directory " + dir);
+        columnFile = new File(directory, "columns.dat");
+        indexFile = new File(directory, "index.dat");
+        try {
+            if (indexFile.exists())
+                readIndex();
+            else
+                writeIndexHeader();
+            usersSealed = users.size();
+            // drop a block that was written but never made it into the index
+            end = blocks.isEmpty() ? 0 : endOf(blocks.get(blocks.size() - 1));
+            try (RandomAccessFile file = new RandomAccessFile(columnFile, "rw")) {
+                if (file.length() != end)
+                    file.setLength(end);
+            }
+        } catch (IOException e) {
+            throw new PlaceException("Can't open archive in " + dir, e);
+        }
+    }
+
+    /**
+     * Record a tile change.
+     *
+     * @param tile the new tile
+     * @throws IOException if an earlier block couldn't be written
+     */
+    public synchronized void append(PlaceTile tile) throws IOException {
+        checkFailure();
+        int i = pendingCount++;
+        pending.time[i] = tile.getTime();
+        pending.row[i] = tile.getRow();
+        pending.col[i] = tile.getCol();
+        pending.color[i] = tile.getColor().getNumber();
+        pending.user[i] = idOf(tile.getOwner() == null ? "" : tile.getOwner());
+        if (pendingCount == BLOCK_SIZE)
+            seal();
+    }
+
+    /**
+     * Write any pending changes out as a (possibly short) block, and wait
+     * until every block is on disk.
+     *
+     * @throws IOException if a block can't be written
+     */
+    public void flush() throws IOException {
+        Future<?> last;
+        synchronized (this) {
+            if (pendingCount > 0)
+                seal();
+            last = lastWrite;
+        }
+        if (last != null) {
+            try {
+                last.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing the archive", e);
+            } catch (ExecutionException e) {
+                // the failure is recorded and reported below
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Flush the pending changes.  The archive can still be used afterwards.
+     *
+     * @throws IOException if the changes can't be written
+     */
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Turn the pending changes into a block.  It is indexed in memory right
+     * away, so queries find it, and handed to the writer to be put on disk.
+     */
+    private void seal() {
+        Block block = new Block();
+        block.count = pendingCount;
+        block.memory = pending;
+        int number = blocks.size();
+        blocks.add(block);
+        for (int i = 0; i < pendingCount; ++i) {
+            postings.get(pending.user[i]).add(number);
+            buckets.computeIfAbsent(bucketOf(pending.time[i]), b -> new TreeSet<>()).add(number);
+        }
+        List<String> newUsers = new ArrayList<>(users.subList(usersSealed, users.size()));
+        usersSealed = users.size();
+        pending = newColumns(BLOCK_SIZE);
+        pendingCount = 0;
+        lastWrite = writer.submit(() -> write(block, newUsers));
+    }
+
+    /**
+     * Compress a block, append it to the column file and add its record to
+     * the index.  Runs on the writer thread.
+     *
+     * @param block the block, still in memory
+     * @param newUsers the users first seen in this block, in id order
+     */
+    private void write(Block block, List<String> newUsers) {
+        if (failure != null)
+            return;
+        try {
+            Columns columns = block.memory;
+            byte[][] compressed = encode(columns, block.count);
+            block.offset = end;
+            try (RandomAccessFile file = new RandomAccessFile(columnFile, "rw")) {
+                file.seek(block.offset);
+                for (int c = 0; c < COLUMNS; ++c) {
+                    block.lengths[c] = compressed[c].length;
+                    file.write(compressed[c]);
+                }
+            }
+            end = endOf(block);
+            appendIndexRecord(block, columns, newUsers);
+            synchronized (this) {
+                block.memory = null;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Throw the writer's last failure, if there was one.
+     *
+     * @throws IOException the failure
+     */
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null)
+            throw new IOException("Could not write the archive: " + e.getMessage(), e);
+    }
+
+    /**
+     * Count the changes made by each user in a window of time, and return
+     * the users with the most changes.
+     *
+     * @param from the start of the window, in milliseconds
+     * @param to the end of the window (exclusive), in milliseconds
+     * @param limit the most users to return
+     * @return user names and their change counts, highest count first
+     * @throws IOException if the archive can't be read
+     */
+    public List<Map.Entry<String, Integer>> topContributors(long from, long to, int limit)
+            throws IOException {
+        List<Map.Entry<String, Integer>> top = new ArrayList<>();
+        if (to <= from)
+            return top;
+        List<String> names;
+        List<Block> inWindow = new ArrayList<>();
+        Columns recent;
+        int recentCount;
+        synchronized (this) {
+            names = new ArrayList<>(users);
+            SortedSet<Integer> numbers = new TreeSet<>();
+            for (TreeSet<Integer> bucket : buckets.subMap(bucketOf(from), true, bucketOf(to - 1), true).values())
+                numbers.addAll(bucket);
+            for (int number : numbers)
+                inWindow.add(blocks.get(number));
+            // the pending changes before pendingCount are never changed again
+            recent = pending;
+            recentCount = pendingCount;
+        }
+        int[] counts = new int[names.size()];
+        for (Block block : inWindow)
+            countWindow(read(block, TIME, USER), block.count, from, to, counts);
+        countWindow(recent, recentCount, from, to, counts);
+
+        for (int id = 0; id < counts.length; ++id) {
+            if (counts[id] > 0)
+                top.add(new AbstractMap.SimpleEntry<>(names.get(id), counts[id]));
+        }
+        top.sort((a, b) -> b.getValue() - a.getValue());
+        return top.size() > limit ? new ArrayList<>(top.subList(0, limit)) : top;
+    }
+
+    /**
+     * Add up the changes in a set of columns that fall in a time window.
+     *
+     * @param columns the columns, with time and user decoded
+     * @param count the number of changes in the columns
+     * @param from start of the window
+     * @param to end of the window (exclusive)
+     * @param counts the count for each user id, added to
+     */
+    private static void countWindow(Columns columns, int count, long from, long to, int[] counts) {
+        for (int i = 0; i < count; ++i) {
+            if (columns.time[i] >= from && columns.time[i] < to)
+                counts[columns.user[i]]++;
+        }
+    }
+
+    /**
+     * Get every change made by a user, oldest first.
+     *
+     * @param user the user name
+     * @return the tiles the user placed
+     * @throws IOException if the archive can't be read
+     */
+    public List<PlaceTile> placementsBy(String user) throws IOException {
+        List<PlaceTile> tiles = new ArrayList<>();
+        int id;
+        List<Block> theirs = new ArrayList<>();
+        Columns recent;
+        int recentCount;
+        synchronized (this) {
+            Integer known = userIds.get(user);
+            if (known == null)
+                return tiles;
+            id = known;
+            for (int number : postings.get(id))
+                theirs.add(blocks.get(number));
+            recent = pending;
+            recentCount = pendingCount;
+        }
+        for (Block block : theirs)
+            collect(read(block, TIME, ROW, COL, COLOR, USER), block.count, id, user, tiles);
+        collect(recent, recentCount, id, user, tiles);
+        return tiles;
+    }
+
+    /**
+     * Turn the changes of one user in a set of columns back into tiles.
+     *
+     * @param columns the fully decoded columns
+     * @param count the number of changes in the columns
+     * @param id the user id
+     * @param user the user name
+     * @param tiles where the tiles are added
+     */
+    private static void collect(Columns columns, int count, int id, String user, Collection<PlaceTile> tiles) {
+        PlaceColor[] colors = PlaceColor.values();
+        for (int i = 0; i < count; ++i) {
+            if (columns.user[i] == id)
+                tiles.add(new PlaceTile(columns.row[i], columns.col[i], user,
+                        colors[columns.color[i]], columns.time[i]));
+        }
+    }
+
+    /**
+     * Get the number of changes in the archive.
+     *
+     * @return the number of changes
+     */
+    public synchronized long size() {
+        long size = pendingCount;
+        for (Block block : blocks)
+            size += block.count;
+        return size;
+    }
+
+    /**
+     * Get every change in the archive in the order they were made.
+     *
+     * @return the tiles
+     * @throws IOException if the archive can't be read
+     */
+    public List<PlaceTile> changes() throws IOException {
+        List<PlaceTile> tiles = new ArrayList<>();
+        List<String> names;
+        List<Block> all;
+        Columns recent;
+        int recentCount;
+        synchronized (this) {
+            names = new ArrayList<>(users);
+            all = new ArrayList<>(blocks);
+            recent = pending;
+            recentCount = pendingCount;
+        }
+        for (Block block : all)
+            all(read(block, TIME, ROW, COL, COLOR, USER), block.count, names, tiles);
+        all(recent, recentCount, names, tiles);
+        return tiles;
+    }
+
+    /**
+     * Turn every change in a set of columns back into tiles.
+     *
+     * @param columns the fully decoded columns
+     * @param count the number of changes in the columns
+     * @param names the user names, by id
+     * @param tiles where the tiles are added
+     */
+    private static void all(Columns columns, int count, List<String> names, Collection<PlaceTile> tiles) {
+        PlaceColor[] colors = PlaceColor.values();
+        for (int i = 0; i < count; ++i) {
+            tiles.add(new PlaceTile(columns.row[i], columns.col[i], names.get(columns.user[i]),
+                    colors[columns.color[i]], columns.time[i]));
+        }
+    }
+
+    /**
+     * Get the id of a user, adding them if they are new.
+     *
+     * @param user the user name
+     * @return the id
+     */
+    private int idOf(String user) {
+        Integer id = userIds.get(user);
+        if (id == null) {
+            id = users.size();
+            users.add(user);
+            userIds.put(user, id);
+            postings.add(new TreeSet<>());
+        }
+        return id;
+    }
+
+    /**
+     * Get the time bucket a time falls in.
+     *
+     * @param time the time in milliseconds
+     * @return the bucket number
+     */
+    private static long bucketOf(long time) {
+        return Math.floorDiv(time, BUCKET_MILLIS);
+    }
+
+    /**
+     * Get the position just past the end of a block in the column file.
+     *
+     * @param block the block
+     * @return the end offset
+     */
+    private static long endOf(Block block) {
+        long end = block.offset;
+        for (int length : block.lengths)
+            end += length;
+        return end;
+    }
+
+    /**
+     * Make an empty set of columns.
+     *
+     * @param size how many changes the columns can hold
+     * @return the columns
+     */
+    private static Columns newColumns(int size) {
+        Columns columns = new Columns();
+        columns.time = new long[size];
+        columns.row = new int[size];
+        columns.col = new int[size];
+        columns.color = new int[size];
+        columns.user = new int[size];
+        return columns;
+    }
+
+    /**
+     * Encode and compress each column.  Times are stored as the difference
+     * from the previous time; all numbers are variable length.
+     *
+     * @param columns the columns
+     * @param count the number of changes
+     * @return the compressed bytes of each column
+     * @throws IOException never, the columns are written to memory
+     */
+    private static byte[][] encode(Columns columns, int count) throws IOException {
+        ByteArrayOutputStream[] raw = new ByteArrayOutputStream[COLUMNS];
+        DataOutputStream[] out = new DataOutputStream[COLUMNS];
+        for (int c = 0; c < COLUMNS; ++c) {
+            raw[c] = new ByteArrayOutputStream(count * 2);
+            out[c] = new DataOutputStream(raw[c]);
+        }
+        long lastTime = 0;
+        for (int i = 0; i < count; ++i) {
+            long delta = columns.time[i] - lastTime;
+            TileCodec.writeVarLong(out[TIME], (delta << 1) ^ (delta >> 63));
+            lastTime = columns.time[i];
+            TileCodec.writeVarLong(out[ROW], columns.row[i]);
+            TileCodec.writeVarLong(out[COL], columns.col[i]);
+            out[COLOR].writeByte(columns.color[i]);
+            TileCodec.writeVarLong(out[USER], columns.user[i]);
+        }
+
+        byte[][] compressed = new byte[COLUMNS][];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[8192];
+        for (int c = 0; c < COLUMNS; ++c) {
+            deflater.reset();
+            deflater.setInput(raw[c].toByteArray());
+            deflater.finish();
+            ByteArrayOutputStream column = new ByteArrayOutputStream();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                column.write(buffer, 0, n);
+            }
+            compressed[c] = column.toByteArray();
+        }
+        deflater.end();
+        return compressed;
+    }
+
+    /**
+     * Read and decode some of the columns of a block.
+     *
+     * @param block the block
+     * @param wanted the columns to decode
+     * @return the columns, with the ones not wanted left null
+     * @throws IOException if the block can't be read
+     */
+    private Columns read(Block block, int... wanted) throws IOException {
+        Columns memory = block.memory;
+        if (memory != null)
+            return memory;
+        Columns columns = new Columns();
+        try (RandomAccessFile file = new RandomAccessFile(columnFile, "r")) {
+            Inflater inflater = new Inflater();
+            for (int c : wanted) {
+                long offset = block.offset;
+                for (int before = 0; before < c; ++before)
+                    offset += block.lengths[before];
+                byte[] compressed = new byte[block.lengths[c]];
+                file.seek(offset);
+                file.readFully(compressed);
+                inflater.reset();
+                inflater.setInput(compressed);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(inflater)));
+                int count = block.count;
+                switch (c) {
+                    case TIME:
+                        columns.time = new long[count];
+                        long time = 0;
+                        for (int i = 0; i < count; ++i) {
+                            long zigzag = TileCodec.readVarLong(in);
+                            time += (zigzag >>> 1) ^ -(zigzag & 1);
+                            columns.time[i] = time;
+                        }
+                        break;
+                    case ROW:
+                        columns.row = readInts(in, count);
+                        break;
+                    case COL:
+                        columns.col = readInts(in, count);
+                        break;
+                    case COLOR:
+                        columns.color = new int[count];
+                        for (int i = 0; i < count; ++i)
+                            columns.color[i] = in.readUnsignedByte();
+                        break;
+                    case USER:
+                        columns.user = readInts(in, count);
+                        break;
+                }
+            }
+            inflater.end();
+        }
+        return columns;
+    }
+
+    /**
+     * Decompress everything given to an inflater.
+     *
+     * @param inflater the inflater, with its input set
+     * @return the decompressed bytes
+     * @throws IOException if the data is corrupt
+     */
+    private static byte[] inflate(Inflater inflater) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput())
+                    throw new EOFException("Truncated archive column");
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt archive column", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read a column of variable length ints.
+     *
+     * @param in the decompressed column
+     * @param count how many to read
+     * @return the ints
+     * @throws IOException if the column is short
+     */
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; ++i)
+            values[i] = (int) TileCodec.readVarLong(in);
+        return values;
+    }
+
+    /**
+     * Start a new, empty index file.
+     *
+     * @throws IOException if the index can't be written
+     */
+    private void writeIndexHeader() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
+            out.writeInt(INDEX_MAGIC);
+        }
+    }
+
+    /**
+     * Append a block's record to the index: the users first seen in it, where
+     * it is, and the users and time buckets it holds.  The record is written
+     * with its length and checksum, so a record cut short by a crash is
+     * recognized and dropped when the archive is opened again.
+     *
+     * @param block the block, already in the column file
+     * @param columns its changes
+     * @param newUsers the users first seen in this block, in id order
+     * @throws IOException if the index can't be written
+     */
+    private void appendIndexRecord(Block block, Columns columns, List<String> newUsers) throws IOException {
+        TreeSet<Integer> blockUsers = new TreeSet<>();
+        TreeSet<Long> blockBuckets = new TreeSet<>();
+        for (int i = 0; i < block.count; ++i) {
+            blockUsers.add(columns.user[i]);
+            blockBuckets.add(bucketOf(columns.time[i]));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(newUsers.size());
+        for (String user : newUsers)
+            record.writeUTF(user);
+        record.writeLong(block.offset);
+        record.writeInt(block.count);
+        for (int length : block.lengths)
+            record.writeInt(length);
+        record.writeInt(blockUsers.size());
+        for (int id : blockUsers)
+            TileCodec.writeVarLong(record, id);
+        record.writeInt(blockBuckets.size());
+        for (long bucket : blockBuckets)
+            record.writeLong(bucket);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile, true)))) {
+            out.writeInt(bytes.size());
+            out.writeInt((int) crc.getValue());
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Load the users, blocks and indexes from the index file.  A last record
+     * that is incomplete or doesn't match its checksum is cut off.
+     *
+     * @throws IOException if the index can't be read
+     */
+    private void readIndex() throws IOException {
+        long size = indexFile.length();
+        long good;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC)
+                throw new IOException(indexFile + " is not an archive index");
+            good = 4;
+            while (good + 8 <= size) {
+                int length = in.readInt();
+                int check = in.readInt();
+                if (length < 0 || good + 8 + length > size)
+                    break;
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if ((int) crc.getValue() != check)
+                    break;
+                readIndexRecord(new DataInputStream(new ByteArrayInputStream(bytes)));
+                good += 8 + bytes.length;
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            if (file.length() != good)
+                file.setLength(good);
+        }
+    }
+
+    /**
+     * Add one block's record from the index.
+     *
+     * @param in the record
+     * @throws IOException if the record is corrupt
+     */
+    private void readIndexRecord(DataInputStream in) throws IOException {
+        for (int n = in.readInt(); n > 0; --n)
+            idOf(in.readUTF());
+        Block block = new Block();
+        block.offset = in.readLong();
+        block.count = in.readInt();
+        for (int c = 0; c < COLUMNS; ++c)
+            block.lengths[c] = in.readInt();
+        int number = blocks.size();
+        blocks.add(block);
+        for (int n = in.readInt(); n > 0; --n) {
+            int id = (int) TileCodec.readVarLong(in);
+            if (id >= postings.size())
+                throw new IOException("Corrupt archive index");
+            postings.get(id).add(number);
+        }
+        for (int n = in.readInt(); n > 0; --n)
+            buckets.computeIfAbsent(in.readLong(), b -> new TreeSet<>()).add(number);
+    }
+}
@@ -0,0 +1,247 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.network.ChangeBatch;
+import place.network.MulticastProtocol;
+import place.network.NetworkServer;
+import place.network.TileCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes a server's changes once over UDP multicast, so that any number of
+ * displays on the LAN can follow the board for the cost of one datagram per
+ * batch.  Receivers repair gaps over a small TCP channel.  The datagrams and
+ * the repair channel are described in {@link MulticastProtocol}.
+ */
+public class MulticastFeed implements NetworkServer.Feed {
+    /** The number of recent changes kept for repairs */
+    private static final int HISTORY = 1 << 16;
+
+    /** How long to wait, in milliseconds, before sending a heartbeat */
+    private static final int HEARTBEAT = 1000;
+
+    /** The server being published */
+    private final NetworkServer server;
+
+    /** The socket datagrams are sent from */
+    private final MulticastSocket socket;
+
+    /** The multicast group */
+    private final InetAddress group;
+
+    /** The multicast port */
+    private final int port;
+
+    /** Accepts repair connections */
+    private final ServerSocket repairSocket;
+
+    /** The most recent changes, indexed by sequence number modulo HISTORY */
+    private final PlaceTile[] history = new PlaceTile[HISTORY];
+
+    /** The sequence number of the newest change in the history, or 0 before the first */
+    private long newest = 0;
+
+    /** The sequence number of the last change multicast */
+    private long sent = 0;
+
+    /**
+     * Create a feed.  Nothing is published until {@link #start()}.
+     *
+     * @param server the server to publish
+     * @param group the multicast group, for example 239.1.2.3
+     * @param port the multicast port
+     * @param repairPort the TCP port receivers ask for repairs on
+     * @param networkInterface the interface to send on, or null for the default
+     * @throws IOException if the sockets can't be opened
+     */
+    public MulticastFeed(NetworkServer server, InetAddress group, int port, int repairPort,
+                         NetworkInterface networkInterface) throws IOException {
+        this.server = server;
+        this.group = group;
+        this.port = port;
+        this.socket = new MulticastSocket();
+        socket.setTimeToLive(1);
+        if (networkInterface != null)
+            socket.setNetworkInterface(networkInterface);
+        this.repairSocket = new ServerSocket(repairPort);
+    }
+
+    /**
+     * Start following the server, multicasting its changes and answering
+     * repairs.
+     */
+    public void start() {
+        synchronized (this) {
+            newest = server.snapshot().getFirst() - 1;
+            sent = newest;
+        }
+        server.addFeed(this);
+        Thread sender = new Thread(this::sendLoop, "MULTICASTSENDER");
+        sender.setDaemon(true);
+        sender.start();
+        Thread repairs = new Thread(this::acceptRepairs, "MULTICASTREPAIR");
+        repairs.setDaemon(true);
+        repairs.start();
+        System.out.println("Multicasting changes to " + group.getHostAddress() + ":" + port +
+                ", repairs on port " + repairSocket.getLocalPort());
+    }
+
+    /**
+     * Add changes to the history and wake up the sender.  Called with the
+     * server locked, so it only copies references.
+     *
+     * @param first the sequence number of the first change
+     * @param tiles the changes, in order
+     */
+    @Override
+    public synchronized void publish(long first, List<PlaceTile> tiles) {
+        long number = first;
+        for (PlaceTile tile : tiles)
+            history[(int) (number++ % HISTORY)] = tile;
+        newest = number - 1;
+        notifyAll();
+    }
+
+    /**
+     * Multicast the changes in the history as they arrive, packing as many
+     * as fit into each datagram, and send a heartbeat when there are none.
+     */
+    private void sendLoop() {
+        ArrayList<PlaceTile> pending = new ArrayList<>();
+        while (true) {
+            long first;
+            pending.clear();
+            synchronized (this) {
+                if (newest == sent) {
+                    try {
+                        wait(HEARTBEAT);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // a sender that fell a whole history behind skips ahead; receivers repair
+                first = Math.max(sent + 1, newest - HISTORY + 1);
+                for (long number = first; number <= newest; ++number)
+                    pending.add(history[(int) (number % HISTORY)]);
+                sent = newest;
+            }
+            try {
+                if (pending.isEmpty())
+                    send(first, pending, 0, 0);
+                int from = 0;
+                while (from < pending.size()) {
+                    int to = from;
+                    int size = MulticastProtocol.HEADER;
+                    while (to < pending.size() && to - from < Short.MAX_VALUE &&
+                            size + TileCodec.size(pending.get(to)) <= MulticastProtocol.MAX_DATAGRAM) {
+                        size += TileCodec.size(pending.get(to));
+                        ++to;
+                    }
+                    if (to == from)
+                        ++to;   // a tile with a huge owner name still goes out on its own
+                    send(first + from, pending, from, to);
+                    from = to;
+                }
+            } catch (IOException e) {
+                System.err.println("Could not multicast changes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Multicast one datagram.
+     *
+     * @param first the sequence number of the first change in it
+     * @param tiles the changes
+     * @param from the index of the first change to send
+     * @param to the index after the last change to send
+     * @throws IOException if the send fails
+     */
+    private void send(long first, List<PlaceTile> tiles, int from, int to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MulticastProtocol.MAX_DATAGRAM);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MulticastProtocol.MAGIC);
+        out.writeLong(first);
+        out.writeShort(to - from);
+        for (int i = from; i < to; ++i)
+            TileCodec.write(out, tiles.get(i));
+        byte[] data = bytes.toByteArray();
+        socket.send(new DatagramPacket(data, data.length, group, port));
+    }
+
+    /**
+     * Accept repair connections, each served on its own thread.
+     */
+    private void acceptRepairs() {
+        while (true) {
+            try {
+                Socket client = repairSocket.accept();
+                Thread thread = new Thread(() -> serveRepairs(client), "MULTICASTREPAIRCLIENT");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                System.err.println("Repair channel closed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answer one receiver's repair requests until it disconnects.
+     *
+     * @param client the receiver's connection
+     */
+    private void serveRepairs(Socket client) {
+        try (Socket socket = client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                long from = in.readLong();
+                long to = in.readLong();
+                ArrayList<PlaceTile> missed = null;
+                synchronized (this) {
+                    if (from > 0 && from <= to && to <= newest && newest - from < HISTORY) {
+                        missed = new ArrayList<>();
+                        for (long number = from; number <= to; ++number)
+                            missed.add(history[(int) (number % HISTORY)]);
+                    }
+                }
+                if (missed != null) {
+                    out.writeByte(MulticastProtocol.REPAIR_CHANGES);
+                    out.writeLong(from);
+                    out.writeInt(missed.size());
+                    for (PlaceTile tile : missed)
+                        TileCodec.write(out, tile);
+                } else {
+                    ChangeBatch snapshot = server.snapshot();
+                    PlaceBoard board = snapshot.getBoard();
+                    out.writeByte(MulticastProtocol.REPAIR_SNAPSHOT);
+                    out.writeLong(snapshot.getFirst());
+                    out.writeInt(board.DIM);
+                    for (PlaceTile[] row : board.getBoard()) {
+                        for (PlaceTile tile : row)
+                            TileCodec.write(out, tile);
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the receiver went away
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package place.server;
+
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.BoardDiff;
+import place.network.NetworkServer;
+import place.network.PlaceConnection;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the changes recorded in a {@link ChangeArchive} against a server,
+ * either in this process straight into {@link NetworkServer#changeTile} or
+ * over the socket protocol to a running {@link PlaceServer}.  The recorded
+ * gaps between changes are divided by a speed multiplier, or dropped
+ * entirely to replay as fast as possible.
+ *
+ * At the end it reports the throughput that was achieved and the latency of
+ * each change: the time spent in changeTile when replaying in process, or the
+ * time from sending CHANGE_TILE to seeing the TILE_CHANGED come back over the
+ * socket.  Over the socket every change is sent with an id, so the changes
+ * the server refuses are answered with an ERROR and counted instead of being
+ * waited for.
+ */
+public class PlaceReplay {
+    /** The number of connections that changes are spread over in socket mode */
+    private static final int CONNECTIONS = 16;
+
+    /** The changes being replayed, in recorded order */
+    private final List<PlaceTile> changes;
+
+    /** The speed multiplier, or 0 to replay as fast as possible */
+    private final double speed;
+
+    /** The latency of each change in nanoseconds, or -1 until it is known */
+    private final long[] latencies;
+
+    /** In socket mode, the send time of each change still waiting for its TILE_CHANGED */
+    private final ConcurrentHashMap<String, Long> sent = new ConcurrentHashMap<>();
+
+    /** In socket mode, the position of each change still waiting for its TILE_CHANGED */
+    private final ConcurrentHashMap<String, Integer> positions = new ConcurrentHashMap<>();
+
+    /** In socket mode, the number of changes that have come back */
+    private final AtomicInteger received = new AtomicInteger();
+
+    /** In socket mode, the number of changes the server refused */
+    private final AtomicInteger refused = new AtomicInteger();
+
+    /** In socket mode, when the last change came back or was refused, in nanoseconds, or 0 */
+    private final AtomicLong lastAnswer = new AtomicLong();
+
+    /**
+     * Create a replay.
+     *
+     * @param changes the changes to replay
+     * @param speed the speed multiplier, or 0 for as fast as possible
+     */
+    public PlaceReplay(List<PlaceTile> changes, double speed) {
+        this.changes = changes;
+        this.speed = speed;
+        this.latencies = new long[changes.size()];
+        Arrays.fill(latencies, -1);
+    }
+
+    /**
+     * Wait until it is time to send a change.
+     *
+     * @param index the position of the change
+     * @param start when the replay started, in nanoseconds
+     */
+    private void pace(int index, long start) {
+        if (speed <= 0)
+            return;
+        long offset = (long) ((changes.get(index).getTime() - changes.get(0).getTime()) * 1e6 / speed);
+        long wait = start + offset - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replay straight into a server in this process.
+     *
+     * @param server the server
+     * @return the elapsed time in nanoseconds
+     */
+    public long replayLocal(NetworkServer server) {
+        long start = System.nanoTime();
+        for (int i = 0; i < changes.size(); ++i) {
+            pace(i, start);
+            long before = System.nanoTime();
+            server.changeTile(changes.get(i));
+            latencies[i] = System.nanoTime() - before;
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Replay over the socket protocol.  The changes are spread round robin
+     * over several connections; every connection reads the broadcasts it gets
+     * back and the ERRORs for its own changes, and the first one also times
+     * the broadcasts.
+     *
+     * @param host the server host
+     * @param port the server port
+     * @return the time from the first send to the last change that came back
+     *         or was refused, or to the last send if that was later, in nanoseconds
+     * @throws IOException if a connection fails
+     * @throws PlaceException if a login fails
+     */
+    public long replaySocket(String host, int port) throws IOException, PlaceException {
+        List<PlaceConnection> connections = new ArrayList<>();
+        for (int c = 0; c < CONNECTIONS; ++c) {
+            PlaceConnection connection = new PlaceConnection(host, port);
+            // the recorded owners are kept, so the changes come back as they were sent
+            connection.login("replay-" + c + "-" + System.nanoTime(), PlaceLogin.FORWARD);
+            connections.add(connection);
+            boolean timing = c == 0;
+            Thread reader = new Thread(() -> drain(connection, timing), "REPLAYREADER");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < changes.size(); ++i) {
+            pace(i, start);
+            PlaceTile tile = changes.get(i);
+            String key = keyOf(tile);
+            positions.put(key, i);
+            sent.put(key, System.nanoTime());
+            // the id is the change's position plus one, since 0 asks for no answer
+            connections.get(i % CONNECTIONS).send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile, i + 1));
+        }
+        long lastSend = System.nanoTime();
+        // give the last broadcasts a chance to arrive; changes overwritten within a frame never do
+        long deadline = System.currentTimeMillis() + 10000;
+        long quiet = System.currentTimeMillis() + 1000;
+        int seen = answered();
+        while (answered() < changes.size() && System.currentTimeMillis() < Math.min(deadline, quiet)) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (answered() != seen) {
+                seen = answered();
+                quiet = System.currentTimeMillis() + 1000;
+            }
+        }
+        // the wait for stragglers isn't part of the replay
+        long elapsed = Math.max(lastSend, lastAnswer.get()) - start;
+        for (PlaceConnection connection : connections)
+            connection.close();
+        return elapsed;
+    }
+
+    /**
+     * Get the number of changes that have come back or been refused.
+     *
+     * @return the number of changes
+     */
+    private int answered() {
+        return received.get() + refused.get();
+    }
+
+    /**
+     * Read broadcasts until the connection closes, timing the ones that
+     * match a change that was sent, and counting the changes refused.
+     *
+     * @param connection the connection
+     * @param timing whether this connection records latencies
+     */
+    private void drain(PlaceConnection connection, boolean timing) {
+        try {
+            while (true) {
+                PlaceRequest<?> req = connection.read();
+                if (req.getType() == PlaceRequest.RequestType.ERROR && req.getId() > 0 &&
+                        req.getId() <= changes.size()) {
+                    refused(changes.get((int) req.getId() - 1));
+                    continue;
+                }
+                if (!timing)
+                    continue;
+                long now = System.nanoTime();
+                if (req.getType() == PlaceRequest.RequestType.TILE_CHANGED) {
+                    arrived((PlaceTile) req.getData(), now);
+                } else if (req.getType() == PlaceRequest.RequestType.TILES_CHANGED) {
+                    // what a slow connection's waiting changes are collapsed into
+                    for (Object tile : (List<?>) req.getData())
+                        arrived((PlaceTile) tile, now);
+                } else if (req.getType() == PlaceRequest.RequestType.CHUNK_DIFF) {
+                    for (PlaceTile tile : ((BoardDiff) req.getData()).getTiles())
+                        arrived(tile, now);
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            // the replay is over
+        }
+    }
+
+    /**
+     * Record the latency of a change that came back, if it is one that was sent.  A change that
+     * was overwritten before a frame went out never comes back and has no latency.
+     *
+     * @param tile the tile
+     * @param now when it arrived, in nanoseconds
+     */
+    private void arrived(PlaceTile tile, long now) {
+        String key = keyOf(tile);
+        Long when = sent.remove(key);
+        Integer index = positions.remove(key);
+        if (when != null && index != null) {
+            latencies[index] = now - when;
+            received.incrementAndGet();
+            lastAnswer.accumulateAndGet(now, Math::max);
+        }
+    }
+
+    /**
+     * Count a change the server refused.  It never comes back, so it is no
+     * longer waited for.
+     *
+     * @param tile the tile
+     */
+    private void refused(PlaceTile tile) {
+        String key = keyOf(tile);
+        sent.remove(key);
+        positions.remove(key);
+        refused.incrementAndGet();
+        lastAnswer.accumulateAndGet(System.nanoTime(), Math::max);
+    }
+
+    /**
+     * Identify a change well enough to match it with its broadcast.
+     *
+     * @param tile the tile
+     * @return the key
+     */
+    private static String keyOf(PlaceTile tile) {
+        return tile.getRow() + "," + tile.getCol() + "," + tile.getTime() + "," + tile.getOwner();
+    }
+
+    /**
+     * Print the throughput and latency percentiles of the replay.
+     *
+     * @param elapsed the elapsed time in nanoseconds
+     */
+    public void report(long elapsed) {
+        long[] known = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        System.out.println("Replayed " + changes.size() + " changes in " + elapsed / 1000000 + " ms (" +
+                (long) (changes.size() / (elapsed / 1e9)) + " changes/s)");
+        if (refused.get() > 0)
+            System.out.println("The server refused " + refused.get() + " changes");
+        if (changes.size() > 1 && speed > 0) {
+            double recorded = (changes.get(changes.size() - 1).getTime() - changes.get(0).getTime()) / 1000.0;
+            System.out.println("Recorded span " + recorded + " s, achieved speed x" +
+                    String.format("%.2f", recorded / (elapsed / 1e9)));
+        }
+        if (known.length == 0) {
+            System.out.println("No latencies were measured");
+            return;
+        }
+        System.out.println("Latency for " + known.length + " changes: p50 " + micros(known, 0.50) +
+                " us, p90 " + micros(known, 0.90) + " us, p99 " + micros(known, 0.99) +
+                " us, max " + known[known.length - 1] / 1000 + " us");
+    }
+
+    /**
+     * Get a percentile of sorted latencies, in microseconds.
+     *
+     * @param sorted the latencies in nanoseconds, sorted
+     * @param fraction the percentile, 0-1
+     * @return the latency in microseconds
+     */
+    private static long micros(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1000;
+    }
+
+    /**
+     * Run a replay.
+     *
+     * @param args the archive directory, the speed (a multiplier or "max"), and
+     *             either "local" and DIM or the server's host and port
+     */
+    public static void main(String[] args) {
+        if (args.length != 4 || !(args[1].equals("max") || args[1].matches("[0-9.]+"))) {
+            System.err.println("Usage: java PlaceReplay <archive dir> <speed|max> local DIM");
+            System.err.println("       java PlaceReplay <archive dir> <speed|max> <host> <port>");
+            System.exit(1);
+        }
+        try {
+            List<PlaceTile> changes = new ChangeArchive(args[0]).changes();
+            double speed = args[1].equals("max") ? 0 : Double.parseDouble(args[1]);
+            PlaceReplay replay = new PlaceReplay(changes, speed);
+            long elapsed;
+            if (args[2].equals("local")) {
+                NetworkServer server = new NetworkServer(Integer.parseInt(args[3]));
+                server.setVerbose(false);
+                elapsed = replay.replayLocal(server);
+                server.shutdown();
+            } else {
+                elapsed = replay.replaySocket(args[2], Integer.parseInt(args[3]));
+            }
+            replay.report(elapsed);
+        } catch (PlaceException | IOException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -1,12 +1,28 @@
 package place.server;
 
+import place.PlaceException;
+import place.PlaceTile;
 import place.network.NetworkServer;
 
 import java.net.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class PlaceServer {
+    /**
+     * The name of the canvas that clients get when they don't ask for one.
+     */
+    public static final String DEFAULT_CANVAS = "";
+
+    /**
+     * The number of changes the shared memory ring holds.
+     */
+    private static final int RING_SLOTS = 1 << 16;
+
     /**Checks whether a String can be converted to an int or not
      *
      * @param input -> String potentially containing a number
@@ -22,6 +38,177 @@ public class PlaceServer {
         }
     }
 
+    /**
+     * Starts a daemon thread that reads admin commands typed into the server's console.  The
+     * commands act on the default canvas until "canvas name" picks another one.
+     * @param canvases the canvases the commands act on, by name
+     */
+    private void startConsole(Map<String, NetworkServer> canvases) {
+        Thread console = new Thread(() -> {
+            Scanner in = new Scanner(System.in);
+            NetworkServer current = canvases.get(DEFAULT_CANVAS);
+            while (in.hasNextLine()) {
+                String[] command = in.nextLine().trim().split("\\s+");
+                if (command[0].equals("canvas")) {
+                    String name = command.length > 1 ? command[1] : DEFAULT_CANVAS;
+                    if (canvases.containsKey(name)) {
+                        current = canvases.get(name);
+                        System.out.println("Commands now act on canvas '" + name + "'");
+                    } else {
+                        System.err.println("No such canvas; the canvases are " + canvases.keySet());
+                    }
+                } else {
+                    runCommand(current, command);
+                }
+            }
+        }, "PLACESERVERCONSOLE");
+        console.setDaemon(true);
+        console.start();
+    }
+
+    /**
+     * Runs a single admin command.
+     * @param netServer the server the command acts on
+     * @param command the command word followed by its arguments
+     */
+    private void runCommand(NetworkServer netServer, String[] command) {
+        switch (command[0]) {
+            case "":
+                break;
+            case "export":
+                if (command.length != 2) {
+                    System.err.println("Usage: export <file .png|.rgb|.idx>");
+                    break;
+                }
+                try {
+                    long start = System.currentTimeMillis();
+                    netServer.export(command[1]);
+                    System.out.println("Exported board to " + command[1] + " in " +
+                            (System.currentTimeMillis() - start) + " ms");
+                } catch (IOException e) {
+                    System.err.println("Could not export to " + command[1] + ": " + e.getMessage());
+                }
+                break;
+            case "revert":
+                if (command.length != 2) {
+                    System.err.println("Usage: revert <username>");
+                    break;
+                }
+                long start = System.currentTimeMillis();
+                int reverted = netServer.revert(command[1]);
+                System.out.println("Reverted " + reverted + " tiles in " +
+                        (System.currentTimeMillis() - start) + " ms");
+                break;
+            case "top":
+            case "history":
+                if (netServer.getArchive() == null) {
+                    System.err.println("The server was not started with -archive");
+                    break;
+                }
+                try {
+                    if (command[0].equals("top"))
+                        printTop(netServer.getArchive(), command);
+                    else if (command.length == 2)
+                        printHistory(netServer.getArchive(), command[1]);
+                    else
+                        System.err.println("Usage: history <username>");
+                } catch (IOException e) {
+                    System.err.println("Could not read the archive: " + e.getMessage());
+                }
+                break;
+            default:
+                System.err.println("Unknown command: " + command[0]);
+        }
+    }
+
+    /**
+     * Prints the users who changed the most tiles in the last few minutes.
+     * @param archive the archive to query
+     * @param command "top", the number of minutes and optionally how many users to show
+     * @throws IOException if the archive can't be read
+     */
+    private void printTop(ChangeArchive archive, String[] command) throws IOException {
+        if (command.length < 2 || command.length > 3 || !isInteger(command[1]) ||
+                (command.length == 3 && !isInteger(command[2]))) {
+            System.err.println("Usage: top <minutes> [number of users]");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int limit = command.length == 3 ? Integer.parseInt(command[2]) : 10;
+        List<Map.Entry<String, Integer>> top =
+                archive.topContributors(now - Integer.parseInt(command[1]) * 60000L, now + 1, limit);
+        System.out.println("Top contributors in the last " + command[1] + " minutes:");
+        for (Map.Entry<String, Integer> entry : top)
+            System.out.println(entry.getKey() + " with " + entry.getValue() + " tile contributions");
+    }
+
+    /**
+     * Prints every change a user has made.
+     * @param archive the archive to query
+     * @param username the user
+     * @throws IOException if the archive can't be read
+     */
+    private void printHistory(ChangeArchive archive, String username) throws IOException {
+        List<PlaceTile> tiles = archive.placementsBy(username);
+        for (PlaceTile tile : tiles)
+            System.out.println(tile);
+        System.out.println(username + " has made " + tiles.size() + " changes");
+    }
+
+    /**
+     * Opens the archive for a canvas and makes sure it is saved when the server stops.
+     * @param netServer the canvas
+     * @param dir the archive directory
+     */
+    private static void openArchive(NetworkServer netServer, String dir) {
+        try {
+            ChangeArchive archive = new ChangeArchive(dir);
+            netServer.setArchive(archive);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    System.err.println("Could not save the archive: " + e.getMessage());
+                }
+            }));
+        } catch (PlaceException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Splits an option of the form host:port:..., where the host may be an IPv6 address in
+     * brackets, such as [ff02::1]:5000:5001.
+     * @param spec the option
+     * @return the host, without brackets, followed by the other fields; or an empty array if
+     *         the brackets don't close
+     */
+    private static String[] splitAddress(String spec) {
+        if (!spec.startsWith("["))
+            return spec.split(":");
+        int close = spec.indexOf("]:");
+        if (close < 0)
+            return new String[0];
+        String[] rest = spec.substring(close + 2).split(":");
+        String[] parts = new String[rest.length + 1];
+        parts[0] = spec.substring(1, close);
+        System.arraycopy(rest, 0, parts, 1, rest.length);
+        return parts;
+    }
+
+    /**
+     * Prints how to run the server and exits.
+     */
+    private static void usage() {
+        System.err.println("Usage: java PlaceServer <port number> DIM [-archive dir] [-quiet] [-canvas name:DIM]...");
+        System.err.println("           [-shard host:port:top:left]... | [-replica primaryhost:port]");
+        System.err.println("           | [-relay upstreamhost:port]");
+        System.err.println("           [-multicast group:port:repairport[:interface]] [-ring file]");
+        System.err.println("       An IPv6 host goes in brackets, as in -multicast [ff15::1]:5000:5001");
+        System.exit(1);
+    }
+
     /**
      * A method that reads in each client, starts a clientthread for them, and then later sends them to the
      * NetworkServer
@@ -30,20 +217,141 @@ public class PlaceServer {
      */
     public static void main(String[] args) throws IOException {
         PlaceServer server = new PlaceServer();
-        if (args.length != 2 || !server.isInteger(args[0])) {
-            System.err.println("Usage: java PlaceServer <port number> DIM");
-            System.exit(1);
+        if (args.length < 2 || !server.isInteger(args[0]) || !server.isInteger(args[1])) {
+            usage();
         }
-        Scanner in = new Scanner(System.in);
         int portNumber = Integer.parseInt(args[0]);
         boolean listening = true;
         int DIM = Integer.parseInt(args[1]);
-        NetworkServer netServer = new NetworkServer(DIM);
+        List<String> shards = new ArrayList<>();
+        List<String> canvasSpecs = new ArrayList<>();
+        String primary = null;
+        String relayed = null;
+        String multicast = null;
+        String ringFile = null;
+        String archiveDir = null;
+        boolean quiet = false;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "-archive":
+                    if (++i >= args.length)
+                        usage();
+                    archiveDir = args[i];
+                    break;
+                case "-quiet":
+                    quiet = true;
+                    break;
+                case "-canvas":
+                    if (++i >= args.length)
+                        usage();
+                    canvasSpecs.add(args[i]);
+                    break;
+                case "-shard":
+                    if (++i >= args.length)
+                        usage();
+                    shards.add(args[i]);
+                    break;
+                case "-replica":
+                    if (++i >= args.length)
+                        usage();
+                    primary = args[i];
+                    break;
+                case "-relay":
+                    if (++i >= args.length)
+                        usage();
+                    relayed = args[i];
+                    break;
+                case "-multicast":
+                    if (++i >= args.length)
+                        usage();
+                    multicast = args[i];
+                    break;
+                case "-ring":
+                    if (++i >= args.length)
+                        usage();
+                    ringFile = args[i];
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        // the default canvas has no name; the others are named name:DIM
+        LinkedHashMap<String, NetworkServer> canvases = new LinkedHashMap<>();
+        canvases.put(DEFAULT_CANVAS, new NetworkServer(DIM));
+        for (String spec : canvasSpecs) {
+            String[] parts = spec.split(":");
+            if (parts.length != 2 || parts[0].isEmpty() || !server.isInteger(parts[1]) ||
+                    canvases.containsKey(parts[0]))
+                usage();
+            canvases.put(parts[0], new NetworkServer(Integer.parseInt(parts[1])));
+        }
+        for (Map.Entry<String, NetworkServer> canvas : canvases.entrySet()) {
+            canvas.getValue().setVerbose(!quiet);
+            if (archiveDir != null) {
+                String dir = canvas.getKey().isEmpty() ? archiveDir
+                        : new File(archiveDir, canvas.getKey()).getPath();
+                openArchive(canvas.getValue(), dir);
+            }
+        }
+        NetworkServer netServer = canvases.get(DEFAULT_CANVAS);
+
+        if ((primary != null ? 1 : 0) + (relayed != null ? 1 : 0) + (shards.isEmpty() ? 0 : 1) > 1)
+            usage();
+        if (primary != null || relayed != null) {
+            String[] parts = splitAddress(primary != null ? primary : relayed);
+            if (parts.length != 2 || !server.isInteger(parts[1]))
+                usage();
+            int upstreamPort = Integer.parseInt(parts[1]);
+            if (primary != null)
+                new ReplicaLink(netServer, parts[0], upstreamPort).start();
+            else
+                new RelayLink(netServer, parts[0], upstreamPort).start();
+        }
+        if (!shards.isEmpty()) {
+            ShardRouter router = new ShardRouter(netServer);
+            for (String shard : shards) {
+                String[] parts = splitAddress(shard);
+                try {
+                    if (parts.length != 4)
+                        throw new PlaceException("Expected host:port:top:left but got " + shard);
+                    router.addShard(parts[0], Integer.parseInt(parts[1]),
+                            Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+                } catch (PlaceException | NumberFormatException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+        if (multicast != null) {
+            String[] parts = splitAddress(multicast);
+            if (parts.length < 3 || parts.length > 4 || !server.isInteger(parts[1]) || !server.isInteger(parts[2]))
+                usage();
+            try {
+                NetworkInterface networkInterface = null;
+                if (parts.length == 4 && (networkInterface = NetworkInterface.getByName(parts[3])) == null)
+                    throw new IOException("No such interface " + parts[3]);
+                new MulticastFeed(netServer, InetAddress.getByName(parts[0]), Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]), networkInterface).start();
+            } catch (IOException e) {
+                System.err.println("Could not start the multicast feed: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (ringFile != null) {
+            try {
+                new SharedRingFeed(netServer, ringFile, RING_SLOTS);
+            } catch (IOException e) {
+                System.err.println("Could not create the ring " + ringFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        server.startConsole(canvases);
 
         try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
             while (listening) {
 
-                new PlaceServerClientThread(serverSocket.accept(), netServer).start();
+                new PlaceServerClientThread(serverSocket.accept(), canvases).start();
             }
         } catch (IOException e) {
             System.err.println("Could not listen on port " + portNumber);
@@ -1,12 +1,25 @@
 package place.server;
 
-import place.PlaceBoard;
+import place.BoardHashTree;
 import place.PlaceTile;
+import place.network.BoardDiff;
+import place.network.BoardSnapshot;
+import place.network.Deflated;
 import place.network.NetworkServer;
+import place.network.PlaceLogin;
 import place.network.PlaceRequest;
+import place.network.Precompressed;
+import place.network.SwitchableOutputStream;
 
 import java.net.*;
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
 
 public class PlaceServerClientThread extends Thread {
     private Socket socket = null;
@@ -20,17 +33,121 @@ public class PlaceServerClientThread extends Thread {
      */
     private ObjectOutputStream out;
 
+    /**
+     * The stream under out, which starts compressing once the client has been told it will
+     */
+    private SwitchableOutputStream rawOut;
+
     private String username;
 
     private NetworkServer server;
 
-    public PlaceServerClientThread(Socket socket, NetworkServer server) {
+    /**
+     * The canvases hosted by this server, by name; the login picks one of them
+     */
+    private final Map<String, NetworkServer> canvases;
+
+    /**
+     * Whether this client logged in successfully
+     */
+    private boolean connected = false;
+
+    /**
+     * Whether the other end is a replica server following this server's change log
+     */
+    private boolean replica = false;
+
+    /**
+     * Whether the other end passes on changes asked for by its own clients, such as a relay or a
+     * shard router, so the changes it sends keep their owners
+     */
+    private boolean link = false;
+
+    /**
+     * Whether the client has its board, so the bulk lane can be sent
+     */
+    private boolean ready = false;
+
+    /**
+     * Whether the connection is closing; the writer stops
+     */
+    private boolean closed = false;
+
+    /**
+     * The control lane: replies such as LOGIN_SUCCESS, ERROR and the board, always sent first
+     */
+    private final ArrayDeque<PlaceRequest<?>> control = new ArrayDeque<>();
+
+    /**
+     * The bulk lane: broadcast changes, which are held until the client has its board and may
+     * be collapsed when the client falls behind
+     */
+    private final ArrayDeque<PlaceRequest<?>> bulk = new ArrayDeque<>();
+
+    /**
+     * The number of control messages queued and the number written, so a sender can wait for
+     * its message to go out
+     */
+    private long controlQueued = 0, controlWritten = 0;
+
+    /**
+     * The number of bulk messages at which the waiting changes are collapsed into one
+     * TILES_CHANGED holding the latest tile of each changed cell
+     */
+    private static final int COLLAPSE = 256;
+
+    /**
+     * The number of bulk messages at which they are collapsed even while the writer is busy, or
+     * for a replica, whose change log can't be collapsed, the connection is dropped; the
+     * replica reconnects and catches up from the log or a snapshot
+     */
+    private static final int MAX_BULK = 100000;
+
+    /**
+     * The number of bulk messages written in a row before the control lane is checked again
+     */
+    private static final int BULK_TURN = 64;
+
+    /**
+     * The number of messages written between resets of the output stream, which let the stream
+     * forget the objects it has written instead of remembering every one of them
+     */
+    private static final int RESET_EVERY = 1024;
+
+    /**
+     * The seconds it takes a connection's stamping budget to fill up from empty.  A full budget
+     * is a whole board's worth of tiles, so a client can stamp the whole board at once but can
+     * stamp no more than that in this time.  Single tiles aren't limited, and neither are
+     * replicas and links, which stamp for many clients.
+     */
+    private static final int BUDGET_SECONDS = 30;
+
+    /**
+     * The tiles this connection may still stamp, or -1 before its first stamp
+     */
+    private double budget = -1;
+
+    /**
+     * When the budget was last topped up, in nanoseconds
+     */
+    private long budgetTime;
+
+    /**
+     * The number of clients in the whole server that may be sent their board at once.  The rest
+     * wait their turn, so a crowd logging in at once doesn't swamp the CPU and memory.
+     */
+    private static final Semaphore BOARD_SENDERS =
+            new Semaphore(Runtime.getRuntime().availableProcessors(), true);
+
+    public PlaceServerClientThread(Socket socket, Map<String, NetworkServer> canvases) {
         super("PLACESERVERCLIENTTHREAD");
-        this.server = server;
+        this.canvases = canvases;
+        this.server = canvases.get(PlaceServer.DEFAULT_CANVAS);
         this.socket = socket;
         username = null;
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
+            rawOut = new SwitchableOutputStream(socket.getOutputStream());
+            out = new ObjectOutputStream(rawOut);
             out.flush();
             in = new ObjectInputStream(socket.getInputStream());
         } catch (IOException e) {
@@ -38,12 +155,196 @@ public class PlaceServerClientThread extends Thread {
         }
     }
 
-    public void tileChanged(PlaceRequest<PlaceTile> tileChangereq) {
+    /**
+     * Queue a broadcast on the bulk lane.  It never blocks, so a slow client can't hold up the
+     * server.
+     * @param tileChangereq the broadcast
+     */
+    public synchronized void tileChanged(PlaceRequest<?> tileChangereq) {
+        if (closed)
+            return;
+        bulk.add(tileChangereq);
+        if (bulk.size() > MAX_BULK) {
+            if (!collapsible()) {
+                System.err.println(socket + " is too far behind; disconnecting");
+                close();
+                return;
+            }
+            // the writer is stuck on a slow client; keep no more than one tile per cell
+            collapse();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Queue a reply on the control lane, ahead of any waiting broadcasts.
+     * @param req the reply
+     * @param wait whether to wait until it has been written
+     */
+    private synchronized void sendControl(PlaceRequest<?> req, boolean wait) {
+        if (closed)
+            return;
+        control.add(req);
+        long ticket = ++controlQueued;
+        notifyAll();
+        while (wait && !closed && controlWritten < ticket) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start sending the bulk lane.  The broadcasts held back while the client got its board go
+     * out first; sending a change the board already has is harmless, since the client ends up
+     * with the latest tile either way.
+     */
+    private synchronized void ready() {
+        ready = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop the writer and close the socket, which also ends the reading thread.
+     */
+    private synchronized void close() {
+        closed = true;
+        control.clear();
+        bulk.clear();
+        notifyAll();
         try {
-            out.writeUnshared(tileChangereq);
-            out.flush();
+            socket.close();
         } catch (IOException e) {
-            System.err.println("ERROR!");
+            // squash
+        }
+    }
+
+    /**
+     * Tell whether the waiting broadcasts can be folded into one TILES_CHANGED.
+     * @return false for a replica, whose change log has to arrive change by change
+     */
+    private boolean collapsible() {
+        return !replica;
+    }
+
+    /**
+     * Fold the waiting broadcasts into one TILES_CHANGED with the latest tile of each cell.  The
+     * PLACED answers waiting among them are kept, after it, so each still arrives after its
+     * change.
+     */
+    private void collapse() {
+        LinkedHashMap<Long, PlaceTile> latest = new LinkedHashMap<>();
+        ArrayList<PlaceRequest<?>> answers = new ArrayList<>();
+        for (PlaceRequest<?> req : bulk) {
+            switch (req.getType()) {
+                case TILE_CHANGED:
+                    keep(latest, (PlaceTile) req.getData());
+                    break;
+                case TILES_CHANGED:
+                    for (Object tile : (List<?>) req.getData())
+                        keep(latest, (PlaceTile) tile);
+                    break;
+                case CHUNK_DIFF:
+                    Object diff = req.getData() instanceof Deflated ? ((Deflated) req.getData()).get() : req.getData();
+                    for (PlaceTile tile : ((BoardDiff) diff).getTiles())
+                        keep(latest, tile);
+                    break;
+                case PLACED:
+                    answers.add(req);
+                    break;
+                default:
+                    break;
+            }
+        }
+        bulk.clear();
+        bulk.add(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, new ArrayList<>(latest.values())));
+        bulk.addAll(answers);
+    }
+
+    /**
+     * Record a tile as the latest of its cell.
+     * @param latest the latest tile of each cell
+     * @param tile the tile
+     */
+    private static void keep(LinkedHashMap<Long, PlaceTile> latest, PlaceTile tile) {
+        long cell = (long) tile.getRow() << 32 | tile.getCol();
+        latest.remove(cell);
+        latest.put(cell, tile);
+    }
+
+    /**
+     * Write the lanes to the client until the connection closes: every control message first,
+     * then the bulk lane a few messages at a time, collapsed if the client has fallen behind.
+     * The stream is only flushed once both lanes are empty.  Once a LOGIN_SUCCESS that turns on
+     * compression is out, everything after it is compressed, except data compressed once for
+     * every client, which is only stored.
+     */
+    private void writeLoop() {
+        int sinceReset = 0;
+        ArrayList<PlaceRequest<?>> batch = new ArrayList<>();
+        try {
+            while (true) {
+                boolean isControl;
+                synchronized (this) {
+                    while (!closed && control.isEmpty() && (!ready || bulk.isEmpty()))
+                        wait();
+                    if (closed)
+                        return;
+                    batch.clear();
+                    isControl = !control.isEmpty();
+                    if (isControl) {
+                        batch.addAll(control);
+                        control.clear();
+                    } else {
+                        if (bulk.size() >= COLLAPSE && collapsible())
+                            collapse();
+                        while (!bulk.isEmpty() && batch.size() < BULK_TURN)
+                            batch.add(bulk.poll());
+                    }
+                }
+                for (PlaceRequest<?> req : batch) {
+                    boolean stored = rawOut.isDeflating() && req.getData() instanceof Precompressed;
+                    if (stored) {
+                        out.flush();
+                        rawOut.setStored(true);
+                    }
+                    out.writeUnshared(req);
+                    if (stored) {
+                        out.flush();
+                        rawOut.setStored(false);
+                    }
+                    if (req.getType() == PlaceRequest.RequestType.LOGIN_SUCCESS &&
+                            req.getData() instanceof PlaceLogin &&
+                            ((PlaceLogin) req.getData()).has(PlaceLogin.DEFLATE)) {
+                        out.flush();
+                        rawOut.startDeflating(Deflater.BEST_SPEED);
+                    }
+                    if (++sinceReset >= RESET_EVERY) {
+                        out.reset();
+                        sinceReset = 0;
+                    }
+                }
+                boolean idle;
+                synchronized (this) {
+                    idle = control.isEmpty() && (!ready || bulk.isEmpty());
+                }
+                if (idle || isControl)
+                    out.flush();
+                if (isControl) {
+                    synchronized (this) {
+                        controlWritten += batch.size();
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write to " + username + " @ " + socket + ": " + e.getMessage());
+            close();
+        } catch (InterruptedException e) {
+            close();
         }
     }
 
@@ -63,48 +364,198 @@ public class PlaceServerClientThread extends Thread {
 
 
     public void run() {
+        Thread writer = new Thread(this::writeLoop, "PLACESERVERCLIENTWRITER");
+        writer.setDaemon(true);
+        writer.start();
         try {
                 PlaceRequest<?> req = (PlaceRequest<?>) in.readUnshared();
-                if (req.getType() == PlaceRequest.RequestType.LOGIN)
-                     username = (String)req.getData();
-
-                boolean connected = server.login(this);
-                if (connected) {
-                    String connectMsg = "Connection Successful.";
-                    PlaceRequest<String> loginSuccess = new PlaceRequest<>
-                                                    (PlaceRequest.RequestType.LOGIN_SUCCESS, connectMsg);
-                    out.writeUnshared(loginSuccess);
-                    out.flush();
-                    PlaceRequest<PlaceBoard> boardReq = new PlaceRequest<>
-                            (PlaceRequest.RequestType.BOARD, server.getBoard());
-                    out.writeUnshared(boardReq);
-                    out.flush();
-                } else {
-                    PlaceRequest<String> error = new PlaceRequest<>
-                            (PlaceRequest.RequestType.ERROR, "Unable to login; username already exists");
-                    out.writeUnshared(error);
-                    out.flush();
+                BoardHashTree cached = null;
+                if (req.getType() == PlaceRequest.RequestType.SYNC) {
+                    cached = (BoardHashTree) req.getData();
+                    req = (PlaceRequest<?>) in.readUnshared();
                 }
-                boolean running = true;
-                PlaceRequest<?> changeTileReq = (PlaceRequest<?>) in.readUnshared();
-                while(running) {
-                    if (changeTileReq != null) {
-                        if (changeTileReq.getType() == PlaceRequest.RequestType.CHANGE_TILE) {
-                            PlaceTile newTile = (PlaceTile) changeTileReq.getData();
-                            server.changeTile(newTile);
-                            changeTileReq = null;
+                if (req.getType() == PlaceRequest.RequestType.REPLICATE) {
+                    replica = true;
+                    ready();
+                    server.addReplica(this, (Long) req.getData());
+                } else {
+                    String canvas = PlaceServer.DEFAULT_CANVAS;
+                    PlaceLogin login = null;
+                    if (req.getType() != PlaceRequest.RequestType.LOGIN) {
+                        refuse("Unable to login; expected LOGIN but got " + req.getType());
+                        return;
+                    }
+                    if (req.getData() instanceof PlaceLogin) {
+                        login = (PlaceLogin) req.getData();
+                        username = login.getUsername();
+                        canvas = login.getCanvas();
+                    } else {
+                        username = (String) req.getData();
+                    }
+
+                    server = canvases.get(canvas);
+                    if (server == null) {
+                        server = canvases.get(PlaceServer.DEFAULT_CANVAS);
+                        refuse("Unable to login; no such canvas " + canvas);
+                        return;
+                    }
+                    connected = username != null && server.login(this);
+                    if (connected) {
+                        String connectMsg = "Connection Successful.";
+                        PlaceRequest<?> loginSuccess;
+                        if (login == null) {
+                            loginSuccess = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, connectMsg);
+                        } else {
+                            // answer with the capabilities this server turns on
+                            link = login.has(PlaceLogin.FORWARD);
+                            List<String> turnedOn = new ArrayList<>();
+                            if (login.has(PlaceLogin.DEFLATE))
+                                turnedOn.add(PlaceLogin.DEFLATE);
+                            if (link)
+                                turnedOn.add(PlaceLogin.FORWARD);
+                            PlaceLogin accepted = new PlaceLogin(username, canvas, turnedOn.toArray(new String[0]));
+                            loginSuccess = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, accepted);
+                        }
+                        sendControl(loginSuccess, false);
+                        long since = server.version();
+                        BOARD_SENDERS.acquireUninterruptibly();
+                        try {
+                            if (cached != null && cached.DIM == server.getBoard().DIM) {
+                                PlaceRequest<ArrayList<PlaceTile>> chunksReq = new PlaceRequest<>
+                                        (PlaceRequest.RequestType.CHUNKS, server.changedChunks(cached));
+                                sendControl(chunksReq, true);
+                            } else {
+                                PlaceRequest<BoardSnapshot> boardReq = new PlaceRequest<>
+                                        (PlaceRequest.RequestType.BOARD, server.encodedBoard(since));
+                                sendControl(boardReq, true);
+                            }
+                        } finally {
+                            BOARD_SENDERS.release();
                         }
+                        ready();
+                    } else {
+                        refuse("Unable to login; username already exists");
+                        return;
                     }
-                    else
-                        changeTileReq = (PlaceRequest<?>) in.readUnshared();
+                }
+                while (true) {
+                    PlaceRequest<?> request = (PlaceRequest<?>) in.readUnshared();
+                    if (request == null)
+                        continue;
+                    try {
+                        handle(request);
+                    } catch (ClassCastException | NullPointerException e) {
+                        // the data isn't what this type of request carries
+                        reject(request, "Bad " + request.getType() + " request");
                     }
-            server.logout(this);
-            socket.close();
-            System.out.println(this + " has stopped");
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+                }
+        } catch (EOFException | SocketException e) {
+            // the client closed its connection, or the writer gave up on it
+        } catch (ClassCastException e) {
+            System.err.println("Bad request from " + socket + ": " + e.getMessage());
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Could not read from " + username + " @ " + socket + ": " + e);
+        } finally {
+            if (connected)
+                server.logout(this);
+            if (replica)
+                server.removeReplica(this);
+            close();
+        }
+    }
+
+    /**
+     * Act on a request the client sent after logging in.
+     * @param req the request
+     */
+    private void handle(PlaceRequest<?> req) {
+        // a replica never logs in, but forwards the changes its own clients ask for
+        if (!connected && !replica) {
+            reject(req, "Not logged in");
+            return;
+        }
+        if (req.getType() == PlaceRequest.RequestType.CHANGE_TILE) {
+            PlaceTile newTile = owned((PlaceTile) req.getData());
+            int DIM = server.getBoard().DIM;
+            if (newTile.getRow() < 0 || newTile.getRow() >= DIM ||
+                    newTile.getCol() < 0 || newTile.getCol() >= DIM) {
+                reject(req, "No such tile " + newTile.getRow() + ", " + newTile.getCol());
+            } else {
+                server.changeTile(newTile, this, req.getId());
+            }
+        } else if (req.getType() == PlaceRequest.RequestType.CHANGE_TILES) {
+            List<PlaceTile> tiles = new ArrayList<>();
+            int DIM = server.getBoard().DIM;
+            boolean onBoard = true;
+            for (Object data : (List<?>) req.getData()) {
+                PlaceTile tile = (PlaceTile) data;
+                onBoard &= tile.getRow() >= 0 && tile.getRow() < DIM &&
+                        tile.getCol() >= 0 && tile.getCol() < DIM;
+                tiles.add(owned(tile));
+            }
+            if (!onBoard || tiles.isEmpty() || tiles.size() > DIM * DIM) {
+                reject(req, "Unable to place " + tiles.size() + " tiles");
+            } else if (!replica && !link && !spend(tiles.size())) {
+                reject(req, "Placing too fast to place " + tiles.size() + " tiles");
+            } else {
+                server.changeTiles(tiles, this, req.getId());
+            }
         }
     }
+
+    /**
+     * Give a requested tile its owner.  A tile belongs to whoever asked for it, except that a
+     * replica or a link passes on tiles asked for by its own clients, which keep their owners.
+     * @param tile the requested tile
+     * @return the tile to place
+     */
+    private PlaceTile owned(PlaceTile tile) {
+        String owner = username;
+        if (replica || link)
+            owner = tile.getOwner() == null ? "" : tile.getOwner();
+        return new PlaceTile(tile.getRow(), tile.getCol(), owner, tile.getColor(), tile.getTime());
+    }
+
+    /**
+     * Take tiles out of the stamping budget, after topping it up for the time since it was last
+     * used.  Only called by the reading thread.
+     * @param tiles the number of tiles to place
+     * @return false, leaving the budget alone, if there isn't enough left for them
+     */
+    private boolean spend(int tiles) {
+        int DIM = server.getBoard().DIM;
+        double full = (double) DIM * DIM;
+        long now = System.nanoTime();
+        if (budget < 0)
+            budget = full;
+        else
+            budget = Math.min(full, budget + (now - budgetTime) / 1e9 * full / BUDGET_SECONDS);
+        budgetTime = now;
+        if (tiles > budget)
+            return false;
+        budget -= tiles;
+        return true;
+    }
+
+    /**
+     * Refuse a login: send the reason, and wait for it to go out before the connection is
+     * closed, so nothing the client sends afterwards is acted on.
+     * @param reason why the login failed
+     */
+    private void refuse(String reason) {
+        sendControl(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, reason), true);
+    }
+
+    /**
+     * Answer a request the server won't carry out with an ERROR.  Only a request with an id is
+     * answered, since only such a request is waited on; any other is logged as dropped.
+     * @param req the request
+     * @param reason why it was refused
+     */
+    private void reject(PlaceRequest<?> req, String reason) {
+        if (req.getId() != 0)
+            sendControl(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, reason, req.getId()), false);
+        else
+            System.err.println("Dropped " + req.getType() + " from " + username + " @ " + socket + ": " + reason);
+    }
 }
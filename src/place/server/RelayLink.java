@@ -0,0 +1,76 @@
+package place.server;
+
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.BoardDiff;
+import place.network.NetworkServer;
+import place.network.PlaceConnection;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a relay server's board in step with the server above it.  The relay
+ * logs in upstream as one ordinary client, so it can sit in front of any
+ * server, including another relay; relays can be chained into a tree that
+ * spreads the broadcast load while the origin only sees a few connections.
+ *
+ * The relay's own clients get the BOARD and every TILE_CHANGED from the
+ * relay's server.  Their changes are forwarded upstream through the relay's
+ * single login, which asks to pass them on with their owners.
+ */
+public class RelayLink extends UpstreamLink {
+    /**
+     * Create a link from a relay to the server above it.
+     *
+     * @param server the relay's server
+     * @param host the upstream server's host
+     * @param port the upstream server's port
+     */
+    public RelayLink(NetworkServer server, String host, int port) {
+        super(server, host, port);
+    }
+
+    /**
+     * Log in upstream like any other client and copy its board.
+     *
+     * @param connection the new connection
+     * @throws PlaceException if the login is refused
+     */
+    @Override
+    protected void handshake(PlaceConnection connection) throws PlaceException {
+        String username = "relay-" + System.currentTimeMillis();
+        applySnapshot(connection.login(username, PlaceLogin.FORWARD));
+        System.out.println("Relaying " + connection + " as " + username);
+    }
+
+    /**
+     * Apply a change broadcast upstream.
+     *
+     * @param req the request
+     */
+    @Override
+    protected void handle(PlaceRequest<?> req) {
+        switch (req.getType()) {
+            case TILE_CHANGED:
+                server.applyChange((PlaceTile) req.getData());
+                break;
+            case TILES_CHANGED:
+                List<PlaceTile> tiles = new ArrayList<>();
+                for (Object tile : (List<?>) req.getData())
+                    tiles.add((PlaceTile) tile);
+                server.applyChanges(tiles);
+                break;
+            case CHUNK_DIFF:
+                server.applyChanges(((BoardDiff) req.getData()).getTiles());
+                break;
+            case ERROR:
+                System.err.println("Upstream: " + req.getData());
+                break;
+            default:
+                break;
+        }
+    }
+}
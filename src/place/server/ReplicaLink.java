@@ -0,0 +1,78 @@
+package place.server;
+
+import place.network.ChangeBatch;
+import place.network.NetworkServer;
+import place.network.PlaceConnection;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+
+/**
+ * Keeps a replica server's board in step with a primary server.  The replica
+ * serves viewers on its own, so the primary only has to send each change once
+ * per replica instead of once per viewer.
+ *
+ * The link follows the primary's numbered change log and applies every batch
+ * to the replica's server, which broadcasts it to the replica's clients.  If
+ * the connection drops, the link reconnects and asks for the changes after
+ * the last one it saw.  If a batch doesn't follow on from the last change, the
+ * board can no longer be trusted, so the link reconnects and asks for a fresh
+ * snapshot instead.
+ */
+public class ReplicaLink extends UpstreamLink {
+    /** The sequence number of the last change applied, or -1 before the first snapshot */
+    private long last = -1;
+
+    /**
+     * Create a link from a replica to its primary.
+     *
+     * @param server the replica's server
+     * @param host the primary's host
+     * @param port the primary's port
+     */
+    public ReplicaLink(NetworkServer server, String host, int port) {
+        super(server, host, port);
+    }
+
+    /**
+     * Ask the primary for its change log after the last change this replica has.
+     *
+     * @param connection the new connection
+     * @throws IOException if the connection fails
+     */
+    @Override
+    protected void handshake(PlaceConnection connection) throws IOException {
+        connection.send(new PlaceRequest<>(PlaceRequest.RequestType.REPLICATE, last));
+        System.out.println("Following primary " + connection + " after change " + last);
+    }
+
+    /**
+     * Apply a batch from the primary's change log.
+     *
+     * @param req the request
+     */
+    @Override
+    protected void handle(PlaceRequest<?> req) {
+        if (req.getType() == PlaceRequest.RequestType.ERROR) {
+            System.err.println("Primary: " + req.getData());
+            return;
+        }
+        if (req.getType() != PlaceRequest.RequestType.CHANGE_LOG)
+            return;
+        ChangeBatch batch = (ChangeBatch) req.getData();
+        if (batch.getBoard() != null) {
+            applySnapshot(batch.getBoard());
+        } else if (last >= 0 && batch.getFirst() != last + 1) {
+            System.err.println("Change log gap: expected " + (last + 1) + " but got " + batch.getFirst() +
+                    "; asking for a snapshot");
+            last = -1;
+            reconnect();
+            return;
+        }
+        if (batch.getTiles().size() == 1)
+            server.applyChange(batch.getTiles().get(0));
+        else if (!batch.getTiles().isEmpty())
+            server.applyChanges(batch.getTiles());
+        last = batch.getLast();
+    }
+}
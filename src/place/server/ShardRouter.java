@@ -0,0 +1,352 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.BoardDiff;
+import place.network.NetworkServer;
+import place.network.PlaceConnection;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Splits one large board over several shard servers.  Each shard is an
+ * ordinary PlaceServer whose (smaller) board holds one square region of the
+ * large board, in its own coordinates starting at 0, 0.
+ *
+ * The router logs in to every shard as a client that passes on its own
+ * clients' changes with their owners.  Changes requested by the router's own
+ * clients are translated into the owning shard's coordinates and sent to that
+ * shard; the changes each shard broadcasts are translated back and applied to
+ * the router's merged board, so the router's clients see one change stream for
+ * the whole board.
+ *
+ * A stamp has to fall within one shard, since the shards can't place it all
+ * or none together.
+ *
+ * When a shard's connection drops the router keeps its region and logs in to
+ * it again, waiting longer after each failed attempt.  Changes to the region
+ * are refused until then, and the region is copied again on reconnecting.
+ */
+public class ShardRouter implements NetworkServer.Upstream {
+    /**
+     * A shard server and the region of the board it owns.
+     */
+    private static class Shard {
+        /** the shard's host */
+        String host;
+        /** the shard's port */
+        int port;
+        /** the connection to the shard, or null while it is reconnecting */
+        volatile PlaceConnection connection;
+        /** the first row of the region */
+        int top;
+        /** the first column of the region */
+        int left;
+        /** the size of the region (the shard's DIM) */
+        int size;
+        /** the ids of the changes forwarded on the current connection and not answered yet */
+        final HashSet<Long> inFlight = new HashSet<>();
+
+        /**
+         * Tell whether a tile of the merged board is in this shard's region.
+         *
+         * @param row the row on the merged board
+         * @param col the column on the merged board
+         * @return true if the shard owns the tile
+         */
+        boolean owns(int row, int col) {
+            return row >= top && row < top + size && col >= left && col < left + size;
+        }
+    }
+
+    /** How long to wait before the first attempt to reconnect to a shard, in milliseconds */
+    private static final long RETRY_MILLIS = 1000;
+
+    /** The longest wait between attempts to reconnect to a shard, in milliseconds */
+    private static final long MAX_RETRY_MILLIS = 30000;
+
+    /** The router's own server, holding the merged board */
+    private final NetworkServer server;
+
+    /** The shards */
+    private final List<Shard> shards = new ArrayList<>();
+
+    /**
+     * Create a router in front of a server.  Requested changes on the server
+     * are forwarded to the shards from now on.
+     *
+     * @param server the router's server
+     */
+    public ShardRouter(NetworkServer server) {
+        this.server = server;
+        server.setUpstream(this);
+    }
+
+    /**
+     * Connect to a shard, copy its region into the merged board, and start
+     * following its changes.
+     *
+     * @param host the shard's host
+     * @param port the shard's port
+     * @param top the row of the merged board where the shard's region starts
+     * @param left the column of the merged board where the shard's region starts
+     * @throws PlaceException if the shard can't be reached or its region
+     *         doesn't fit
+     */
+    public void addShard(String host, int port, int top, int left) throws PlaceException {
+        Shard shard = new Shard();
+        shard.host = host;
+        shard.port = port;
+        PlaceBoard region = connect(shard);
+        shard.top = top;
+        shard.left = left;
+        shard.size = region.DIM;
+        int DIM = server.getBoard().DIM;
+        if (top < 0 || left < 0 || top + shard.size > DIM || left + shard.size > DIM) {
+            shard.connection.close();
+            throw new PlaceException("Shard " + shard.connection + " (" + shard.size + "x" + shard.size +
+                    " at " + top + ", " + left + ") does not fit on the board");
+        }
+        for (Shard other : shards) {
+            if (top < other.top + other.size && other.top < top + shard.size &&
+                    left < other.left + other.size && other.left < left + shard.size) {
+                shard.connection.close();
+                throw new PlaceException("Shard " + shard.connection + " overlaps shard " + other.connection);
+            }
+        }
+
+        copyRegion(shard, region);
+        synchronized (shards) {
+            shards.add(shard);
+        }
+
+        Thread reader = new Thread(() -> follow(shard), "SHARDREADER");
+        reader.setDaemon(true);
+        reader.start();
+        System.out.println("Routing " + shard.size + "x" + shard.size + " region at " + top + ", " + left +
+                " to shard " + shard.connection);
+    }
+
+    /**
+     * Connect and log in to a shard.
+     *
+     * @param shard the shard
+     * @return the shard's board
+     * @throws PlaceException if the shard can't be reached or refuses the login
+     */
+    private static PlaceBoard connect(Shard shard) throws PlaceException {
+        PlaceConnection connection;
+        try {
+            connection = new PlaceConnection(shard.host, shard.port);
+        } catch (IOException e) {
+            throw new PlaceException("Can't reach shard " + shard.host + ":" + shard.port, e);
+        }
+        try {
+            PlaceBoard region = connection.login("router-" + System.currentTimeMillis(), PlaceLogin.FORWARD);
+            shard.connection = connection;
+            return region;
+        } catch (PlaceException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy a shard's board into its region of the merged board.  The tiles are
+     * loaded rather than applied, so they don't count as changes made here.
+     *
+     * @param shard the shard
+     * @param region the shard's board
+     */
+    private void copyRegion(Shard shard, PlaceBoard region) {
+        List<PlaceTile> tiles = new ArrayList<>(shard.size * shard.size);
+        for (PlaceTile[] row : region.getBoard()) {
+            for (PlaceTile tile : row)
+                tiles.add(toMerged(shard, tile));
+        }
+        server.loadTiles(tiles);
+    }
+
+    /**
+     * Send a requested change to the shard that owns its tiles.
+     *
+     * @param tiles the requested tiles, in merged board coordinates
+     * @param id the id the shard answers with, or 0 for no answer
+     * @throws PlaceException if no shard owns the tiles, they belong to more
+     *         than one shard, or the shard can't be reached
+     */
+    @Override
+    public void forward(List<PlaceTile> tiles, long id) throws PlaceException {
+        PlaceTile first = tiles.get(0);
+        Shard owner = null;
+        synchronized (shards) {
+            for (Shard shard : shards) {
+                if (shard.owns(first.getRow(), first.getCol())) {
+                    owner = shard;
+                    break;
+                }
+            }
+        }
+        if (owner == null)
+            throw new PlaceException("No shard owns tile " + first.getRow() + ", " + first.getCol());
+        ArrayList<PlaceTile> local = new ArrayList<>(tiles.size());
+        for (PlaceTile tile : tiles) {
+            if (!owner.owns(tile.getRow(), tile.getCol()))
+                throw new PlaceException("Tiles " + first.getRow() + ", " + first.getCol() + " and " +
+                        tile.getRow() + ", " + tile.getCol() + " belong to different shards");
+            local.add(new PlaceTile(tile.getRow() - owner.top, tile.getCol() - owner.left,
+                    tile.getOwner(), tile.getColor(), tile.getTime()));
+        }
+        PlaceConnection connection;
+        synchronized (owner.inFlight) {
+            connection = owner.connection;
+            if (connection == null)
+                throw new PlaceException("Reconnecting to shard " + owner.host + ":" + owner.port);
+            if (id != 0)
+                owner.inFlight.add(id);
+        }
+        PlaceRequest<?> req = local.size() == 1
+                ? new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, local.get(0), id)
+                : new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, local, id);
+        try {
+            connection.send(req);
+        } catch (IOException e) {
+            synchronized (owner.inFlight) {
+                owner.inFlight.remove(id);
+            }
+            throw new PlaceException("Could not forward change to shard " + connection + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Apply the changes a shard broadcasts to the merged board, reconnecting
+     * whenever its connection drops.
+     *
+     * @param shard the shard
+     */
+    private void follow(Shard shard) {
+        while (true) {
+            PlaceConnection connection = shard.connection;
+            try {
+                while (true)
+                    handle(shard, connection.read());
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Lost connection to shard " + connection);
+            }
+            ArrayList<Long> lost;
+            synchronized (shard.inFlight) {
+                shard.connection = null;
+                lost = new ArrayList<>(shard.inFlight);
+                shard.inFlight.clear();
+            }
+            connection.close();
+            for (long id : lost)
+                server.refusedUpstream(id, "Lost connection to shard " + connection + " before the change was placed");
+            if (!reconnect(shard))
+                return;
+        }
+    }
+
+    /**
+     * Log in to a shard again, waiting twice as long after each failed
+     * attempt, and copy its region once connected.
+     *
+     * @param shard the shard
+     * @return false if the router was interrupted while waiting
+     */
+    private boolean reconnect(Shard shard) {
+        long wait = RETRY_MILLIS;
+        while (true) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            try {
+                PlaceBoard region = connect(shard);
+                if (region.DIM != shard.size) {
+                    System.err.println("Shard " + shard.connection + " is now " + region.DIM + "x" + region.DIM +
+                            " instead of " + shard.size + "x" + shard.size);
+                    shard.connection.close();
+                    shard.connection = null;
+                } else {
+                    copyRegion(shard, region);
+                    System.out.println("Reconnected to shard " + shard.connection);
+                    return true;
+                }
+            } catch (PlaceException e) {
+                System.err.println(e.getMessage());
+            }
+            wait = Math.min(wait * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Apply a request from a shard to the merged board.
+     *
+     * @param shard the shard
+     * @param req the request
+     */
+    private void handle(Shard shard, PlaceRequest<?> req) {
+        switch (req.getType()) {
+            case TILE_CHANGED:
+                server.applyChange(toMerged(shard, (PlaceTile) req.getData()));
+                break;
+            case TILES_CHANGED:
+                List<PlaceTile> tiles = new ArrayList<>();
+                for (Object tile : (List<?>) req.getData())
+                    tiles.add(toMerged(shard, (PlaceTile) tile));
+                server.applyChanges(tiles);
+                break;
+            case CHUNK_DIFF:
+                List<PlaceTile> framed = new ArrayList<>();
+                for (PlaceTile tile : ((BoardDiff) req.getData()).getTiles())
+                    framed.add(toMerged(shard, tile));
+                server.applyChanges(framed);
+                break;
+            case PLACED:
+                if (answered(shard, req.getId()))
+                    server.placedUpstream(req.getId());
+                break;
+            case ERROR:
+                if (answered(shard, req.getId()))
+                    server.refusedUpstream(req.getId(), String.valueOf(req.getData()));
+                else
+                    System.err.println("Shard " + shard.connection + ": " + req.getData());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Take the answer to a forwarded change off the shard's changes in flight.
+     *
+     * @param shard the shard
+     * @param id the id of the answer
+     * @return whether a change sent to the shard was waiting for it
+     */
+    private static boolean answered(Shard shard, long id) {
+        synchronized (shard.inFlight) {
+            return id != 0 && shard.inFlight.remove(id);
+        }
+    }
+
+    /**
+     * Translate a tile from a shard's coordinates to the merged board's.
+     *
+     * @param shard the shard
+     * @param tile the tile in the shard's coordinates
+     * @return the tile in merged board coordinates
+     */
+    private static PlaceTile toMerged(Shard shard, PlaceTile tile) {
+        return new PlaceTile(tile.getRow() + shard.top, tile.getCol() + shard.left,
+                tile.getOwner(), tile.getColor(), tile.getTime());
+    }
+}
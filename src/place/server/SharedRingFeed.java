@@ -0,0 +1,148 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.NetworkServer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Publishes a server's changes into a memory-mapped ring buffer, so that
+ * relays, exporters and other tools on the same host can follow them with
+ * plain memory reads instead of a socket and Java serialization.  There is
+ * one writer, the server, and any number of {@link SharedRingReader}s, each
+ * with its own cursor; the server never waits for them.
+ *
+ * The file starts with a header:
+ *
+ *     0: int MAGIC, 4: int SLOT, 8: int slot count
+ *     64: long sequence number of the newest change published
+ *
+ * followed at HEADER by the slots.  Change number n is in slot n modulo the
+ * slot count:
+ *
+ *     0: long n, 8: int row, 12: int col, 16: long time, 24: byte color,
+ *     25: byte owner length, 26: owner (UTF-8, cut to OWNER bytes), 56: long check
+ *
+ * A slot's number is set to -1 while it is rewritten and the check is a hash
+ * of everything else, so a reader that races the writer sees a mismatch
+ * instead of a torn change.
+ */
+public class SharedRingFeed implements NetworkServer.Feed {
+    /** Marks a ring file */
+    public static final int MAGIC = 0x504c5247;
+
+    /** The bytes in a slot */
+    public static final int SLOT = 64;
+
+    /** Where the newest sequence number is, on its own cache line */
+    public static final int PUBLISHED = 64;
+
+    /** Where the slots start */
+    public static final int HEADER = 128;
+
+    /** The longest owner name kept, in bytes */
+    public static final int OWNER = 30;
+
+    /** The mapped file */
+    private final MappedByteBuffer ring;
+
+    /** The number of slots */
+    private final int slots;
+
+    /**
+     * Create the ring file, replacing any old one, and start publishing a
+     * server's changes into it.
+     *
+     * @param server the server
+     * @param fileName the ring file, ideally on a memory file system such as /dev/shm
+     * @param slots the number of changes the ring holds
+     * @throws IOException if the file can't be created
+     */
+    public SharedRingFeed(NetworkServer server, String fileName, int slots) throws IOException {
+        this.slots = slots;
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.setLength(0);
+            file.setLength(HEADER + (long) SLOT * slots);
+            ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) SLOT * slots);
+        }
+        for (int slot = 0; slot < slots; ++slot)
+            ring.putLong(HEADER + slot * SLOT, -1);
+        long newest = server.version();
+        ring.putLong(PUBLISHED, newest);
+        ring.putInt(4, SLOT);
+        ring.putInt(8, slots);
+        ring.putInt(0, MAGIC);
+        server.addFeed(this);
+        System.out.println("Publishing changes to ring " + fileName + " (" + slots + " slots)");
+    }
+
+    /**
+     * Write changes into their slots and then move the published number on.
+     * Called with the server locked.
+     *
+     * @param first the sequence number of the first change
+     * @param tiles the changes, in order
+     */
+    @Override
+    public void publish(long first, List<PlaceTile> tiles) {
+        long number = first;
+        for (PlaceTile tile : tiles) {
+            int at = HEADER + (int) (number % slots) * SLOT;
+            byte[] owner = ownerBytes(tile.getOwner());
+            ring.putLong(at, -1);
+            ring.putInt(at + 8, tile.getRow());
+            ring.putInt(at + 12, tile.getCol());
+            ring.putLong(at + 16, tile.getTime());
+            ring.put(at + 24, (byte) tile.getColor().getNumber());
+            ring.put(at + 25, (byte) owner.length);
+            for (int i = 0; i < owner.length; ++i)
+                ring.put(at + 26 + i, owner[i]);
+            ring.putLong(at + 56, check(number, tile.getRow(), tile.getCol(), tile.getTime(),
+                    tile.getColor().getNumber(), owner, owner.length));
+            ring.putLong(at, number++);
+        }
+        ring.putLong(PUBLISHED, number - 1);
+    }
+
+    /**
+     * Encode an owner's name, cut to fit a slot.
+     *
+     * @param owner the name
+     * @return at most OWNER bytes of UTF-8
+     */
+    private static byte[] ownerBytes(String owner) {
+        byte[] bytes = owner == null ? new byte[0] : owner.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= OWNER)
+            return bytes;
+        byte[] cut = new byte[OWNER];
+        System.arraycopy(bytes, 0, cut, 0, OWNER);
+        return cut;
+    }
+
+    /**
+     * Hash the contents of a slot.
+     *
+     * @param number the change's sequence number
+     * @param row the row
+     * @param col the column
+     * @param time the time
+     * @param color the color number
+     * @param owner the owner's bytes
+     * @param length the number of owner bytes
+     * @return the check value
+     */
+    static long check(long number, int row, int col, long time, int color, byte[] owner, int length) {
+        long hash = number * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ ((long) row << 32 | col & 0xffffffffL)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ time) * 0x94D049BB133111EBL;
+        hash = (hash ^ color) * 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < length; ++i)
+            hash = (hash ^ owner[i]) * 0x100000001B3L;
+        return hash ^ hash >>> 31;
+    }
+}
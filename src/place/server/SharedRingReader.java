@@ -0,0 +1,196 @@
+package place.server;
+
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Follows the changes a server on the same host publishes through a
+ * {@link SharedRingFeed}.  Each reader keeps its own cursor, the sequence
+ * number of the next change it wants, and reads the slots straight from the
+ * mapped file; no system calls are made while changes are flowing.
+ *
+ * The server never waits for readers.  A reader that falls a whole ring
+ * behind is lapped: it skips ahead to the oldest change still in the ring
+ * and counts the changes it lost.
+ */
+public class SharedRingReader {
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** The mapped file */
+    private final MappedByteBuffer ring;
+
+    /** The number of slots */
+    private final int slots;
+
+    /** The sequence number of the next change to read */
+    private long cursor;
+
+    /** The number of changes skipped because the reader was lapped */
+    private long lost;
+
+    /** Holds an owner's bytes while a slot is read */
+    private final byte[] owner = new byte[SharedRingFeed.OWNER];
+
+    /**
+     * Open a ring and start at its newest change, so the first change read is
+     * the next one published.
+     *
+     * @param fileName the ring file
+     * @throws PlaceException if the file isn't a ring
+     */
+    public SharedRingReader(String fileName) throws PlaceException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            ring = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } catch (IOException e) {
+            throw new PlaceException("Can't open ring " + fileName, e);
+        }
+        if (ring.capacity() < SharedRingFeed.HEADER || ring.getInt(0) != SharedRingFeed.MAGIC ||
+                ring.getInt(4) != SharedRingFeed.SLOT)
+            throw new PlaceException(fileName + " is not a ring");
+        slots = ring.getInt(8);
+        cursor = ring.getLong(SharedRingFeed.PUBLISHED) + 1;
+    }
+
+    /**
+     * Get the sequence number of the next change this reader will return.
+     *
+     * @return the cursor
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Get the number of changes skipped because the reader fell too far behind.
+     *
+     * @return the number of lost changes
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * Read the changes published since the last call, without waiting.
+     *
+     * @param into where to add the changes
+     * @param max the most changes to read
+     * @return the number of changes read
+     */
+    public int poll(List<PlaceTile> into, int max) {
+        long published = ring.getLong(SharedRingFeed.PUBLISHED);
+        int count = 0;
+        while (count < max && cursor <= published) {
+            PlaceTile tile = read(cursor);
+            if (tile == null) {
+                // overwritten before we got to it: skip to what the ring still holds
+                published = ring.getLong(SharedRingFeed.PUBLISHED);
+                long oldest = published - slots + 1 + slots / 16;
+                if (oldest <= cursor)
+                    break; // not lapped, just half written or damaged: try again next time
+                lost += oldest - cursor;
+                cursor = oldest;
+                continue;
+            }
+            into.add(tile);
+            ++cursor;
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Wait for changes and read them.  The reader spins briefly, then yields,
+     * then parks for short moments, so an idle reader costs almost nothing.
+     *
+     * @param into where to add the changes
+     * @param max the most changes to read
+     * @return the number of changes read, at least one
+     */
+    public int take(List<PlaceTile> into, int max) {
+        int idle = 0;
+        int count;
+        while ((count = poll(into, max)) == 0) {
+            if (++idle < 100) {
+                continue;
+            } else if (idle < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50000);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read one slot.
+     *
+     * @param number the sequence number wanted
+     * @return the change, or null if the slot no longer holds it
+     */
+    private PlaceTile read(long number) {
+        int at = SharedRingFeed.HEADER + (int) (number % slots) * SharedRingFeed.SLOT;
+        if (ring.getLong(at) != number)
+            return null;
+        int row = ring.getInt(at + 8);
+        int col = ring.getInt(at + 12);
+        long time = ring.getLong(at + 16);
+        int color = ring.get(at + 24);
+        int length = Math.min(ring.get(at + 25) & 0xff, SharedRingFeed.OWNER);
+        for (int i = 0; i < length; ++i)
+            owner[i] = ring.get(at + 26 + i);
+        long check = ring.getLong(at + 56);
+        if (ring.getLong(at) != number || color < 0 || color >= COLORS.length ||
+                check != SharedRingFeed.check(number, row, col, time, color, owner, length))
+            return null;
+        return new PlaceTile(row, col, new String(owner, 0, length, StandardCharsets.UTF_8), COLORS[color], time);
+    }
+
+    /**
+     * Follow a ring and print the rate of changes, how stale they were when
+     * read, and how many were lost, every couple of seconds.
+     *
+     * @param args the ring file
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java SharedRingReader <ring file>");
+            System.exit(1);
+        }
+        try {
+            SharedRingReader reader = new SharedRingReader(args[0]);
+            List<PlaceTile> tiles = new ArrayList<>();
+            long count = 0;
+            long staleness = 0;
+            long report = System.currentTimeMillis() + 2000;
+            while (true) {
+                tiles.clear();
+                reader.take(tiles, 4096);
+                long now = System.currentTimeMillis();
+                for (PlaceTile tile : tiles)
+                    staleness += now - tile.getTime();
+                count += tiles.size();
+                if (now >= report) {
+                    System.out.println(count + " changes, mean age " + (count == 0 ? 0 : staleness / count) +
+                            " ms, " + reader.getLost() + " lost, next " + reader.getCursor());
+                    count = 0;
+                    staleness = 0;
+                    report = now + 2000;
+                }
+            }
+        } catch (PlaceException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
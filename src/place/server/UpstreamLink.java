@@ -0,0 +1,207 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.NetworkServer;
+import place.network.PlaceConnection;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Keeps a server's board in step with another server further up, for servers
+ * that don't own their board themselves.  The link connects, lets the
+ * subclass do its handshake, then hands every request from upstream to the
+ * subclass until the connection drops, and then reconnects.
+ *
+ * Changes requested by this server's clients are forwarded upstream and only
+ * show up here once upstream reports them back.  Upstream's answers to them
+ * are passed back to the server, and the ones still waiting when the
+ * connection drops are refused.
+ */
+public abstract class UpstreamLink implements NetworkServer.Upstream, Runnable {
+    /** How long to wait before reconnecting, in milliseconds */
+    private static final long RETRY_MILLIS = 2000;
+
+    /** This server */
+    protected final NetworkServer server;
+
+    /** The upstream server's host */
+    private final String host;
+
+    /** The upstream server's port */
+    private final int port;
+
+    /** The current connection upstream, or null while disconnected */
+    private volatile PlaceConnection upstream;
+
+    /** The ids of the changes forwarded on the current connection and not answered yet */
+    private final HashSet<Long> inFlight = new HashSet<>();
+
+    /**
+     * Create a link from a server to the server above it.  Requested changes
+     * on the server are forwarded upstream from now on.
+     *
+     * @param server this server
+     * @param host the upstream server's host
+     * @param port the upstream server's port
+     */
+    protected UpstreamLink(NetworkServer server, String host, int port) {
+        this.server = server;
+        this.host = host;
+        this.port = port;
+        server.setUpstream(this);
+    }
+
+    /**
+     * Start following upstream on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, getClass().getSimpleName().toUpperCase());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Follow upstream, reconnecting whenever the connection drops.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try (PlaceConnection connection = new PlaceConnection(host, port)) {
+                handshake(connection);
+                upstream = connection;
+                while (true) {
+                    PlaceRequest<?> req = connection.read();
+                    if (!answered(req))
+                        handle(req);
+                }
+            } catch (IOException | ClassNotFoundException | PlaceException e) {
+                System.err.println("Lost connection to " + host + ":" + port + ": " + e.getMessage());
+            }
+            disconnected();
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pass upstream's answer to a forwarded change back to the server.
+     *
+     * @param req the request from upstream
+     * @return whether it was such an answer
+     */
+    private boolean answered(PlaceRequest<?> req) {
+        if (req.getId() == 0 || (req.getType() != PlaceRequest.RequestType.PLACED &&
+                req.getType() != PlaceRequest.RequestType.ERROR))
+            return false;
+        synchronized (this) {
+            if (!inFlight.remove(req.getId()))
+                return true;
+        }
+        if (req.getType() == PlaceRequest.RequestType.PLACED)
+            server.placedUpstream(req.getId());
+        else
+            server.refusedUpstream(req.getId(), String.valueOf(req.getData()));
+        return true;
+    }
+
+    /**
+     * Forget the connection, and refuse the changes still waiting for an answer on it, since
+     * none will come.
+     */
+    private void disconnected() {
+        ArrayList<Long> lost;
+        synchronized (this) {
+            upstream = null;
+            lost = new ArrayList<>(inFlight);
+            inFlight.clear();
+        }
+        for (long id : lost)
+            server.refusedUpstream(id, "Lost connection to " + host + ":" + port + " before the change was placed");
+    }
+
+    /**
+     * Drop the connection upstream.  The link reconnects and does the
+     * handshake again, as if the connection had failed.
+     */
+    protected void reconnect() {
+        PlaceConnection connection = upstream;
+        if (connection != null)
+            connection.close();
+    }
+
+    /**
+     * Introduce this server to upstream.
+     *
+     * @param connection the new connection
+     * @throws IOException if the connection fails
+     * @throws PlaceException if upstream refuses
+     */
+    protected abstract void handshake(PlaceConnection connection) throws IOException, PlaceException;
+
+    /**
+     * Act on a request from upstream.
+     *
+     * @param req the request
+     */
+    protected abstract void handle(PlaceRequest<?> req);
+
+    /**
+     * Replace every tile of this server's board with upstream's.  The tiles are
+     * loaded rather than applied, so they don't count as changes made here.
+     *
+     * @param snapshot upstream's board
+     */
+    protected void applySnapshot(PlaceBoard snapshot) {
+        if (snapshot.DIM != server.getBoard().DIM) {
+            System.err.println("The board upstream is " + snapshot.DIM + "x" + snapshot.DIM +
+                    " but this server's is " + server.getBoard().DIM + "x" + server.getBoard().DIM);
+            System.exit(1);
+        }
+        ArrayList<PlaceTile> tiles = new ArrayList<>(snapshot.DIM * snapshot.DIM);
+        for (PlaceTile[] row : snapshot.getBoard()) {
+            for (PlaceTile tile : row)
+                tiles.add(tile);
+        }
+        server.loadTiles(tiles);
+    }
+
+    /**
+     * Send a change requested by one of this server's clients upstream, as a CHANGE_TILE for
+     * one tile or a CHANGE_TILES for several.
+     *
+     * @param tiles the requested tiles
+     * @param id the id upstream answers with, or 0 for no answer
+     * @throws PlaceException if upstream can't be reached
+     */
+    @Override
+    public void forward(List<PlaceTile> tiles, long id) throws PlaceException {
+        PlaceConnection connection;
+        synchronized (this) {
+            connection = upstream;
+            if (connection == null)
+                throw new PlaceException("Not connected to " + host + ":" + port);
+            if (id != 0)
+                inFlight.add(id);
+        }
+        PlaceRequest<?> req = tiles.size() == 1
+                ? new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tiles.get(0), id)
+                : new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, new ArrayList<>(tiles), id);
+        try {
+            connection.send(req);
+        } catch (IOException e) {
+            synchronized (this) {
+                inFlight.remove(id);
+            }
+            throw new PlaceException("Could not forward change to " + connection + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package place;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that trees of equal boards match, that a change is found in exactly
+ * its chunk, including the short chunks at the edge of a board whose side is
+ * not a multiple of CHUNK, and that a tree survives serialization.
+ */
+public class BoardHashTreeTest {
+    /** A board side that leaves short chunks on the right and bottom, and unused leaves */
+    private static final int DIM = 150;
+
+    /**
+     * Change a tile and tell the tree.
+     *
+     * @param tree the tree of the board
+     * @param row the row
+     * @param col the column
+     * @param color the new color
+     */
+    private static void change(BoardHashTree tree, int row, int col, PlaceColor color) {
+        tree.getBoard().setTile(new PlaceTile(row, col, "alice", color, 1234));
+        tree.markDirty(row, col);
+    }
+
+    /**
+     * Serialize a tree and read it back.
+     *
+     * @param tree the tree
+     * @return the copy
+     * @throws IOException never
+     * @throws ClassNotFoundException never
+     */
+    private static BoardHashTree copy(BoardHashTree tree) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(tree);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (BoardHashTree) in.readObject();
+        }
+    }
+
+    @Test
+    public void equalBoardsMatch() {
+        BoardHashTree a = new BoardHashTree(new PlaceBoard(DIM));
+        BoardHashTree b = new BoardHashTree(new PlaceBoard(DIM));
+        assertEquals(9, a.chunkCount());
+        assertTrue(a.differingChunks(b).isEmpty());
+    }
+
+    @Test
+    public void changesAreFoundInTheirChunk() {
+        BoardHashTree a = new BoardHashTree(new PlaceBoard(DIM));
+        BoardHashTree b = new BoardHashTree(new PlaceBoard(DIM));
+        int[][] cells = {{0, 0}, {63, 64}, {149, 149}, {130, 5}};
+        for (int[] cell : cells) {
+            change(a, cell[0], cell[1], PlaceColor.RED);
+            assertEquals(Collections.singletonList(a.chunkOf(cell[0], cell[1])), a.differingChunks(b));
+            change(b, cell[0], cell[1], PlaceColor.RED);
+            assertTrue(a.differingChunks(b).isEmpty());
+        }
+    }
+
+    @Test
+    public void ownerAndTimeCount() {
+        BoardHashTree a = new BoardHashTree(new PlaceBoard(DIM));
+        BoardHashTree b = new BoardHashTree(new PlaceBoard(DIM));
+        change(a, 70, 70, PlaceColor.WHITE);
+        assertEquals(Collections.singletonList(4), a.differingChunks(b));
+        b.getBoard().setTile(new PlaceTile(70, 70, "bob", PlaceColor.WHITE, 1234));
+        b.markDirty(70, 70);
+        assertEquals(Collections.singletonList(4), a.differingChunks(b));
+    }
+
+    @Test
+    public void severalChunksInOrder() {
+        BoardHashTree a = new BoardHashTree(new PlaceBoard(DIM));
+        BoardHashTree b = new BoardHashTree(new PlaceBoard(DIM));
+        change(a, 140, 140, PlaceColor.BLUE);
+        change(a, 0, 100, PlaceColor.BLUE);
+        change(a, 100, 0, PlaceColor.BLUE);
+        assertEquals(Arrays.asList(1, 3, 8), a.differingChunks(b));
+        assertEquals(Arrays.asList(1, 3, 8), b.differingChunks(a));
+    }
+
+    @Test
+    public void differentSizesDifferEverywhere() {
+        BoardHashTree a = new BoardHashTree(new PlaceBoard(DIM));
+        BoardHashTree b = new BoardHashTree(new PlaceBoard(64));
+        assertEquals(9, a.differingChunks(b).size());
+        assertEquals(1, b.differingChunks(a).size());
+    }
+
+    @Test
+    public void serializedTreeKeepsItsHashes() throws IOException, ClassNotFoundException {
+        BoardHashTree tree = new BoardHashTree(new PlaceBoard(DIM));
+        change(tree, 10, 140, PlaceColor.GREEN);
+        BoardHashTree received = copy(tree);
+        assertNull(received.getBoard());
+        assertEquals(DIM, received.DIM);
+        assertTrue(tree.differingChunks(received).isEmpty());
+        change(tree, 149, 0, PlaceColor.GREEN);
+        assertEquals(Collections.singletonList(6), tree.differingChunks(received));
+    }
+
+    @Test
+    public void treeFromSavedHashes() {
+        PlaceBoard board = new PlaceBoard(DIM);
+        BoardHashTree tree = new BoardHashTree(board);
+        change(tree, 75, 75, PlaceColor.YELLOW);
+        long[] hashes = new long[tree.chunkCount()];
+        for (int chunk = 0; chunk < hashes.length; ++chunk)
+            hashes[chunk] = tree.chunkHash(chunk);
+        BoardHashTree restored = new BoardHashTree(board, hashes);
+        assertTrue(restored.differingChunks(tree).isEmpty());
+    }
+
+    @Test
+    public void edgeChunksAreShort() {
+        BoardHashTree tree = new BoardHashTree(new PlaceBoard(DIM));
+        List<PlaceTile> corner = tree.chunkTiles(8);
+        assertEquals((DIM - 128) * (DIM - 128), corner.size());
+        assertEquals(128, corner.get(0).getRow());
+        assertEquals(128, corner.get(0).getCol());
+        assertEquals(BoardHashTree.CHUNK * (DIM - 128), tree.chunkTiles(2).size());
+    }
+}
@@ -0,0 +1,150 @@
+package place;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that exported images hold exactly the board's colors, for boards
+ * that fill several strips, have odd widths (a half used byte at the end of
+ * every PNG row) and compress to more than one IDAT chunk.
+ */
+public class PlaceBoardExporterTest {
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /**
+     * Make a board of random colors.
+     *
+     * @param DIM the side of the board
+     * @param seed the seed of the colors
+     * @return the board
+     */
+    private static PlaceBoard randomBoard(int DIM, long seed) {
+        Random random = new Random(seed);
+        PlaceBoard board = new PlaceBoard(DIM);
+        for (int row = 0; row < DIM; ++row)
+            for (int col = 0; col < DIM; ++col)
+                board.getTile(row, col).setColor(COLORS[random.nextInt(COLORS.length)]);
+        return board;
+    }
+
+    /**
+     * Export a board to memory.
+     *
+     * @param board the board
+     * @param format the format
+     * @return the exported bytes
+     * @throws IOException never
+     */
+    private static byte[] export(PlaceBoard board, PlaceBoardExporter.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PlaceBoardExporter(board).export(out, format);
+        return out.toByteArray();
+    }
+
+    /**
+     * Export a board as PNG, decode it with ImageIO and compare every pixel.
+     *
+     * @param board the board
+     * @throws IOException if the PNG can't be decoded
+     */
+    private static void checkPng(PlaceBoard board) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(export(board, PlaceBoardExporter.Format.PNG)));
+        assertNotNull(image);
+        assertEquals(board.DIM, image.getWidth());
+        assertEquals(board.DIM, image.getHeight());
+        for (int row = 0; row < board.DIM; ++row) {
+            for (int col = 0; col < board.DIM; ++col) {
+                PlaceColor color = board.getTile(row, col).getColor();
+                int rgb = color.getRed() << 16 | color.getGreen() << 8 | color.getBlue();
+                assertEquals("pixel " + row + ", " + col, rgb, image.getRGB(col, row) & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    public void pngOfASingleTile() throws IOException {
+        checkPng(randomBoard(1, 1));
+    }
+
+    @Test
+    public void pngOfOddWidths() throws IOException {
+        checkPng(randomBoard(63, 2));
+        checkPng(randomBoard(65, 3));
+    }
+
+    @Test
+    public void pngOfSeveralStrips() throws IOException {
+        checkPng(randomBoard(130, 4));
+    }
+
+    @Test
+    public void pngLargerThanOneChunk() throws IOException {
+        // random colors hardly compress, so this is well over one 64K IDAT chunk
+        checkPng(randomBoard(600, 5));
+    }
+
+    @Test
+    public void pngOfABlankBoard() throws IOException {
+        checkPng(new PlaceBoard(200));
+    }
+
+    @Test
+    public void rawFormatsAreRowMajor() throws IOException {
+        PlaceBoard board = randomBoard(70, 6);
+        byte[] rgb = export(board, PlaceBoardExporter.Format.RGB);
+        byte[] indexed = export(board, PlaceBoardExporter.Format.INDEXED);
+        byte[] expectedRgb = new byte[70 * 70 * 3];
+        byte[] expectedIndexed = new byte[70 * 70];
+        for (int row = 0; row < 70; ++row) {
+            for (int col = 0; col < 70; ++col) {
+                PlaceColor color = board.getTile(row, col).getColor();
+                int at = row * 70 + col;
+                expectedIndexed[at] = (byte) color.getNumber();
+                expectedRgb[3 * at] = (byte) color.getRed();
+                expectedRgb[3 * at + 1] = (byte) color.getGreen();
+                expectedRgb[3 * at + 2] = (byte) color.getBlue();
+            }
+        }
+        assertArrayEquals(expectedRgb, rgb);
+        assertArrayEquals(expectedIndexed, indexed);
+    }
+
+    @Test
+    public void combinedAdlerMatchesTheWholeStream() {
+        Random random = new Random(7);
+        for (int length : new int[] {0, 1, 5552, 65521, 100000}) {
+            byte[] first = new byte[random.nextInt(70000)];
+            byte[] second = new byte[length];
+            random.nextBytes(first);
+            random.nextBytes(second);
+            Adler32 whole = new Adler32();
+            whole.update(first);
+            whole.update(second);
+            Adler32 a = new Adler32();
+            a.update(first);
+            Adler32 b = new Adler32();
+            b.update(second);
+            assertEquals("length " + length, whole.getValue(),
+                    PlaceBoardExporter.combineAdler(a.getValue(), b.getValue(), length));
+        }
+    }
+
+    @Test
+    public void formatFromFileName() {
+        assertEquals(PlaceBoardExporter.Format.PNG, PlaceBoardExporter.formatFor("board.PNG"));
+        assertEquals(PlaceBoardExporter.Format.RGB, PlaceBoardExporter.formatFor("board.rgb"));
+        assertEquals(PlaceBoardExporter.Format.INDEXED, PlaceBoardExporter.formatFor("board.idx"));
+    }
+}
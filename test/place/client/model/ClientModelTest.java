@@ -0,0 +1,57 @@
+package place.client.model;
+
+import org.junit.Test;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that placements waiting for the server are drawn over the board
+ * until they are answered, that a refused one gives the cell back to the
+ * board, and that answering an older placement leaves a newer one on the
+ * same cell in place.
+ */
+public class ClientModelTest {
+    /** The size of the board */
+    private static final int DIM = 4;
+
+    @Test
+    public void refusedPlacementShowsTheBoardAgain() {
+        ClientModel model = new ClientModel(new PlaceBoard(DIM));
+        model.place(new PlaceTile(1, 2, "me", PlaceColor.RED, 1), 1);
+        assertEquals(PlaceColor.RED, model.getTile(1, 2).getColor());
+        assertEquals(PlaceColor.WHITE, model.getBoard().getTile(1, 2).getColor());
+        model.rollback(1);
+        assertEquals(PlaceColor.WHITE, model.getTile(1, 2).getColor());
+        assertTrue(model.getPending().isEmpty());
+    }
+
+    @Test
+    public void confirmedPlacementLeavesTheBoardsTile() {
+        ClientModel model = new ClientModel(new PlaceBoard(DIM));
+        PlaceTile mine = new PlaceTile(0, 0, "me", PlaceColor.RED, 1);
+        model.place(mine, 1);
+        // the change comes back, then someone else's lands before the answer
+        model.setTile(mine);
+        model.setTile(new PlaceTile(0, 0, "you", PlaceColor.BLUE, 2));
+        assertEquals(PlaceColor.RED, model.getTile(0, 0).getColor());
+        model.confirm(1);
+        assertEquals(PlaceColor.BLUE, model.getTile(0, 0).getColor());
+    }
+
+    @Test
+    public void newerPlacementOnTheSameCellStays() {
+        ClientModel model = new ClientModel(new PlaceBoard(DIM));
+        model.place(new PlaceTile(3, 3, "me", PlaceColor.RED, 1), 1);
+        model.place(new PlaceTile(3, 3, "me", PlaceColor.GREEN, 2), 2);
+        assertEquals(PlaceColor.GREEN, model.getTile(3, 3).getColor());
+        model.rollback(1);
+        assertEquals(PlaceColor.GREEN, model.getTile(3, 3).getColor());
+        assertEquals(1, model.getPending().size());
+        model.confirm(2);
+        assertTrue(model.getPending().isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+package place.client.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+import place.server.LoopbackServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the asynchronous client against a real server.  It always asks for
+ * compression, so logging in, reading the board and following changes, the
+ * large frames compressed once for every client among them, all go through
+ * a deflated stream.  Placements complete once the client's board has them,
+ * and refused ones fail.
+ */
+public class AsyncPlaceClientTest {
+    /** The size of the board, big enough for a whole board change to be compressed once for every client */
+    private static final int DIM = 30;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+        place.server.changeTile(new PlaceTile(4, 5, "alice", PlaceColor.RED, 1));
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    /**
+     * Connect a client and wait for its board.
+     *
+     * @param username the name to log in with
+     * @return the client
+     * @throws Exception if the login fails or takes too long
+     */
+    private AsyncPlaceClient connect(String username) throws Exception {
+        return AsyncPlaceClient.connect(place.getHost(), place.getPort(), username)
+                .get(LoopbackServer.TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void compressedLoginHasTheBoard() throws Exception {
+        try (AsyncPlaceClient bob = connect("bob")) {
+            assertEquals("alice", bob.getBoard().getTile(4, 5).getOwner());
+            assertEquals(PlaceColor.RED, bob.getBoard().getTile(4, 5).getColor());
+        }
+    }
+
+    @Test
+    public void placementsCompleteOnceTheBoardHasThem() throws Exception {
+        try (AsyncPlaceClient bob = connect("bob")) {
+            List<PlaceTile> placed = new ArrayList<>();
+            for (int i = 0; i < 100; ++i)
+                placed.add(bob.place(new PlaceTile(i / DIM, i % DIM, "bob", PlaceColor.values()[i % 16], i))
+                        .get(LoopbackServer.TIMEOUT, TimeUnit.MILLISECONDS));
+            for (PlaceTile tile : placed)
+                assertEquals(tile.getColor(), bob.getBoard().getTile(tile.getRow(), tile.getCol()).getColor());
+            List<PlaceTile> stamp = bob.placeAll(Arrays.asList(new PlaceTile(9, 9, "bob", PlaceColor.NAVY, 1),
+                    new PlaceTile(9, 10, "bob", PlaceColor.NAVY, 1))).get(LoopbackServer.TIMEOUT, TimeUnit.MILLISECONDS);
+            assertEquals(2, stamp.size());
+            assertEquals(PlaceColor.NAVY, bob.getBoard().getTile(9, 10).getColor());
+            assertEquals(0, bob.inFlight());
+        }
+    }
+
+    @Test
+    public void refusedPlacementsFail() throws Exception {
+        try (AsyncPlaceClient bob = connect("bob")) {
+            try {
+                bob.place(new PlaceTile(DIM, 0, "bob", PlaceColor.RED, 1))
+                        .get(LoopbackServer.TIMEOUT, TimeUnit.MILLISECONDS);
+                throw new AssertionError("a tile off the board was placed");
+            } catch (ExecutionException e) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof PlaceException);
+            }
+        }
+    }
+
+    @Test
+    public void followsCompressedFrames() throws Exception {
+        try (AsyncPlaceClient bob = connect("bob")) {
+            ArrayList<PlaceTile> drawn = new ArrayList<>();
+            for (int row = 0; row < DIM; ++row)
+                for (int col = 0; col < DIM; ++col)
+                    drawn.add(new PlaceTile(row, col, "carol", PlaceColor.TEAL, 2));
+            place.server.applyChanges(drawn);
+            LoopbackServer.await("the whole board change", () ->
+                    bob.getBoard().getTile(DIM - 1, DIM - 1).getColor() == PlaceColor.TEAL);
+            for (int row = 0; row < DIM; ++row)
+                for (int col = 0; col < DIM; ++col)
+                    assertEquals("carol", bob.getBoard().getTile(row, col).getOwner());
+        }
+    }
+}
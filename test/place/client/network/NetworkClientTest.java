@@ -0,0 +1,105 @@
+package place.client.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.server.LoopbackServer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the client behind the GUI and PTUI against a real server: changes
+ * keep being read while the model's observers are slow, and reach the model
+ * in batches, and the user's own placements show at once and settle when the
+ * server answers them.  Its board cache is kept in a scratch home directory.
+ */
+public class NetworkClientTest {
+    /** The size of the board */
+    private static final int DIM = 20;
+
+    /** The server */
+    private LoopbackServer place;
+
+    /** The scratch home directory */
+    private File home;
+
+    /** The real home directory */
+    private String realHome;
+
+    /** The client */
+    private NetworkClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        place = new LoopbackServer(DIM);
+        home = Files.createTempDirectory("home").toFile();
+        realHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        client = new NetworkClient(place.getHost(), place.getPort(), "viewer");
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        place.close();
+        System.setProperty("user.home", realHome);
+        delete(home);
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it.
+     *
+     * @param file the file
+     */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File inside : files)
+                delete(inside);
+        file.delete();
+    }
+
+    @Test
+    public void slowObserversGetChangesInBatches() throws Exception {
+        AtomicInteger notified = new AtomicInteger();
+        client.getModel().addObserver((model, changed) -> {
+            notified.incrementAndGet();
+            try {
+                // drawing that can't keep up
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        int changes = 150;
+        for (int i = 0; i < changes; ++i) {
+            place.server.changeTile(new PlaceTile(i / DIM % DIM, i % DIM, "alice", PlaceColor.values()[i % 16], i));
+            // too slow for the server to send frames, so the changes go out one by one
+            Thread.sleep(10);
+        }
+        LoopbackServer.await("the last change", () ->
+                client.getModel().getTile((changes - 1) / DIM % DIM, (changes - 1) % DIM).getTime() == changes - 1);
+        for (int row = 0; row < DIM; ++row)
+            for (int col = 0; col < DIM; ++col)
+                assertEquals(place.server.getBoard().getTile(row, col).getColor(),
+                        client.getModel().getTile(row, col).getColor());
+        assertTrue(notified.get() + " notifications for " + changes + " changes", notified.get() < changes / 2);
+    }
+
+    @Test
+    public void placementsShowAtOnceAndSettleWhenAnswered() throws Exception {
+        client.changeTile(3, 4, "viewer", "5");
+        // shown before the server has had a chance to answer
+        assertEquals(PlaceColor.RED, client.getModel().getTile(3, 4).getColor());
+        LoopbackServer.await("the answer", () -> client.getModel().getPending().isEmpty());
+        assertEquals(PlaceColor.RED, client.getModel().getBoard().getTile(3, 4).getColor());
+        assertEquals("viewer", client.getModel().getBoard().getTile(3, 4).getOwner());
+    }
+}
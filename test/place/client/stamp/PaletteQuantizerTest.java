@@ -0,0 +1,132 @@
+package place.client.stamp;
+
+import org.junit.Test;
+import place.PlaceColor;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the lookup table against a search of the palette, and that
+ * quantizing keeps palette colors, drops transparent pixels and, with
+ * dithering, keeps the average color of an area.
+ */
+public class PaletteQuantizerTest {
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /**
+     * Find the nearest color by trying them all.
+     *
+     * @param red the red
+     * @param green the green
+     * @param blue the blue
+     * @return the smallest squared distance to a color of the palette
+     */
+    private static int bestDistance(int red, int green, int blue) {
+        int best = Integer.MAX_VALUE;
+        for (PlaceColor color : COLORS)
+            best = Math.min(best, distance(color, red, green, blue));
+        return best;
+    }
+
+    /**
+     * Get the squared distance from a color to an RGB value.
+     *
+     * @param color the color
+     * @param red the red
+     * @param green the green
+     * @param blue the blue
+     * @return the squared distance
+     */
+    private static int distance(PlaceColor color, int red, int green, int blue) {
+        int dr = red - color.getRed();
+        int dg = green - color.getGreen();
+        int db = blue - color.getBlue();
+        return dr * dr + dg * dg + db * db;
+    }
+
+    /**
+     * Make an image of one color.
+     *
+     * @param argb the color
+     * @param width the width
+     * @param height the height
+     * @return the pixels
+     */
+    private static int[] flat(int argb, int width, int height) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, argb);
+        return pixels;
+    }
+
+    @Test
+    public void paletteColorsAreTheirOwnNearest() {
+        for (PlaceColor color : COLORS)
+            assertEquals(color.toString(), color.getNumber(),
+                    PaletteQuantizer.nearest(color.getRed(), color.getGreen(), color.getBlue()));
+    }
+
+    @Test
+    public void lookupMatchesASearchAtTheMiddleOfEveryCell() {
+        for (int red = 4; red < 256; red += 8) {
+            for (int green = 4; green < 256; green += 8) {
+                for (int blue = 4; blue < 256; blue += 8) {
+                    PlaceColor found = COLORS[PaletteQuantizer.nearest(red, green, blue)];
+                    assertEquals(red + "," + green + "," + blue, bestDistance(red, green, blue),
+                            distance(found, red, green, blue));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void channelsAreClamped() {
+        assertEquals(PlaceColor.LIME.getNumber(), PaletteQuantizer.nearest(-50, 300, -1));
+        assertEquals(PlaceColor.WHITE.getNumber(), PaletteQuantizer.nearest(1000, 1000, 1000));
+        assertEquals(PlaceColor.BLACK.getNumber(), PaletteQuantizer.nearest(-1000, -1000, -1000));
+    }
+
+    @Test
+    public void transparentPixelsAreSkipped() {
+        int[] pixels = {0x00ff0000, 0x7fff0000, 0x80ff0000, 0xffff0000};
+        int red = PlaceColor.RED.getNumber();
+        int[] expected = {PaletteQuantizer.TRANSPARENT, PaletteQuantizer.TRANSPARENT, red, red};
+        assertArrayEquals(expected, PaletteQuantizer.quantize(pixels, 4, 1, false));
+        assertArrayEquals(expected, PaletteQuantizer.quantize(pixels, 4, 1, true));
+    }
+
+    @Test
+    public void flatPaletteColorsStayFlat() {
+        for (PlaceColor color : COLORS) {
+            int argb = 0xff000000 | color.getRed() << 16 | color.getGreen() << 8 | color.getBlue();
+            int[] expected = new int[37 * 150];
+            Arrays.fill(expected, color.getNumber());
+            assertArrayEquals(expected, PaletteQuantizer.quantize(flat(argb, 37, 150), 37, 150, false));
+            assertArrayEquals(expected, PaletteQuantizer.quantize(flat(argb, 37, 150), 37, 150, true));
+        }
+    }
+
+    @Test
+    public void ditheringKeepsTheAverage() {
+        // dark gray is between black and gray, so without dithering it is all one of them
+        int width = 100;
+        int height = 130;
+        int[] colors = PaletteQuantizer.quantize(flat(0xff404040, width, height), width, height, true);
+        long sum = 0;
+        for (int color : colors)
+            sum += COLORS[color].getRed();
+        double average = (double) sum / colors.length;
+        assertTrue("average " + average, Math.abs(average - 0x40) < 8);
+        assertArrayEquals(colors, PaletteQuantizer.quantize(flat(0xff404040, width, height), width, height, true));
+    }
+
+    @Test
+    public void emptyImage() {
+        assertEquals(0, PaletteQuantizer.quantize(new int[0], 0, 0, true).length);
+        assertEquals(0, PaletteQuantizer.quantize(new int[0], 5, 0, false).length);
+    }
+}
@@ -0,0 +1,128 @@
+package place.client.text;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.server.LoopbackServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the PTUI on a pipe for a console: changes from the server are drawn
+ * in place while it waits for the user to type, the user's moves reach the
+ * server, and it stops when the input ends.  Its board cache is kept in a
+ * scratch home directory.
+ */
+public class PlacePTUITest {
+    /** The size of the board */
+    private static final int DIM = 8;
+
+    /** Starts a control sequence */
+    private static final String CSI = "\033[";
+
+    /** The server */
+    private LoopbackServer place;
+
+    /** The scratch home directory */
+    private File home;
+
+    /** The real home directory */
+    private String realHome;
+
+    /** The real console */
+    private InputStream realIn;
+
+    /** The real console */
+    private PrintStream realOut;
+
+    /** What the PTUI prints */
+    private ByteArrayOutputStream printed;
+
+    /** What the user types */
+    private PipedOutputStream typed;
+
+    @Before
+    public void setUp() throws Exception {
+        place = new LoopbackServer(DIM);
+        home = Files.createTempDirectory("home").toFile();
+        realHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        realIn = System.in;
+        realOut = System.out;
+        typed = new PipedOutputStream();
+        System.setIn(new PipedInputStream(typed));
+        printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+    }
+
+    @After
+    public void tearDown() {
+        System.setIn(realIn);
+        System.setOut(realOut);
+        System.setProperty("user.home", realHome);
+        place.close();
+        delete(home);
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it.
+     *
+     * @param file the file
+     */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File inside : files)
+                delete(inside);
+        file.delete();
+    }
+
+    /**
+     * Get what the PTUI has printed so far.
+     *
+     * @return the output
+     */
+    private String printed() {
+        synchronized (printed) {
+            return new String(printed.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void drawsChangesInPlaceAndSendsMoves() throws Exception {
+        Thread ptui = new Thread(() -> ConsoleApplication.launch(PlacePTUI.class,
+                new String[] {place.getHost(), String.valueOf(place.getPort()), "typist"}), "PTUITEST");
+        ptui.setDaemon(true);
+        ptui.start();
+        LoopbackServer.await("the prompt", () -> printed().contains("Change tile?"));
+        int drawn = printed().length();
+
+        // drawn while nothing has been typed
+        place.server.changeTile(new PlaceTile(1, 2, "alice", PlaceColor.NAVY, 1));
+        String cell = CSI + "3;3H" + PlaceColor.NAVY;
+        LoopbackServer.await("the changed cell", () -> printed().contains(cell));
+        assertFalse("the whole board was redrawn", printed().substring(drawn).contains(CSI + "2J"));
+
+        typed.write("4 5 5\n".getBytes(StandardCharsets.UTF_8));
+        typed.flush();
+        LoopbackServer.await("the move", () -> place.server.getBoard().getTile(4, 5).getColor() == PlaceColor.RED);
+        assertEquals("typist", place.server.getBoard().getTile(4, 5).getOwner());
+
+        typed.close();
+        ptui.join(LoopbackServer.TIMEOUT);
+        assertTrue("still running after the input ended", !ptui.isAlive());
+    }
+}
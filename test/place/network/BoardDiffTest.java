@@ -0,0 +1,126 @@
+package place.network;
+
+import org.junit.Test;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a frame brings back exactly the changed tiles of a board, with
+ * their owners and times, however many owners there are and however far
+ * apart the times are, and that it survives serialization on its own and
+ * inside a Deflated.
+ */
+public class BoardDiffTest {
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /**
+     * Serialize an object and read it back.
+     *
+     * @param value the object
+     * @return the copy
+     * @throws IOException never
+     * @throws ClassNotFoundException never
+     */
+    private static Object copy(Serializable value) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Check that a frame holds exactly the dirty cells of a board, as they are on the board.
+     *
+     * @param board the board
+     * @param dirty the changed cells, as row * DIM + col
+     * @param diff the frame
+     */
+    private static void checkDiff(PlaceBoard board, BitSet dirty, BoardDiff diff) {
+        List<PlaceTile> tiles = diff.getTiles();
+        assertEquals(dirty.cardinality(), diff.size());
+        assertEquals(dirty.cardinality(), tiles.size());
+        Set<Integer> seen = new HashSet<>();
+        for (PlaceTile tile : tiles) {
+            int key = tile.getRow() * board.DIM + tile.getCol();
+            assertTrue("not dirty: " + tile, dirty.get(key));
+            assertTrue("twice: " + tile, seen.add(key));
+            PlaceTile expected = board.getTile(tile.getRow(), tile.getCol());
+            assertEquals(expected.getColor(), tile.getColor());
+            assertEquals(expected.getOwner(), tile.getOwner());
+            assertEquals(expected.getTime(), tile.getTime());
+        }
+    }
+
+    @Test
+    public void emptyFrame() {
+        BoardDiff diff = new BoardDiff(new PlaceBoard(10), new BitSet());
+        assertEquals(0, diff.size());
+        assertTrue(diff.getTiles().isEmpty());
+    }
+
+    @Test
+    public void scatteredChangesOnAnOddBoard() throws IOException, ClassNotFoundException {
+        Random random = new Random(1);
+        PlaceBoard board = new PlaceBoard(201);
+        BitSet dirty = new BitSet();
+        for (int i = 0; i < 3000; ++i) {
+            int row = random.nextInt(board.DIM);
+            int col = random.nextInt(board.DIM);
+            board.setTile(new PlaceTile(row, col, "user" + random.nextInt(20), COLORS[random.nextInt(16)],
+                    1500000000000L + random.nextInt(100000)));
+            dirty.set(row * board.DIM + col);
+        }
+        // the last cell of the board, alone in its corner chunk
+        board.setTile(new PlaceTile(200, 200, "corner", PlaceColor.NAVY, 1500000000000L));
+        dirty.set(201 * 201 - 1);
+        BoardDiff diff = new BoardDiff(board, dirty);
+        checkDiff(board, dirty, diff);
+        checkDiff(board, dirty, (BoardDiff) copy(diff));
+    }
+
+    @Test
+    public void wholeBoardWithManyOwnersAndBlankTiles() throws IOException, ClassNotFoundException {
+        // 45000 owners, more than fit in a short, and untouched tiles from time 0 next to recent ones
+        PlaceBoard board = new PlaceBoard(300);
+        for (int row = 0; row < board.DIM; ++row)
+            for (int col = row % 2; col < board.DIM; col += 2)
+                board.setTile(new PlaceTile(row, col, "u" + (row * board.DIM + col), COLORS[col % 16],
+                        System.currentTimeMillis()));
+        BitSet dirty = new BitSet();
+        dirty.set(0, board.DIM * board.DIM);
+        BoardDiff diff = new BoardDiff(board, dirty);
+        checkDiff(board, dirty, diff);
+        // a Deflated reads back as the object it holds
+        checkDiff(board, dirty, (BoardDiff) copy(new Deflated(diff)));
+    }
+
+    @Test
+    public void extremeTimes() {
+        PlaceBoard board = new PlaceBoard(2);
+        board.setTile(new PlaceTile(0, 0, "a", PlaceColor.RED, Long.MIN_VALUE / 2));
+        board.setTile(new PlaceTile(1, 1, "b", PlaceColor.BLUE, Long.MAX_VALUE / 2));
+        BitSet dirty = new BitSet();
+        dirty.set(0, 4);
+        checkDiff(board, dirty, new BoardDiff(board, dirty));
+    }
+}
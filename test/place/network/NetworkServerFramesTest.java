@@ -0,0 +1,39 @@
+package place.network;
+
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a server nobody has connected to schedules no frames, so it
+ * can be dropped without being shut down, while still taking changes.
+ */
+public class NetworkServerFramesTest {
+    /**
+     * Make a server, change it, and drop it.
+     *
+     * @return a weak reference to the dropped server
+     */
+    private static WeakReference<NetworkServer> dropped() {
+        NetworkServer server = new NetworkServer(10);
+        server.setVerbose(false);
+        server.changeTile(new PlaceTile(1, 1, "alice", PlaceColor.RED, 1));
+        assertEquals(PlaceColor.RED, server.getBoard().getTile(1, 1).getColor());
+        return new WeakReference<>(server);
+    }
+
+    @Test
+    public void unusedServerIsCollected() throws InterruptedException {
+        WeakReference<NetworkServer> server = dropped();
+        for (int i = 0; i < 50 && server.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue("the server was kept alive", server.get() == null);
+    }
+}
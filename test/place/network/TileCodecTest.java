@@ -0,0 +1,103 @@
+package place.network;
+
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that tiles and varints read back as they were written, at the edges
+ * of their ranges.
+ */
+public class TileCodecTest {
+    /**
+     * Write a tile and read it back.
+     *
+     * @param tile the tile
+     * @return the tile read
+     * @throws IOException never
+     */
+    private static PlaceTile roundTrip(PlaceTile tile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TileCodec.write(new DataOutputStream(bytes), tile);
+        if (tile.getOwner() != null && tile.getOwner().chars().allMatch(c -> c > 0 && c < 128))
+            assertEquals(TileCodec.size(tile), bytes.size());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        PlaceTile read = TileCodec.read(in);
+        assertEquals(-1, in.read());
+        return read;
+    }
+
+    /**
+     * Check that a tile survives being written and read.
+     *
+     * @param tile the tile
+     * @throws IOException never
+     */
+    private static void checkTile(PlaceTile tile) throws IOException {
+        PlaceTile read = roundTrip(tile);
+        assertEquals(tile.getRow(), read.getRow());
+        assertEquals(tile.getCol(), read.getCol());
+        assertEquals(tile.getColor(), read.getColor());
+        assertEquals(tile.getTime(), read.getTime());
+        assertEquals(tile.getOwner(), read.getOwner());
+    }
+
+    @Test
+    public void tilesRoundTrip() throws IOException {
+        for (PlaceColor color : PlaceColor.values())
+            checkTile(new PlaceTile(3, 4, "alice", color, 1500000000000L));
+        checkTile(new PlaceTile(0, 0, "", PlaceColor.WHITE, 0));
+        checkTile(new PlaceTile(Integer.MAX_VALUE, -1, "bob", PlaceColor.BLACK, Long.MAX_VALUE));
+        checkTile(new PlaceTile(7, 8, "zo\u00eb \u2603", PlaceColor.RED, Long.MIN_VALUE));
+    }
+
+    @Test
+    public void missingOwnerIsBlank() throws IOException {
+        PlaceTile tile = new PlaceTile(1, 1, null, PlaceColor.RED, 5);
+        assertEquals(TileCodec.FIXED_SIZE, TileCodec.size(tile));
+        assertEquals("", roundTrip(tile).getOwner());
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownColorIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(PlaceColor.TOTAL_COLORS);
+        out.writeLong(0);
+        out.writeUTF("alice");
+        TileCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void varintsRoundTripWithTheirLengths() throws IOException {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE};
+        int[] lengths = {1, 1, 1, 2, 2, 3, 5, 9, 9};
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(all);
+        for (int i = 0; i < values.length; ++i) {
+            int before = all.size();
+            TileCodec.writeVarLong(out, values[i]);
+            assertEquals("length of " + values[i], lengths[i], all.size() - before);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(all.toByteArray()));
+        for (long value : values)
+            assertEquals(value, TileCodec.readVarLong(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedVarintFails() throws IOException {
+        TileCodec.readVarLong(new DataInputStream(new ByteArrayInputStream(new byte[] {(byte) 0x80, (byte) 0x80})));
+    }
+}
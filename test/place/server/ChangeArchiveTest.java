@@ -0,0 +1,226 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the archive's queries against a plain list of the same changes,
+ * with the changes spread over full blocks on disk and a short block still
+ * in memory, and again after the archive is reopened.
+ */
+public class ChangeArchiveTest {
+    /** The colors, by number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** The users the changes are made by; the blank owner of untouched tiles is one of them */
+    private static final String[] USERS = {"alice", "bob", "carol", "", "dave"};
+
+    /** The archive directory */
+    private File dir;
+
+    /** The changes appended, in order */
+    private List<PlaceTile> appended;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("archive").toFile();
+        appended = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    /**
+     * Append random changes, a few every second over a couple of hours, so
+     * they fall in many time buckets.
+     *
+     * @param archive the archive
+     * @param count the number of changes
+     * @param seed the seed
+     * @throws IOException if the archive fails
+     */
+    private void appendRandom(ChangeArchive archive, int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        long time = appended.isEmpty() ? 1500000000000L : appended.get(appended.size() - 1).getTime();
+        for (int i = 0; i < count; ++i) {
+            time += random.nextInt(2000);
+            PlaceTile tile = new PlaceTile(random.nextInt(1000), random.nextInt(1000),
+                    USERS[random.nextInt(USERS.length)], COLORS[random.nextInt(COLORS.length)], time);
+            archive.append(tile);
+            appended.add(tile);
+        }
+    }
+
+    /**
+     * Describe a tile by everything the archive keeps.
+     *
+     * @param tile the tile
+     * @return its description
+     */
+    private static String key(PlaceTile tile) {
+        return tile.getRow() + "," + tile.getCol() + "," + tile.getOwner() + "," + tile.getColor() + "," +
+                tile.getTime();
+    }
+
+    /**
+     * Describe a list of tiles.
+     *
+     * @param tiles the tiles
+     * @return their descriptions, in order
+     */
+    private static List<String> keys(List<PlaceTile> tiles) {
+        List<String> keys = new ArrayList<>();
+        for (PlaceTile tile : tiles)
+            keys.add(key(tile));
+        return keys;
+    }
+
+    /**
+     * Check every query against the changes appended.
+     *
+     * @param archive the archive
+     * @throws IOException if the archive can't be read
+     */
+    private void checkQueries(ChangeArchive archive) throws IOException {
+        assertEquals(appended.size(), archive.size());
+        assertEquals(keys(appended), keys(archive.changes()));
+        for (String user : USERS) {
+            List<PlaceTile> expected = new ArrayList<>();
+            for (PlaceTile tile : appended)
+                if (tile.getOwner().equals(user))
+                    expected.add(tile);
+            assertEquals(user, keys(expected), keys(archive.placementsBy(user)));
+        }
+        long first = appended.get(0).getTime();
+        long last = appended.get(appended.size() - 1).getTime();
+        // windows inside one bucket, across buckets, on bucket edges and around everything
+        long[][] windows = {
+                {first, first + 1}, {first + 10000, first + 50000}, {first + 60000, first + 180000},
+                {(last + first) / 2, last}, {first - 1000000, last + 1}, {last, last + 1}};
+        for (long[] window : windows) {
+            Map<String, Integer> counts = new HashMap<>();
+            for (PlaceTile tile : appended)
+                if (tile.getTime() >= window[0] && tile.getTime() < window[1])
+                    counts.merge(tile.getOwner(), 1, Integer::sum);
+            Map<String, Integer> found = new HashMap<>();
+            List<Map.Entry<String, Integer>> top = archive.topContributors(window[0], window[1], 100);
+            for (int i = 1; i < top.size(); ++i)
+                assertTrue(top.get(i - 1).getValue() >= top.get(i).getValue());
+            for (Map.Entry<String, Integer> entry : top)
+                found.put(entry.getKey(), entry.getValue());
+            assertEquals(window[0] + " to " + window[1], counts, found);
+            List<Map.Entry<String, Integer>> leaders = archive.topContributors(window[0], window[1], 2);
+            assertEquals(Math.min(2, top.size()), leaders.size());
+            for (int i = 0; i < leaders.size(); ++i)
+                assertEquals(top.get(i).getValue(), leaders.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void queriesSpanDiskAndMemory() throws IOException, PlaceException {
+        ChangeArchive archive = new ChangeArchive(dir.getPath());
+        appendRandom(archive, 10000, 1);
+        checkQueries(archive);
+        archive.flush();
+        checkQueries(archive);
+    }
+
+    @Test
+    public void reopenedArchiveHasEveryFlushedChange() throws IOException, PlaceException {
+        ChangeArchive archive = new ChangeArchive(dir.getPath());
+        appendRandom(archive, 9000, 2);
+        archive.close();
+        ChangeArchive reopened = new ChangeArchive(dir.getPath());
+        checkQueries(reopened);
+        // new users and blocks go on after the reopened ones
+        appendRandom(reopened, 5000, 3);
+        PlaceTile late = new PlaceTile(1, 2, "erin", PlaceColor.RED, appended.get(appended.size() - 1).getTime());
+        reopened.append(late);
+        appended.add(late);
+        reopened.close();
+        ChangeArchive again = new ChangeArchive(dir.getPath());
+        checkQueries(again);
+        assertEquals(1, again.placementsBy("erin").size());
+    }
+
+    @Test
+    public void tornIndexTailIsDropped() throws IOException, PlaceException {
+        ChangeArchive archive = new ChangeArchive(dir.getPath());
+        appendRandom(archive, 5000, 4);
+        archive.close();
+        File index = new File(dir, "index.dat");
+        long length = index.length();
+        try (FileOutputStream out = new FileOutputStream(index, true)) {
+            // a record header claiming more bytes than follow it
+            out.write(new byte[] {0, 0, 1, 0, 1, 2, 3, 4, 5, 6});
+        }
+        ChangeArchive reopened = new ChangeArchive(dir.getPath());
+        assertEquals(length, index.length());
+        checkQueries(reopened);
+    }
+
+    @Test
+    public void queriesRunWhileChangesAreAppended() throws Exception {
+        ChangeArchive archive = new ChangeArchive(dir.getPath());
+        appendRandom(archive, 5000, 5);
+        List<PlaceTile> before = new ArrayList<>(appended);
+        Thread writer = new Thread(() -> {
+            try {
+                appendRandom(archive, 20000, 6);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }, "ARCHIVEWRITER");
+        writer.start();
+        // every query sees at least the changes made before it, in order
+        while (writer.isAlive()) {
+            List<PlaceTile> changes = archive.changes();
+            assertTrue(changes.size() >= before.size());
+            assertEquals(keys(before), keys(changes.subList(0, before.size())));
+            int alice = 0;
+            for (PlaceTile tile : before)
+                if (tile.getOwner().equals("alice"))
+                    ++alice;
+            assertTrue(archive.placementsBy("alice").size() >= alice);
+            archive.topContributors(0, Long.MAX_VALUE, 3);
+        }
+        writer.join();
+        checkQueries(archive);
+    }
+
+    @Test
+    public void emptyAndUnknownQueries() throws IOException, PlaceException {
+        ChangeArchive archive = new ChangeArchive(dir.getPath());
+        assertEquals(0, archive.size());
+        assertTrue(archive.changes().isEmpty());
+        archive.append(new PlaceTile(0, 0, "alice", PlaceColor.BLUE, 1000));
+        assertTrue(archive.placementsBy("nobody").isEmpty());
+        assertTrue(archive.topContributors(2000, 1000, 10).isEmpty());
+        assertTrue(archive.topContributors(1001, 2000, 10).isEmpty());
+        assertEquals(1, archive.topContributors(1000, 1001, 10).size());
+        assertEquals(0, archive.topContributors(0, 2000, 0).size());
+    }
+}
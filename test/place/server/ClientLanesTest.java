@@ -0,0 +1,70 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a reply to a client that has fallen far behind the broadcasts
+ * overtakes the changes still waiting for it, and that those changes are
+ * collapsed to the latest tile of each cell rather than sent one by one.
+ */
+public class ClientLanesTest {
+    /** The size of the board */
+    private static final int DIM = 100;
+
+    /** The number of changes the client falls behind by */
+    private static final int FLOOD = 20000;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    @Test
+    public void repliesOvertakeWaitingBroadcasts() throws Exception {
+        Socket socket = new Socket();
+        // a small window, so the broadcasts back up on the server instead of in the socket
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress(place.getHost(), place.getPort()));
+        try (TestClient slow = new TestClient(socket, "slow")) {
+            for (int i = 0; i < FLOOD; ++i)
+                place.server.changeTile(new PlaceTile(i / DIM % DIM, i % DIM, "flood", PlaceColor.values()[i % 16], i));
+            slow.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(DIM, 0, "", PlaceColor.RED, FLOOD), 1));
+            List<PlaceRequest<?>> before = slow.until(1);
+            assertEquals(PlaceRequest.RequestType.ERROR, before.get(before.size() - 1).getType());
+            for (PlaceRequest<?> req : before)
+                for (PlaceTile tile : TestClient.tiles(req))
+                    assertTrue("the reply waited for the last change", tile.getTime() != FLOOD - 1);
+            // the rest, collapsed, end with the last change
+            int after = 0;
+            boolean last = false;
+            while (!last) {
+                for (PlaceTile tile : TestClient.tiles(slow.read()))
+                    last |= tile.getTime() == FLOOD - 1;
+                ++after;
+            }
+            assertTrue(before.size() + after + " messages for " + FLOOD + " changes", before.size() + after < FLOOD);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a client asking for DEFLATE at login gets it, reads the same
+ * board as a plain client and the changes after it in fewer bytes, and has
+ * its own changes answered over the compressed stream, while features the
+ * server doesn't know are left off.
+ */
+public class CompressedLoginTest {
+    /** The size of the board */
+    private static final int DIM = 100;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+        ArrayList<PlaceTile> drawn = new ArrayList<>();
+        for (int row = 0; row < DIM; ++row)
+            for (int col = 0; col < DIM; ++col)
+                drawn.add(new PlaceTile(row, col, "user" + (row / 10), PlaceColor.values()[(row * col) % 16], row));
+        place.server.applyChanges(drawn);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    @Test
+    public void compressedClientReadsTheSameInFewerBytes() throws Exception {
+        try (TestClient zipped = new TestClient(place, "zipped", PlaceLogin.DEFLATE);
+             TestClient plain = new TestClient(place, "plain")) {
+            assertTrue(zipped.accepted.has(PlaceLogin.DEFLATE));
+            for (int row = 0; row < DIM; ++row) {
+                for (int col = 0; col < DIM; ++col) {
+                    PlaceTile tile = plain.board.getTile(row, col);
+                    assertEquals(tile.getColor(), zipped.board.getTile(row, col).getColor());
+                    assertEquals(tile.getOwner(), zipped.board.getTile(row, col).getOwner());
+                    assertEquals(tile.getTime(), zipped.board.getTile(row, col).getTime());
+                }
+            }
+            // the board is sent compressed either way, but the changes after it are not
+            long zippedBefore = zipped.received();
+            long plainBefore = plain.received();
+            for (int i = 0; i < 300; ++i)
+                place.server.changeTile(new PlaceTile(50 + i / DIM, i % DIM, "dave", PlaceColor.RED, 1000 + i));
+            assertEquals(PlaceColor.RED, zipped.changed(52, 99).getColor());
+            assertEquals(PlaceColor.RED, plain.changed(52, 99).getColor());
+            long zippedBytes = zipped.received() - zippedBefore;
+            long plainBytes = plain.received() - plainBefore;
+            assertTrue(zippedBytes + " compressed against " + plainBytes + " plain", zippedBytes < plainBytes);
+        }
+    }
+
+    @Test
+    public void changesFollowOverTheCompressedStream() throws Exception {
+        try (TestClient zipped = new TestClient(place, "zipped", PlaceLogin.DEFLATE)) {
+            zipped.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(5, 6, "", PlaceColor.NAVY, 1000), 1));
+            List<PlaceRequest<?>> read = zipped.until(1);
+            assertEquals(PlaceRequest.RequestType.PLACED, read.get(read.size() - 1).getType());
+            assertEquals(PlaceColor.NAVY, TestClient.tiles(read.get(0)).get(0).getColor());
+            // big enough to be compressed once for every client, inside the compressed stream
+            ArrayList<PlaceTile> drawn = new ArrayList<>();
+            for (int row = 0; row < DIM; ++row)
+                for (int col = 0; col < DIM; ++col)
+                    drawn.add(new PlaceTile(row, col, "carol", PlaceColor.TEAL, 2000));
+            place.server.applyChanges(drawn);
+            assertEquals(PlaceColor.TEAL, zipped.changed(DIM - 1, DIM - 1).getColor());
+        }
+    }
+
+    @Test
+    public void unknownFeaturesAreLeftOff() throws Exception {
+        try (TestClient client = new TestClient(place, "client", "teleport", PlaceLogin.DEFLATE)) {
+            assertTrue(client.accepted.has(PlaceLogin.DEFLATE));
+            assertFalse(client.accepted.has("teleport"));
+            assertEquals(PlaceColor.values()[(7 * 9) % 16], client.board.getTile(7, 9).getColor());
+        }
+    }
+}
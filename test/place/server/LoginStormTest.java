@@ -0,0 +1,113 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BoardSnapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that clients logging in share one encoded board for as long as it
+ * is recent enough, and that a crowd logging in while the board changes all
+ * end up with the server's board: whatever the shared board misses comes
+ * after it.
+ */
+public class LoginStormTest {
+    /** The size of the board */
+    private static final int DIM = 40;
+
+    /** The number of clients logging in at once */
+    private static final int CROWD = 40;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    @Test
+    public void encodingIsSharedWhileRecentEnough() {
+        long version = place.server.version();
+        BoardSnapshot first = place.server.encodedBoard(version);
+        assertTrue(first == place.server.encodedBoard(version));
+        place.server.changeTile(new PlaceTile(1, 1, "alice", PlaceColor.RED, 1));
+        BoardSnapshot second = place.server.encodedBoard(version + 1);
+        assertTrue(first != second);
+        // a client that gets the changes since an older version can still use it
+        assertTrue(second == place.server.encodedBoard(version));
+    }
+
+    @Test
+    public void crowdLoggingInWhileTheBoardChangesEndsUpWithTheBoard() throws Exception {
+        CountDownLatch loggedIn = new CountDownLatch(CROWD);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> clients = new ArrayList<>();
+        List<PlaceBoard> boards = new ArrayList<>();
+        for (int i = 0; i < CROWD; ++i) {
+            String name = "client" + i;
+            Thread client = new Thread(() -> {
+                try (TestClient test = new TestClient(place, name)) {
+                    loggedIn.countDown();
+                    PlaceBoard board = test.board;
+                    // the last change is the marker in the far corner
+                    while (board.getTile(DIM - 1, DIM - 1).getColor() != PlaceColor.BLACK) {
+                        for (PlaceTile tile : TestClient.tiles(test.read()))
+                            board.setTile(tile);
+                    }
+                    synchronized (boards) {
+                        boards.add(board);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    loggedIn.countDown();
+                }
+            }, "STORMCLIENT");
+            clients.add(client);
+        }
+        for (Thread client : clients)
+            client.start();
+        Random random = new Random(1);
+        while (loggedIn.getCount() > 0) {
+            place.server.changeTile(new PlaceTile(random.nextInt(DIM), random.nextInt(DIM - 1),
+                    "user" + random.nextInt(5), PlaceColor.values()[random.nextInt(15) + 1], random.nextInt(1000)));
+            Thread.sleep(1);
+        }
+        assertTrue(loggedIn.await(LoopbackServer.TIMEOUT, TimeUnit.MILLISECONDS));
+        place.server.changeTile(new PlaceTile(DIM - 1, DIM - 1, "marker", PlaceColor.BLACK, 2000));
+        for (Thread client : clients)
+            client.join(2 * LoopbackServer.TIMEOUT);
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(CROWD, boards.size());
+        PlaceBoard expected = place.server.getBoard();
+        for (PlaceBoard board : boards) {
+            for (int row = 0; row < DIM; ++row) {
+                for (int col = 0; col < DIM; ++col) {
+                    PlaceTile tile = expected.getTile(row, col);
+                    assertEquals(row + ", " + col, tile.getColor(), board.getTile(row, col).getColor());
+                    assertEquals(row + ", " + col, tile.getOwner(), board.getTile(row, col).getOwner());
+                }
+            }
+        }
+    }
+}
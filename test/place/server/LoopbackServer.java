@@ -0,0 +1,131 @@
+package place.server;
+
+import place.network.NetworkServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A server for tests: one canvas served on a loopback port picked by the
+ * system, with every connection handled by a PlaceServerClientThread as in
+ * the real server.  Closing it closes every connection it accepted.  It is
+ * public for the tests of the clients.
+ */
+public class LoopbackServer implements Closeable {
+    /** How long a test waits for something to happen, in milliseconds */
+    public static final int TIMEOUT = 5000;
+
+    /** The canvas */
+    public final NetworkServer server;
+
+    /** The listening socket */
+    private final ServerSocket listener;
+
+    /** The connections accepted */
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    /**
+     * Start serving a blank board.
+     *
+     * @param dim the size of the board
+     * @throws IOException if no port can be opened
+     */
+    public LoopbackServer(int dim) throws IOException {
+        server = new NetworkServer(dim);
+        server.setVerbose(false);
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Map<String, NetworkServer> canvases = new HashMap<>();
+        canvases.put(PlaceServer.DEFAULT_CANVAS, server);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = listener.accept();
+                    accepted.add(socket);
+                    new PlaceServerClientThread(socket, canvases).start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "LOOPBACKSERVER");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Get the host to connect to.
+     *
+     * @return the loopback address
+     */
+    public String getHost() {
+        return listener.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Get the port to connect to.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * Get the number of connections accepted so far.
+     *
+     * @return the number of connections
+     */
+    int connections() {
+        return accepted.size();
+    }
+
+    /**
+     * Close every connection accepted so far, as if the network had failed, but go on listening.
+     */
+    void dropConnections() {
+        for (Socket socket : accepted) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // squash
+            }
+        }
+    }
+
+    /**
+     * Wait for a condition to hold, failing the test if it doesn't in time.
+     *
+     * @param what what is waited for, for the failure message
+     * @param condition the condition
+     * @throws InterruptedException if the test is interrupted
+     */
+    public static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end)
+                throw new AssertionError("Timed out waiting for " + what);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Stop listening, close every connection and stop the canvas's frames.
+     */
+    @Override
+    public void close() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // squash
+        }
+        dropConnections();
+        server.shutdown();
+    }
+}
@@ -0,0 +1,53 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a replay over the socket places every change it can, and that
+ * the changes the server refuses are answered instead of waited for, so the
+ * time reported is that of the replay itself.
+ */
+public class PlaceReplayTest {
+    /** The size of the board */
+    private static final int DIM = 10;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    @Test
+    public void refusedChangesAreNotWaitedFor() throws Exception {
+        List<PlaceTile> changes = new ArrayList<>();
+        for (int i = 0; i < 50; ++i)
+            changes.add(new PlaceTile(i / DIM, i % DIM, "user" + i % 3, PlaceColor.values()[i % 16], 1000 + i));
+        // off the board
+        changes.add(new PlaceTile(DIM, 0, "user0", PlaceColor.RED, 2000));
+        changes.add(new PlaceTile(0, DIM + 3, "user1", PlaceColor.RED, 2001));
+        PlaceReplay replay = new PlaceReplay(changes, 0);
+        long elapsed = replay.replaySocket(place.getHost(), place.getPort());
+        // well short of the second the replay waits for changes that may never come back
+        assertTrue(elapsed / 1000000 + " ms", elapsed < 500000000L);
+        for (int i = 0; i < 50; ++i)
+            assertEquals("user" + i % 3, place.server.getBoard().getTile(i / DIM, i % DIM).getOwner());
+    }
+}
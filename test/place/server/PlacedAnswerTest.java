@@ -0,0 +1,128 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a change sent with an id is answered with a PLACED or an ERROR
+ * carrying that id, and that a PLACED only arrives once the client has been
+ * told about the change, whether changes are sent one by one or in frames.
+ */
+public class PlacedAnswerTest {
+    /** The size of the board */
+    private static final int DIM = 20;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    @Test
+    public void placedFollowsTheChange() throws Exception {
+        try (TestClient alice = new TestClient(place, "alice")) {
+            alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(3, 4, "alice", PlaceColor.RED, 5), 7));
+            List<PlaceRequest<?>> read = alice.until(7);
+            PlaceRequest<?> answer = read.get(read.size() - 1);
+            assertEquals(PlaceRequest.RequestType.PLACED, answer.getType());
+            assertEquals(PlaceColor.RED, ((PlaceTile) answer.getData()).getColor());
+            assertEquals(1, TestClient.tiles(read.get(0)).size());
+            assertEquals(PlaceColor.RED, TestClient.tiles(read.get(0)).get(0).getColor());
+        }
+    }
+
+    @Test
+    public void stampIsAnsweredWithAllItsTiles() throws Exception {
+        try (TestClient alice = new TestClient(place, "alice")) {
+            alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, new ArrayList<>(Arrays.asList(
+                    new PlaceTile(1, 1, "", PlaceColor.BLUE, 5), new PlaceTile(1, 2, "", PlaceColor.BLUE, 5))), 8));
+            List<PlaceRequest<?>> read = alice.until(8);
+            PlaceRequest<?> answer = read.get(read.size() - 1);
+            assertEquals(PlaceRequest.RequestType.PLACED, answer.getType());
+            assertEquals(2, ((List<?>) answer.getData()).size());
+            assertEquals(2, TestClient.tiles(read.get(0)).size());
+        }
+    }
+
+    @Test
+    public void refusalsCarryTheirId() throws Exception {
+        try (TestClient alice = new TestClient(place, "alice")) {
+            alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(DIM, 0, "", PlaceColor.RED, 5), 9));
+            List<PlaceRequest<?>> read = alice.until(9);
+            assertEquals(1, read.size());
+            assertEquals(PlaceRequest.RequestType.ERROR, read.get(0).getType());
+            alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, new ArrayList<>(Arrays.asList(
+                    new PlaceTile(0, 0, "", PlaceColor.RED, 5), new PlaceTile(0, -1, "", PlaceColor.RED, 5))), 10));
+            assertEquals(PlaceRequest.RequestType.ERROR, alice.until(10).get(0).getType());
+            assertEquals(PlaceColor.WHITE, place.server.getBoard().getTile(0, 0).getColor());
+        }
+    }
+
+    @Test
+    public void answersInFramesFollowTheirChanges() throws Exception {
+        int count = 2000;
+        try (TestClient alice = new TestClient(place, "alice")) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            AtomicBoolean framed = new AtomicBoolean();
+            Thread reader = new Thread(() -> {
+                try {
+                    PlaceBoard board = alice.board;
+                    int answered = 0;
+                    while (answered < count) {
+                        PlaceRequest<?> req = alice.read();
+                        if (req.getType() == PlaceRequest.RequestType.CHUNK_DIFF)
+                            framed.set(true);
+                        for (PlaceTile tile : TestClient.tiles(req))
+                            board.setTile(tile);
+                        if (req.getType() == PlaceRequest.RequestType.PLACED) {
+                            PlaceTile placed = (PlaceTile) req.getData();
+                            // the client has the change, or a later one
+                            assertTrue("answer " + req.getId() + " before its change",
+                                    board.getTile(placed.getRow(), placed.getCol()).getTime() >= placed.getTime());
+                            ++answered;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }, "PLACEDREADER");
+            reader.start();
+            for (int i = 1; i <= count; ++i) {
+                alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                        new PlaceTile(i % DIM, i / DIM % DIM, "", PlaceColor.values()[i % 16], i), i));
+                // a burst to make the server busy, then a steady stream it sends in frames
+                if (i > count / 2)
+                    Thread.sleep(1);
+            }
+            reader.join(4 * LoopbackServer.TIMEOUT);
+            assertTrue("answers missing", !reader.isAlive());
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+            assertTrue("never busy enough to send frames", framed.get());
+        }
+    }
+}
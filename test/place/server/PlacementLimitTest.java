@@ -0,0 +1,102 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that a client can stamp no more than a board's worth of tiles at a
+ * time, while single tiles, and the stamps of links passing on their own
+ * clients' changes, aren't limited.
+ */
+public class PlacementLimitTest {
+    /** The size of the board */
+    private static final int DIM = 8;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    /**
+     * Make a stamp covering the whole board.
+     *
+     * @param color its color
+     * @return the tiles
+     */
+    private static ArrayList<PlaceTile> wholeBoard(PlaceColor color) {
+        ArrayList<PlaceTile> tiles = new ArrayList<>();
+        for (int row = 0; row < DIM; ++row)
+            for (int col = 0; col < DIM; ++col)
+                tiles.add(new PlaceTile(row, col, "", color, 5));
+        return tiles;
+    }
+
+    /**
+     * Send a request and wait for its answer.
+     *
+     * @param client the client
+     * @param type the type of request
+     * @param data its data
+     * @param id its id
+     * @return the type of the answer
+     * @throws Exception if the answer doesn't come
+     */
+    private static PlaceRequest.RequestType ask(TestClient client, PlaceRequest.RequestType type,
+                                                Serializable data, long id) throws Exception {
+        client.send(new PlaceRequest<>(type, data, id));
+        List<PlaceRequest<?>> read = client.until(id);
+        return read.get(read.size() - 1).getType();
+    }
+
+    @Test
+    public void singleTilesAreNotLimited() throws Exception {
+        try (TestClient alice = new TestClient(place, "alice")) {
+            for (int i = 1; i <= 3 * DIM * DIM; ++i)
+                alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                        new PlaceTile(i % DIM, i / DIM % DIM, "", PlaceColor.RED, i), i));
+            List<PlaceRequest<?>> read = alice.until(3 * DIM * DIM);
+            for (PlaceRequest<?> req : read)
+                assertFalse(String.valueOf(req.getData()), req.getType() == PlaceRequest.RequestType.ERROR);
+        }
+    }
+
+    @Test
+    public void stampsAreLimitedToABoardAtATime() throws Exception {
+        try (TestClient alice = new TestClient(place, "alice")) {
+            assertEquals(PlaceRequest.RequestType.PLACED,
+                    ask(alice, PlaceRequest.RequestType.CHANGE_TILES, wholeBoard(PlaceColor.RED), 1));
+            assertEquals(PlaceRequest.RequestType.ERROR,
+                    ask(alice, PlaceRequest.RequestType.CHANGE_TILES, wholeBoard(PlaceColor.BLUE), 2));
+        }
+    }
+
+    @Test
+    public void linksAreNotLimited() throws Exception {
+        try (TestClient relay = new TestClient(place, "relay", PlaceLogin.FORWARD)) {
+            for (int id = 1; id <= 3; ++id)
+                assertEquals(PlaceRequest.RequestType.PLACED,
+                        ask(relay, PlaceRequest.RequestType.CHANGE_TILES, wholeBoard(PlaceColor.values()[id]), id));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a relay copies and follows the server above it over a single
+ * connection however many clients it has, and passes its clients' changes up
+ * with their owners, answering each only once the change has come back down.
+ */
+public class RelayLinkTest {
+    /** The size of the boards */
+    private static final int DIM = 16;
+
+    /** The server the relay follows */
+    private LoopbackServer origin;
+
+    /** The relay */
+    private LoopbackServer relay;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        origin = new LoopbackServer(DIM);
+        origin.server.changeTile(new PlaceTile(0, 0, "first", PlaceColor.RED, 1));
+        relay = new LoopbackServer(DIM);
+        new RelayLink(relay.server, origin.getHost(), origin.getPort()).start();
+        LoopbackServer.await("the board", () ->
+                relay.server.getBoard().getTile(0, 0).getColor() == PlaceColor.RED);
+    }
+
+    @After
+    public void tearDown() {
+        relay.close();
+        origin.close();
+    }
+
+    @Test
+    public void relayFollowsTheOrigin() throws Exception {
+        try (TestClient viewer = new TestClient(relay, "viewer")) {
+            origin.server.changeTile(new PlaceTile(5, 6, "alice", PlaceColor.BLUE, 2));
+            PlaceTile seen = viewer.changed(5, 6);
+            assertEquals(PlaceColor.BLUE, seen.getColor());
+            assertEquals("alice", seen.getOwner());
+        }
+    }
+
+    @Test
+    public void manyViewersShareOneLink() throws Exception {
+        List<TestClient> viewers = new ArrayList<>();
+        try {
+            for (int i = 0; i < 50; ++i)
+                viewers.add(new TestClient(relay, "viewer" + i));
+            origin.server.changeTile(new PlaceTile(7, 8, "alice", PlaceColor.NAVY, 2));
+            for (TestClient viewer : viewers)
+                assertEquals(PlaceColor.NAVY, viewer.changed(7, 8).getColor());
+            assertEquals(1, origin.connections());
+        } finally {
+            for (TestClient viewer : viewers)
+                viewer.close();
+        }
+    }
+
+    @Test
+    public void changesGoUpAndAreAnsweredOnceTheyComeBack() throws Exception {
+        try (TestClient watcher = new TestClient(origin, "watcher");
+             TestClient bob = new TestClient(relay, "bob")) {
+            bob.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(3, 4, "bob", PlaceColor.GREEN, 3), 11));
+            List<PlaceRequest<?>> read = bob.until(11);
+            assertEquals(PlaceRequest.RequestType.PLACED, read.get(read.size() - 1).getType());
+            boolean changed = false;
+            for (PlaceRequest<?> req : read)
+                for (PlaceTile tile : TestClient.tiles(req))
+                    changed |= tile.getRow() == 3 && tile.getCol() == 4 && tile.getColor() == PlaceColor.GREEN;
+            assertTrue("answered before the change came back", changed);
+            assertEquals("bob", origin.server.getBoard().getTile(3, 4).getOwner());
+            assertEquals("bob", watcher.changed(3, 4).getOwner());
+        }
+    }
+
+    @Test
+    public void stampsGoUpWhole() throws Exception {
+        try (TestClient bob = new TestClient(relay, "bob")) {
+            ArrayList<PlaceTile> stamp = new ArrayList<>(Arrays.asList(
+                    new PlaceTile(7, 7, "", PlaceColor.NAVY, 4), new PlaceTile(7, 8, "", PlaceColor.NAVY, 4),
+                    new PlaceTile(8, 7, "", PlaceColor.NAVY, 4)));
+            bob.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, stamp, 12));
+            List<PlaceRequest<?>> read = bob.until(12);
+            assertEquals(PlaceRequest.RequestType.PLACED, read.get(read.size() - 1).getType());
+            assertEquals(3, ((List<?>) read.get(read.size() - 1).getData()).size());
+            for (PlaceTile tile : stamp) {
+                assertEquals(PlaceColor.NAVY, origin.server.getBoard().getTile(tile.getRow(), tile.getCol()).getColor());
+                assertEquals(PlaceColor.NAVY, relay.server.getBoard().getTile(tile.getRow(), tile.getCol()).getColor());
+                assertEquals("bob", origin.server.getBoard().getTile(tile.getRow(), tile.getCol()).getOwner());
+            }
+        }
+    }
+
+    @Test
+    public void changesAreRefusedOnceTheOriginIsGone() throws Exception {
+        try (TestClient bob = new TestClient(relay, "bob")) {
+            origin.close();
+            LoopbackServer.await("the relay to notice", () -> {
+                try {
+                    bob.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                            new PlaceTile(1, 1, "", PlaceColor.RED, 5), 13));
+                    List<PlaceRequest<?>> read = bob.until(13);
+                    return read.get(read.size() - 1).getType() == PlaceRequest.RequestType.ERROR;
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new AssertionError(e);
+                }
+            });
+        }
+    }
+}
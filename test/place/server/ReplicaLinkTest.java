@@ -0,0 +1,113 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a replica copies its primary's board and follows its changes,
+ * and that a change asked of the replica is carried out on the primary and
+ * comes back to both.  Copying the board isn't counted as changes, so it
+ * doesn't make the replica think it is busy.  A replica that loses its
+ * primary catches up on the changes it missed once it is back.
+ */
+public class ReplicaLinkTest {
+    /** The size of the boards */
+    private static final int DIM = 20;
+
+    /** The primary */
+    private LoopbackServer primary;
+
+    /** The replica following it */
+    private LoopbackServer replica;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        primary = new LoopbackServer(DIM);
+        ArrayList<PlaceTile> drawn = new ArrayList<>();
+        for (int row = 0; row < DIM; ++row)
+            for (int col = 0; col < DIM; ++col)
+                drawn.add(new PlaceTile(row, col, "first", PlaceColor.RED, 1));
+        primary.server.applyChanges(drawn);
+        replica = new LoopbackServer(DIM);
+        new ReplicaLink(replica.server, primary.getHost(), primary.getPort()).start();
+        LoopbackServer.await("the snapshot", () ->
+                replica.server.getBoard().getTile(0, 0).getColor() == PlaceColor.RED);
+    }
+
+    @After
+    public void tearDown() {
+        replica.close();
+        primary.close();
+    }
+
+    @Test
+    public void replicaFollowsThePrimary() throws Exception {
+        try (TestClient viewer = new TestClient(replica, "viewer")) {
+            assertEquals("first", viewer.board.getTile(DIM - 1, DIM - 1).getOwner());
+            // long enough for a frame to measure the change rate
+            Thread.sleep(300);
+            primary.server.changeTile(new PlaceTile(1, 2, "alice", PlaceColor.BLUE, 2));
+            PlaceRequest<?> req = viewer.read();
+            assertEquals(PlaceRequest.RequestType.TILE_CHANGED, req.getType());
+            assertEquals("alice", ((PlaceTile) req.getData()).getOwner());
+            assertEquals(PlaceColor.BLUE, replica.server.getBoard().getTile(1, 2).getColor());
+        }
+    }
+
+    @Test
+    public void onlyDifferingTilesAreLoaded() throws Exception {
+        try (TestClient viewer = new TestClient(replica, "viewer")) {
+            long version = replica.server.version();
+            List<PlaceTile> tiles = new ArrayList<>();
+            for (PlaceTile[] row : replica.server.getBoard().getBoard())
+                tiles.addAll(Arrays.asList(row));
+            tiles.set(5, new PlaceTile(0, 5, "carol", PlaceColor.RED, 1));
+            tiles.set(DIM + 1, new PlaceTile(1, 1, "first", PlaceColor.NAVY, 1));
+            replica.server.loadTiles(tiles);
+            PlaceRequest<?> req = viewer.read();
+            assertEquals(PlaceRequest.RequestType.CHUNK_DIFF, req.getType());
+            assertEquals(2, TestClient.tiles(req).size());
+            assertEquals(version + 2, replica.server.version());
+            assertEquals("carol", replica.server.getBoard().getTile(0, 5).getOwner());
+        }
+    }
+
+    @Test
+    public void changesAskedOfTheReplicaReachThePrimary() throws Exception {
+        try (TestClient watcher = new TestClient(primary, "watcher");
+             TestClient bob = new TestClient(replica, "bob")) {
+            bob.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(3, 4, "bob", PlaceColor.GREEN, 3)));
+            PlaceTile seen = watcher.changed(3, 4);
+            assertEquals(PlaceColor.GREEN, seen.getColor());
+            assertEquals("bob", primary.server.getBoard().getTile(3, 4).getOwner());
+            PlaceTile back = bob.changed(3, 4);
+            assertEquals(PlaceColor.GREEN, back.getColor());
+            assertEquals(PlaceColor.GREEN, replica.server.getBoard().getTile(3, 4).getColor());
+        }
+    }
+
+    @Test
+    public void replicaCatchesUpAfterLosingThePrimary() throws Exception {
+        primary.dropConnections();
+        primary.server.changeTile(new PlaceTile(5, 5, "carol", PlaceColor.NAVY, 4));
+        primary.server.changeTile(new PlaceTile(5, 6, "carol", PlaceColor.NAVY, 5));
+        LoopbackServer.await("the changes missed", () ->
+                replica.server.getBoard().getTile(5, 6).getColor() == PlaceColor.NAVY);
+        assertEquals("carol", replica.server.getBoard().getTile(5, 5).getOwner());
+        primary.server.changeTile(new PlaceTile(5, 7, "carol", PlaceColor.NAVY, 6));
+        LoopbackServer.await("the next change", () ->
+                replica.server.getBoard().getTile(5, 7).getColor() == PlaceColor.NAVY);
+    }
+}
@@ -0,0 +1,75 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that reverting a user puts back what their tiles held before they
+ * changed them, one owner further back each time, and that the reverted
+ * tiles reach the clients the way any batch of changes would, in a frame
+ * while the server is busy.
+ */
+public class RevertTest {
+    /** The size of the board */
+    private static final int DIM = 20;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    @Test
+    public void revertingGoesBackOneOwnerAtATime() {
+        place.server.changeTile(new PlaceTile(1, 1, "alice", PlaceColor.RED, 1));
+        place.server.changeTile(new PlaceTile(1, 1, "bob", PlaceColor.BLUE, 2));
+        place.server.changeTile(new PlaceTile(1, 1, "bob", PlaceColor.GREEN, 3));
+        place.server.changeTile(new PlaceTile(2, 2, "bob", PlaceColor.NAVY, 4));
+        PlaceBoard board = place.server.getBoard();
+        assertEquals(2, place.server.revert("bob"));
+        assertEquals("alice", board.getTile(1, 1).getOwner());
+        assertEquals(PlaceColor.RED, board.getTile(1, 1).getColor());
+        assertEquals(PlaceColor.WHITE, board.getTile(2, 2).getColor());
+        assertEquals(0, place.server.revert("bob"));
+        assertEquals(1, place.server.revert("alice"));
+        assertEquals(PlaceColor.WHITE, board.getTile(1, 1).getColor());
+        assertEquals("", board.getTile(1, 1).getOwner());
+    }
+
+    @Test
+    public void revertsGoOutInFramesWhileBusy() throws Exception {
+        try (TestClient viewer = new TestClient(place, "viewer")) {
+            ArrayList<PlaceTile> drawn = new ArrayList<>();
+            for (int row = 0; row < DIM; ++row)
+                for (int col = 0; col < DIM; ++col)
+                    drawn.add(new PlaceTile(row, col, "alice", PlaceColor.RED, 1));
+            place.server.applyChanges(drawn);
+            assertEquals(PlaceRequest.RequestType.TILES_CHANGED, viewer.read().getType());
+            // long enough for a frame to find the server busy, too short for it to calm down
+            Thread.sleep(150);
+            assertEquals(DIM * DIM, place.server.revert("alice"));
+            PlaceRequest<?> req = viewer.read();
+            assertEquals(PlaceRequest.RequestType.CHUNK_DIFF, req.getType());
+            assertEquals(DIM * DIM, TestClient.tiles(req).size());
+            for (PlaceTile tile : TestClient.tiles(req))
+                assertEquals(PlaceColor.WHITE, tile.getColor());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks a router merging two shards side by side: their regions are copied
+ * into place, a change asked of the router goes to the shard that owns it in
+ * that shard's coordinates and is answered once it has come back, and a
+ * change no single shard owns is refused with its id.
+ */
+public class ShardRouterTest {
+    /** The size of each shard */
+    private static final int SHARD = 5;
+
+    /** The shard holding the top left of the merged board */
+    private LoopbackServer left;
+
+    /** The shard holding the top right of the merged board */
+    private LoopbackServer right;
+
+    /** The router, with a board of two shards by two */
+    private LoopbackServer router;
+
+    @Before
+    public void setUp() throws IOException, PlaceException {
+        left = new LoopbackServer(SHARD);
+        right = new LoopbackServer(SHARD);
+        left.server.changeTile(new PlaceTile(2, 2, "alice", PlaceColor.RED, 1));
+        right.server.changeTile(new PlaceTile(1, 1, "bob", PlaceColor.BLUE, 2));
+        router = new LoopbackServer(2 * SHARD);
+        ShardRouter shards = new ShardRouter(router.server);
+        shards.addShard(left.getHost(), left.getPort(), 0, 0);
+        shards.addShard(right.getHost(), right.getPort(), 0, SHARD);
+    }
+
+    @After
+    public void tearDown() {
+        router.close();
+        right.close();
+        left.close();
+    }
+
+    @Test
+    public void regionsAreCopiedIntoPlace() {
+        assertEquals(PlaceColor.RED, router.server.getBoard().getTile(2, 2).getColor());
+        assertEquals("bob", router.server.getBoard().getTile(1, SHARD + 1).getOwner());
+        assertEquals(PlaceColor.BLUE, router.server.getBoard().getTile(1, SHARD + 1).getColor());
+    }
+
+    @Test
+    public void changesGoToTheShardThatOwnsThem() throws Exception {
+        try (TestClient carol = new TestClient(router, "carol")) {
+            carol.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(3, SHARD + 2, "", PlaceColor.GREEN, 3), 1));
+            List<PlaceRequest<?>> read = carol.until(1);
+            assertEquals(PlaceRequest.RequestType.PLACED, read.get(read.size() - 1).getType());
+            // the change came back through the router before the answer
+            List<PlaceTile> changed = TestClient.tiles(read.get(0));
+            assertEquals(1, changed.size());
+            assertEquals(3, changed.get(0).getRow());
+            assertEquals(SHARD + 2, changed.get(0).getCol());
+            assertEquals("carol", right.server.getBoard().getTile(3, 2).getOwner());
+            assertEquals(PlaceColor.GREEN, right.server.getBoard().getTile(3, 2).getColor());
+            assertEquals(PlaceColor.GREEN, router.server.getBoard().getTile(3, SHARD + 2).getColor());
+        }
+    }
+
+    @Test
+    public void stampsAreForwardedWhole() throws Exception {
+        try (TestClient carol = new TestClient(router, "carol")) {
+            carol.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, new ArrayList<>(Arrays.asList(
+                    new PlaceTile(4, 0, "", PlaceColor.NAVY, 3), new PlaceTile(4, 1, "", PlaceColor.NAVY, 3))), 2));
+            List<PlaceRequest<?>> read = carol.until(2);
+            assertEquals(PlaceRequest.RequestType.PLACED, read.get(read.size() - 1).getType());
+            assertEquals(2, TestClient.tiles(read.get(0)).size());
+            assertEquals(PlaceColor.NAVY, left.server.getBoard().getTile(4, 1).getColor());
+        }
+    }
+
+    @Test
+    public void changesNoShardOwnsAreRefused() throws Exception {
+        try (TestClient carol = new TestClient(router, "carol")) {
+            carol.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, new ArrayList<>(Arrays.asList(
+                    new PlaceTile(0, SHARD - 1, "", PlaceColor.RED, 3), new PlaceTile(0, SHARD, "", PlaceColor.RED, 3))),
+                    3));
+            List<PlaceRequest<?>> read = carol.until(3);
+            assertEquals(1, read.size());
+            assertEquals(PlaceRequest.RequestType.ERROR, read.get(0).getType());
+            assertEquals(PlaceColor.WHITE, left.server.getBoard().getTile(0, SHARD - 1).getColor());
+            assertEquals(PlaceColor.WHITE, right.server.getBoard().getTile(0, 0).getColor());
+            // no shard covers the bottom half of the board
+            carol.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(SHARD + 1, 1, "", PlaceColor.RED, 3), 4));
+            read = carol.until(4);
+            assertEquals(1, read.size());
+            assertEquals(PlaceRequest.RequestType.ERROR, read.get(0).getType());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.NetworkServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that changes a server publishes into a ring come out of a reader
+ * unchanged, and that the reader refuses slots that fail their check and
+ * skips ahead when it is lapped.
+ */
+public class SharedRingTest {
+    /** The number of slots in the ring */
+    private static final int SLOTS = 64;
+
+    /** The ring file */
+    private File file;
+
+    /** The server publishing into the ring */
+    private NetworkServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("ring", ".dat");
+        server = new NetworkServer(100);
+        server.setVerbose(false);
+        new SharedRingFeed(server, file.getPath(), SLOTS);
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+        file.delete();
+    }
+
+    /**
+     * Make a change on the server.
+     *
+     * @param i which change it is, used for its cell, owner, color and time
+     * @return the change
+     */
+    private PlaceTile change(int i) {
+        PlaceTile tile = new PlaceTile(i % 100, i / 100 % 100, "user" + i, PlaceColor.values()[i % 16], 1000 + i);
+        server.changeTile(tile);
+        return tile;
+    }
+
+    /**
+     * Check that a tile read from the ring is the one published.
+     *
+     * @param expected the tile published
+     * @param read the tile read
+     */
+    private static void assertSameTile(PlaceTile expected, PlaceTile read) {
+        assertEquals(expected.getRow(), read.getRow());
+        assertEquals(expected.getCol(), read.getCol());
+        assertEquals(expected.getColor(), read.getColor());
+        assertEquals(expected.getTime(), read.getTime());
+        assertEquals(expected.getOwner(), read.getOwner());
+    }
+
+    /**
+     * Overwrite a byte of a change's slot, as a torn write or damage would.
+     *
+     * @param number the change's sequence number
+     * @param offset the offset in the slot
+     * @param value the byte to write
+     * @return the byte that was there
+     * @throws IOException if the file can't be written
+     */
+    private int poke(long number, int offset, int value) throws IOException {
+        try (RandomAccessFile ring = new RandomAccessFile(file, "rw")) {
+            long at = SharedRingFeed.HEADER + number % SLOTS * SharedRingFeed.SLOT + offset;
+            ring.seek(at);
+            int old = ring.read();
+            ring.seek(at);
+            ring.write(value);
+            return old;
+        }
+    }
+
+    @Test
+    public void changesComeOutInOrder() throws PlaceException {
+        SharedRingReader reader = new SharedRingReader(file.getPath());
+        List<PlaceTile> published = new ArrayList<>();
+        for (int i = 0; i < 40; ++i)
+            published.add(change(i));
+        List<PlaceTile> read = new ArrayList<>();
+        assertEquals(40, reader.poll(read, 100));
+        for (int i = 0; i < 40; ++i)
+            assertSameTile(published.get(i), read.get(i));
+        assertEquals(0, reader.poll(read, 100));
+        assertEquals(0, reader.getLost());
+    }
+
+    @Test
+    public void longOwnersAreCut() throws PlaceException {
+        SharedRingReader reader = new SharedRingReader(file.getPath());
+        String owner = "a-name-much-longer-than-thirty-bytes";
+        server.changeTile(new PlaceTile(1, 1, owner, PlaceColor.RED, 5));
+        List<PlaceTile> read = new ArrayList<>();
+        assertEquals(1, reader.poll(read, 1));
+        assertEquals(owner.substring(0, SharedRingFeed.OWNER), read.get(0).getOwner());
+    }
+
+    @Test
+    public void damagedSlotIsRefusedUntilRepaired() throws PlaceException, IOException {
+        SharedRingReader reader = new SharedRingReader(file.getPath());
+        long first = reader.getCursor();
+        List<PlaceTile> published = new ArrayList<>();
+        for (int i = 0; i < 3; ++i)
+            published.add(change(i));
+        // a different row than the check was made for
+        int old = poke(first + 1, 11, 99);
+        List<PlaceTile> read = new ArrayList<>();
+        assertEquals(1, reader.poll(read, 10));
+        assertEquals(0, reader.poll(read, 10));
+        assertEquals(first + 1, reader.getCursor());
+        poke(first + 1, 11, old);
+        assertEquals(2, reader.poll(read, 10));
+        for (int i = 0; i < 3; ++i)
+            assertSameTile(published.get(i), read.get(i));
+    }
+
+    @Test
+    public void halfWrittenSlotIsRefused() throws PlaceException, IOException {
+        SharedRingReader reader = new SharedRingReader(file.getPath());
+        long first = reader.getCursor();
+        change(0);
+        // a slot whose number is not the change's, as while the writer rewrites it
+        int old = poke(first, 7, 0xff);
+        List<PlaceTile> read = new ArrayList<>();
+        assertEquals(0, reader.poll(read, 10));
+        poke(first, 7, old);
+        assertEquals(1, reader.poll(read, 10));
+    }
+
+    @Test
+    public void lappedReaderSkipsAhead() throws PlaceException {
+        SharedRingReader reader = new SharedRingReader(file.getPath());
+        long first = reader.getCursor();
+        List<PlaceTile> published = new ArrayList<>();
+        for (int i = 0; i < 3 * SLOTS; ++i)
+            published.add(change(i));
+        List<PlaceTile> read = new ArrayList<>();
+        int count = reader.poll(read, 10 * SLOTS);
+        assertEquals(3 * SLOTS, count + reader.getLost());
+        assertEquals(first + 3 * SLOTS, reader.getCursor());
+        for (int i = 0; i < count; ++i)
+            assertSameTile(published.get((int) reader.getLost() + i), read.get(i));
+    }
+
+    @Test
+    public void checkCoversEveryField() {
+        byte[] owner = {'a', 'b'};
+        long check = SharedRingFeed.check(1, 2, 3, 4, 5, owner, 2);
+        assertEquals(check, SharedRingFeed.check(1, 2, 3, 4, 5, owner, 2));
+        assertNotEquals(check, SharedRingFeed.check(2, 2, 3, 4, 5, owner, 2));
+        assertNotEquals(check, SharedRingFeed.check(1, 3, 3, 4, 5, owner, 2));
+        assertNotEquals(check, SharedRingFeed.check(1, 2, 2, 4, 5, owner, 2));
+        assertNotEquals(check, SharedRingFeed.check(1, 3, 2, 4, 5, owner, 2));
+        assertNotEquals(check, SharedRingFeed.check(1, 2, 3, 5, 5, owner, 2));
+        assertNotEquals(check, SharedRingFeed.check(1, 2, 3, 4, 6, owner, 2));
+        assertNotEquals(check, SharedRingFeed.check(1, 2, 3, 4, 5, new byte[] {'a', 'c'}, 2));
+        assertNotEquals(check, SharedRingFeed.check(1, 2, 3, 4, 5, owner, 1));
+    }
+
+    @Test(expected = PlaceException.class)
+    public void otherFilesAreNotRings() throws IOException, PlaceException {
+        try (RandomAccessFile ring = new RandomAccessFile(file, "rw")) {
+            ring.writeInt(0);
+        }
+        new SharedRingReader(file.getPath());
+    }
+}
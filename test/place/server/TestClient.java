@@ -0,0 +1,211 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.network.BoardDiff;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+import place.network.SwitchableInputStream;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A client for tests that logs in with a plain name and then sends and reads
+ * requests itself.  Every read gives up after LoopbackServer.TIMEOUT, so a
+ * missing answer fails the test instead of hanging it.  It counts the bytes
+ * it reads off the socket, before any decompression.
+ */
+class TestClient implements Closeable {
+    /** The socket to the server */
+    private final Socket socket;
+
+    /** Writes to the server */
+    private final ObjectOutputStream out;
+
+    /** Reads from the server */
+    private final ObjectInputStream in;
+
+    /** The board sent at login */
+    final PlaceBoard board;
+
+    /** The features the server turned on */
+    final PlaceLogin accepted;
+
+    /** The number of bytes read off the socket */
+    private long received = 0;
+
+    /**
+     * Connect and log in, with a plain name if no features are asked for.
+     *
+     * @param server the server
+     * @param username the name to log in with
+     * @param capabilities the features to ask for
+     * @throws IOException if the connection fails or the login is refused
+     * @throws ClassNotFoundException if the server sends something unknown
+     */
+    TestClient(LoopbackServer server, String username, String... capabilities)
+            throws IOException, ClassNotFoundException {
+        this(new Socket(server.getHost(), server.getPort()), username, capabilities);
+    }
+
+    /**
+     * Log in over a socket already connected to the server, such as one with small buffers.
+     *
+     * @param socket the socket
+     * @param username the name to log in with
+     * @param capabilities the features to ask for
+     * @throws IOException if the connection fails or the login is refused
+     * @throws ClassNotFoundException if the server sends something unknown
+     */
+    TestClient(Socket socket, String username, String... capabilities)
+            throws IOException, ClassNotFoundException {
+        this.socket = socket;
+        socket.setSoTimeout(LoopbackServer.TIMEOUT);
+        out = new ObjectOutputStream(socket.getOutputStream());
+        out.flush();
+        InputStream counted = new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    ++received;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    received += n;
+                return n;
+            }
+        };
+        SwitchableInputStream rawIn = new SwitchableInputStream(counted);
+        in = new ObjectInputStream(rawIn);
+        if (capabilities.length == 0)
+            send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, username));
+        else
+            send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, new PlaceLogin(username, "", capabilities)));
+        PlaceRequest<?> reply = read();
+        if (reply.getType() != PlaceRequest.RequestType.LOGIN_SUCCESS)
+            throw new IOException("Login as " + username + " failed: " + reply.getData());
+        accepted = reply.getData() instanceof PlaceLogin ? (PlaceLogin) reply.getData() : null;
+        if (accepted != null && accepted.has(PlaceLogin.DEFLATE))
+            rawIn.startInflating();
+        PlaceRequest<?> boardReq = read();
+        assertEquals(PlaceRequest.RequestType.BOARD, boardReq.getType());
+        board = (PlaceBoard) boardReq.getData();
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param req the request
+     * @throws IOException if the connection fails
+     */
+    void send(PlaceRequest<?> req) throws IOException {
+        out.writeUnshared(req);
+        out.flush();
+    }
+
+    /**
+     * Read the next request.
+     *
+     * @return the request
+     * @throws IOException if the connection fails or nothing comes in time
+     * @throws ClassNotFoundException if the server sends something unknown
+     */
+    PlaceRequest<?> read() throws IOException, ClassNotFoundException {
+        return (PlaceRequest<?>) in.readUnshared();
+    }
+
+    /**
+     * Get the number of bytes read off the socket so far.
+     *
+     * @return the number of bytes
+     */
+    long received() {
+        return received;
+    }
+
+    /**
+     * Read until the answer to a request arrives.
+     *
+     * @param id the request's id
+     * @return everything read, the answer last
+     * @throws IOException if the connection fails or the answer doesn't come in time
+     * @throws ClassNotFoundException if the server sends something unknown
+     */
+    List<PlaceRequest<?>> until(long id) throws IOException, ClassNotFoundException {
+        List<PlaceRequest<?>> read = new ArrayList<>();
+        while (true) {
+            PlaceRequest<?> req = read();
+            read.add(req);
+            if (req.getId() == id && (req.getType() == PlaceRequest.RequestType.PLACED ||
+                    req.getType() == PlaceRequest.RequestType.ERROR))
+                return read;
+        }
+    }
+
+    /**
+     * Read until the server tells the client about a change to a tile, however it is sent.
+     *
+     * @param row the tile's row
+     * @param col the tile's column
+     * @return the new tile
+     * @throws IOException if the connection fails or no change comes in time
+     * @throws ClassNotFoundException if the server sends something unknown
+     */
+    PlaceTile changed(int row, int col) throws IOException, ClassNotFoundException {
+        while (true) {
+            for (PlaceTile tile : tiles(read())) {
+                if (tile.getRow() == row && tile.getCol() == col)
+                    return tile;
+            }
+        }
+    }
+
+    /**
+     * Get the tiles a request tells the client about.
+     *
+     * @param req the request
+     * @return the changed tiles, or none if it isn't a change
+     */
+    static List<PlaceTile> tiles(PlaceRequest<?> req) {
+        List<PlaceTile> tiles = new ArrayList<>();
+        switch (req.getType()) {
+            case TILE_CHANGED:
+                tiles.add((PlaceTile) req.getData());
+                break;
+            case TILES_CHANGED:
+                for (Object tile : (List<?>) req.getData())
+                    tiles.add((PlaceTile) tile);
+                break;
+            case CHUNK_DIFF:
+                tiles.addAll(((BoardDiff) req.getData()).getTiles());
+                break;
+            default:
+                break;
+        }
+        return tiles;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package place.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import place.BoardHashTree;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceLogin;
+import place.network.PlaceRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks who owns a placed tile: the client that asked for it, whatever the
+ * tile said, except for the changes a link passes on for its own clients.
+ * A tile with no owner at all must not stop the board from being encoded,
+ * hashed or archived for the clients logging in after it.
+ */
+public class TileOwnerTest {
+    /** The size of the board */
+    private static final int DIM = 10;
+
+    /** The server */
+    private LoopbackServer place;
+
+    @Before
+    public void setUp() throws IOException {
+        place = new LoopbackServer(DIM);
+    }
+
+    @After
+    public void tearDown() {
+        place.close();
+    }
+
+    @Test
+    public void tilesBelongToWhoeverAskedForThem() throws Exception {
+        try (TestClient alice = new TestClient(place, "alice")) {
+            alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(1, 1, "mallory", PlaceColor.RED, 5), 1));
+            assertEquals(PlaceRequest.RequestType.PLACED, last(alice.until(1)).getType());
+            alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(1, 2, null, PlaceColor.RED, 5), 2));
+            assertEquals(PlaceRequest.RequestType.PLACED, last(alice.until(2)).getType());
+            alice.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, new ArrayList<>(Arrays.asList(
+                    new PlaceTile(2, 1, "mallory", PlaceColor.BLUE, 5), new PlaceTile(2, 2, null, PlaceColor.BLUE, 5))),
+                    3));
+            assertEquals(PlaceRequest.RequestType.PLACED, last(alice.until(3)).getType());
+        }
+        PlaceBoard board = place.server.getBoard();
+        assertEquals("alice", board.getTile(1, 1).getOwner());
+        assertEquals("alice", board.getTile(1, 2).getOwner());
+        assertEquals("alice", board.getTile(2, 1).getOwner());
+        assertEquals("alice", board.getTile(2, 2).getOwner());
+    }
+
+    @Test
+    public void linksKeepTheOwnersTheyPassOn() throws Exception {
+        try (TestClient relay = new TestClient(place, "relay", PlaceLogin.FORWARD)) {
+            relay.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(3, 3, "carol", PlaceColor.GREEN, 5), 1));
+            assertEquals(PlaceRequest.RequestType.PLACED, last(relay.until(1)).getType());
+            relay.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(3, 4, null, PlaceColor.GREEN, 5), 2));
+            assertEquals(PlaceRequest.RequestType.PLACED, last(relay.until(2)).getType());
+        }
+        assertEquals("carol", place.server.getBoard().getTile(3, 3).getOwner());
+        assertEquals("", place.server.getBoard().getTile(3, 4).getOwner());
+    }
+
+    @Test
+    public void missingOwnerDoesNotBreakLaterLogins() throws Exception {
+        File dir = Files.createTempDirectory("archive").toFile();
+        ChangeArchive archive = new ChangeArchive(dir.getPath());
+        try {
+            place.server.setArchive(archive);
+            try (TestClient early = new TestClient(place, "early")) {
+                // changes made on the server itself aren't given an owner
+                place.server.changeTile(new PlaceTile(4, 4, null, PlaceColor.NAVY, 5));
+                place.server.changeTile(new PlaceTile(4, 4, "dave", PlaceColor.NAVY, 6));
+                place.server.changeTile(new PlaceTile(4, 5, null, PlaceColor.NAVY, 7));
+                assertEquals(PlaceColor.NAVY, early.changed(4, 5).getColor());
+            }
+            try (TestClient late = new TestClient(place, "late")) {
+                assertEquals("", late.board.getTile(4, 5).getOwner());
+                assertEquals(PlaceColor.NAVY, late.board.getTile(4, 5).getColor());
+                assertEquals(0, place.server.changedChunks(new BoardHashTree(late.board)).size());
+            }
+            archive.flush();
+            assertEquals(3, archive.size());
+        } finally {
+            archive.close();
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Get the last of the requests read.
+     *
+     * @param read the requests
+     * @return the last one
+     */
+    private static PlaceRequest<?> last(List<PlaceRequest<?>> read) {
+        return read.get(read.size() - 1);
+    }
+}